@@ -10,6 +10,8 @@ let searchTimeout;
 // --- STATE MANAGEMENT & CACHING ---
 let currentUrlKey = window.location.pathname + window.location.search;
 let pageCache = {};
+let pageCursors = {}; // listing URL without paging -> { pageNum: cursor that starts that page }
+let randomSeed = newRandomSeed(); // keeps random order stable across pages until the filters change
 let accountCache = {};
 let validRatings = { content: [], safety: [] };
 
@@ -19,6 +21,10 @@ let selectedFilters = {
     sort: 'newest'
 };
 
+function newRandomSeed() {
+    return Math.floor(Math.random() * Number.MAX_SAFE_INTEGER);
+}
+
 function saveScrollState() {
     if (!pageCache[currentUrlKey]) pageCache[currentUrlKey] = {};
     pageCache[currentUrlKey].scrollY = window.scrollY;
@@ -1017,7 +1023,7 @@ async function loadPage(twitterId, pageNum) {
     const urlKey = window.location.pathname + window.location.search;
 
     if (pageCache[urlKey] && pageCache[urlKey].posts) {
-        renderPosts(pageCache[urlKey].posts, pageNum, twitterId);
+        renderPosts(pageCache[urlKey].posts, pageNum, twitterId, pageCache[urlKey].total);
         window.scrollTo(0, pageCache[urlKey].scrollY || 0);
         return;
     }
@@ -1027,27 +1033,41 @@ async function loadPage(twitterId, pageNum) {
 
     const cParams = selectedFilters.content.map(c => `content=${encodeURIComponent(c)}`).join('&');
     const sParams = selectedFilters.safety.map(s => `safety=${encodeURIComponent(s)}`).join('&');
-    const sortParam = `sort=${selectedFilters.sort}`;
+    const sortParam = selectedFilters.sort === 'random'
+        ? `sort=random&seed=${randomSeed}`
+        : `sort=${selectedFilters.sort}`;
 
     const filterQuery = [cParams, sParams, sortParam].filter(x => x !== '').join('&');
 
-    const url = twitterId
-        ? `/api/accounts/${twitterId}/posts?limit=${LIMIT}&offset=${offset}&${filterQuery}`
-        : `/api/posts?limit=${LIMIT}&offset=${offset}&${filterQuery}`;
+    const listing = twitterId
+        ? `/api/accounts/${twitterId}/posts?limit=${LIMIT}&${filterQuery}`
+        : `/api/posts?limit=${LIMIT}&${filterQuery}`;
+    // Paging forward uses the cursor the previous page handed out, which stays fast however deep you go.
+    // Jumping straight to a page (a shared link, a reload) falls back to the offset.
+    const cursors = pageCursors[listing] || (pageCursors[listing] = {});
+    const url = cursors[pageNum]
+        ? `${listing}&cursor=${encodeURIComponent(cursors[pageNum])}`
+        : `${listing}&offset=${offset}`;
 
     const res = await fetch(url);
     const posts = await res.json();
+    const nextCursor = res.headers.get('X-Next-Cursor');
+    if (nextCursor) cursors[pageNum + 1] = nextCursor;
+    // Missing on older databases until the server has counted the archive
+    const totalHeader = res.headers.get('X-Total-Count');
+    const total = totalHeader !== null ? parseInt(totalHeader, 10) : null;
 
     if (!pageCache[urlKey]) pageCache[urlKey] = {};
     pageCache[urlKey].posts = posts;
+    pageCache[urlKey].total = total;
     pageCache[urlKey].scrollY = 0;
 
-    renderPosts(posts, pageNum, twitterId);
+    renderPosts(posts, pageNum, twitterId, total);
     window.scrollTo(0, 0);
     isLoading = false;
 }
 
-function renderPosts(posts, pageNum, twitterId) {
+function renderPosts(posts, pageNum, twitterId, total) {
     const gallery = document.getElementById('gallery');
     gallery.innerHTML = '';
 
@@ -1079,7 +1099,7 @@ function renderPosts(posts, pageNum, twitterId) {
                 rowMedia.forEach((m) => {
                     const localFilename = m.localPath.split(/[\\/]/).pop();
                     const fullSrc = `/images/${m.contentRating}/${m.safetyRating}/${localFilename}`;
-                    const thumbSrc = `/api/media/${m.id}/thumbnail`;
+                    const thumbSrc = thumbnailUrl(m);
 
                     // 3. We wrap the <img> in its own <a> tag so users can still middle-click it.
                     // We DO NOT wrap the selects. (And we don't wrap videos to prevent breaking their controls).
@@ -1136,14 +1156,15 @@ function renderPosts(posts, pageNum, twitterId) {
     const paginationDiv = document.getElementById('pagination');
     if (paginationDiv) {
         let prevDisabled = pageNum <= 1 ? 'disabled' : '';
-        let nextDisabled = posts.length < LIMIT ? 'disabled' : '';
+        let nextDisabled = posts.length < LIMIT || (total != null && pageNum * LIMIT >= total) ? 'disabled' : '';
+        let totalText = total != null ? ` of ${Math.max(1, Math.ceil(total / LIMIT))} (${total.toLocaleString()} posts)` : '';
         let pathPrefix = twitterId ? `/account/${twitterId}` : '/';
         let prevPath = pathPrefix === '/' ? `/?page=${pageNum - 1}` : `${pathPrefix}?page=${pageNum - 1}`;
         let nextPath = pathPrefix === '/' ? `/?page=${pageNum + 1}` : `${pathPrefix}?page=${pageNum + 1}`;
 
         paginationDiv.innerHTML = `
             <button class="page-btn" ${prevDisabled} onclick="navigateTo('${prevPath}')">Previous Page</button>
-            <span class="pagination-text">Page ${pageNum}</span>
+            <span class="pagination-text">Page ${pageNum}${totalText}</span>
             <button class="page-btn" ${nextDisabled} onclick="navigateTo('${nextPath}')">Next Page</button>
         `;
     }
@@ -1205,6 +1226,7 @@ function applyFilters() {
     localStorage.setItem('sandstar_filters', JSON.stringify(selectedFilters));
 
     pageCache = {};
+    randomSeed = newRandomSeed();
     toggleFilters();
     router();
 }
@@ -1287,6 +1309,12 @@ async function updateRating(id, targetType, ratingType, value) {
     });
 }
 
+// Versioned thumbnail URLs are served as immutable, so browsers never ask for them again
+function thumbnailUrl(m) {
+    const base = `/api/media/${m.id}/thumbnail`;
+    return m.dataHash ? `${base}?v=${m.dataHash.slice(0, 16)}` : base;
+}
+
 function navigateTo(url) {
     saveScrollState();
     window.history.pushState({}, "", url);
@@ -1322,20 +1350,20 @@ searchBar.addEventListener('input', () => {
 
 async function performSearch(query) {
     try {
-        const [artistRes, accountRes] = await Promise.all([
-            fetch(`/api/artists?q=${encodeURIComponent(query)}`),
-            fetch(`/api/accounts?q=${encodeURIComponent(query)}`)
-        ]);
-        renderSearchResults(await artistRes.json(), await accountRes.json());
+        const cParams = selectedFilters.content.map(c => `&content=${encodeURIComponent(c)}`).join('');
+        const sParams = selectedFilters.safety.map(s => `&safety=${encodeURIComponent(s)}`).join('');
+        const res = await fetch(`/api/search?q=${encodeURIComponent(query)}&limit=5${cParams}${sParams}`);
+        const results = await res.json();
+        renderSearchResults(results.artists, results.accounts, results.posts);
     } catch (err) {
         console.error("Search failed", err);
     }
 }
 
-function renderSearchResults(artists, accounts) {
+function renderSearchResults(artists, accounts, posts) {
     searchResults.innerHTML = '';
 
-    if (artists.length === 0 && accounts.length === 0) {
+    if (artists.length === 0 && accounts.length === 0 && posts.length === 0) {
         const div = document.createElement('div');
         div.className = 'search-item';
         div.innerText = 'No results found';
@@ -1374,6 +1402,25 @@ function renderSearchResults(artists, accounts) {
         });
     }
 
+    if (posts.length > 0) {
+        const header = document.createElement('div');
+        header.className = 'search-header';
+        header.innerText = 'Posts';
+        searchResults.appendChild(header);
+
+        posts.forEach(post => {
+            const div = document.createElement('div');
+            div.className = 'search-item';
+            const text = document.createElement('div');
+            text.innerText = (post.postText || '').slice(0, 120);
+            const author = document.createElement('small');
+            author.innerText = `@${post.screenName}`;
+            div.append(text, author);
+            div.onclick = () => { navigateTo(`/post/${post.postId}`); closeSearch(); };
+            searchResults.appendChild(div);
+        });
+    }
+
     searchResults.classList.remove('hidden');
 }
 
@@ -1427,7 +1474,7 @@ function renderImageSearchResults(matches) {
         card.href = `/post/${m.postId}`;
 
         const filename = m.localPath.split(/[\\/]/).pop();
-        const thumbSrc = `/api/media/${m.id}/thumbnail`;
+        const thumbSrc = thumbnailUrl(m);
 
         card.innerHTML = `
             <div class="card-media-grid">
@@ -0,0 +1,191 @@
+package katworks.database;
+
+import katworks.Main;
+import katworks.database.WriteQueue.Priority;
+import katworks.impl.TwitterPost;
+import katworks.util.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Listing reads from the read-only pool, alone and while one thread saves posts through the write queue as fast as
+ * it commits them. Reads are the newest page of the archive or of one account, both uncached. The archive is seeded
+ * once per trial in a temporary directory.
+ * <p>
+ * Compare the score of {@code readsAlone} with the read score of {@code readsUnderIngest}. Both default to 4 readers.
+ * {@code -tg} applies to every group, so to change the count run the groups one at a time, with {@code -tg 8} and
+ * {@code -tg 8,1}. The numbers only mean something on hardware with more cores than threads. Run with {@code gradle jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReadUnderIngestBenchmark {
+    private static final List<String> RATINGS = List.of("KF", "NonKF");
+    private static final int ACCOUNTS = 100;
+    private static final int PAGE = 24;
+
+    @Param({"20000", "200000"})
+    public int seededPosts;
+
+    private Path directory;
+    private final AtomicLong nextPostId = new AtomicLong(1_000_000_000L);
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("read-under-ingest-benchmark");
+        Main.config = new Config(); //read by DatabaseHandler and WriteQueue when they are first used
+        Main.config.databasePath = directory.resolve("archive.db").toString();
+        Main.writeQueue = new WriteQueue();
+        Main.writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
+            try (Statement statement = conn.createStatement()) {
+                DatabaseHandler.createSchema(statement);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+        SchemaMigrations.runPending();
+        Main.writeQueue.runSyncWrite(Priority.BULK, conn -> {
+            try {
+                seed(conn);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        //the writer keeps its connection open, so the files can only go once the fork exits
+        try (Stream<Path> files = Files.list(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::deleteOnExit);
+        }
+        directory.toFile().deleteOnExit();
+    }
+
+    @Benchmark
+    @Group("readsAlone")
+    @GroupThreads(4)
+    public List<TwitterPost> readAlone(Reader reader) {
+        return read(reader.random);
+    }
+
+    @Benchmark
+    @Group("readsUnderIngest")
+    @GroupThreads(4)
+    public List<TwitterPost> read(Reader reader) {
+        return read(reader.random);
+    }
+
+    /**
+     * Saves one post with two media and waits for its commit, so the writer is never idle.
+     */
+    @Benchmark
+    @Group("readsUnderIngest")
+    @GroupThreads(1)
+    public Boolean ingest() {
+        long postId = nextPostId.getAndIncrement();
+        return Main.writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try (PreparedStatement post = conn.prepareStatement("INSERT OR IGNORE INTO posts (post_id, twitter_id, post_text, post_date, archive_date, safety_rating, content_rating) VALUES (?, ?, ?, ?, ?, 'Waiting', 'Waiting')");
+                 PreparedStatement media = conn.prepareStatement("INSERT INTO media (post_id, local_path, data_hash, perceptual_hash, filesize, media_index, safety_rating, content_rating) VALUES (?, ?, ?, ?, ?, ?, 'Waiting', 'Waiting')")) {
+                insertPost(post, media, new Random(postId), postId, System.currentTimeMillis());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return true;
+        }).join();
+    }
+
+    private static List<TwitterPost> read(Random random) {
+        if (random.nextBoolean()) {
+            return DatabaseHandler.getGlobalPostsPaged(PAGE, 0, null, RATINGS, List.of(), "newest");
+        }
+        String account = String.valueOf(1 + random.nextInt(ACCOUNTS));
+        return DatabaseHandler.getPostsByUserIdPaged(account, PAGE, 0, null, List.of(), List.of(), "newest");
+    }
+
+    private void seed(Connection conn) throws SQLException {
+        Random random = new Random(1);
+        try (PreparedStatement artist = conn.prepareStatement("INSERT INTO artists (id, name) VALUES (?, ?)");
+             PreparedStatement account = conn.prepareStatement("INSERT INTO twitter_accounts (twitter_id, artist_id, screen_name, account_status, download_status) VALUES (?, ?, ?, 'Active', 1)")) {
+            for (int i = 1; i <= ACCOUNTS; i++) {
+                artist.setInt(1, i);
+                artist.setString(2, "artist" + i);
+                artist.executeUpdate();
+                account.setString(1, String.valueOf(i));
+                account.setInt(2, i);
+                account.setString(3, "account" + i);
+                account.executeUpdate();
+            }
+        }
+        try (PreparedStatement post = conn.prepareStatement("INSERT INTO posts (post_id, twitter_id, post_text, post_date, archive_date, safety_rating, content_rating) VALUES (?, ?, ?, ?, ?, 'Safe', ?)");
+             PreparedStatement media = conn.prepareStatement("INSERT INTO media (post_id, local_path, data_hash, perceptual_hash, filesize, media_index, safety_rating, content_rating) VALUES (?, ?, ?, ?, ?, ?, 'Safe', ?)")) {
+            long date = 1_500_000_000_000L;
+            for (int i = 0; i < seededPosts; i++) {
+                date += random.nextInt(3_600_000);
+                String content = RATINGS.get(random.nextInt(RATINGS.size()));
+                post.setString(6, content);
+                media.setString(7, content);
+                insertPost(post, media, random, nextPostId.getAndIncrement(), date);
+            }
+        }
+    }
+
+    private static void insertPost(PreparedStatement post, PreparedStatement media, Random random, long postId, long date) throws SQLException {
+        String id = String.valueOf(postId);
+        post.setString(1, id);
+        post.setString(2, String.valueOf(1 + random.nextInt(ACCOUNTS)));
+        post.setString(3, "post " + id);
+        post.setLong(4, date);
+        post.setLong(5, date);
+        post.executeUpdate();
+        for (int m = 0; m < 2; m++) {
+            byte[] dataHash = new byte[16];
+            random.nextBytes(dataHash);
+            media.setString(1, id);
+            media.setString(2, "Safe/" + id + "_" + m + ".jpg");
+            media.setBytes(3, dataHash);
+            media.setLong(4, random.nextLong());
+            media.setLong(5, 100_000 + random.nextInt(900_000));
+            media.setInt(6, m);
+            media.executeUpdate();
+        }
+    }
+}
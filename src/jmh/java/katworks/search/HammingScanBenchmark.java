@@ -0,0 +1,85 @@
+package katworks.search;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One image search over the whole hash array, scalar, vectorized and fork-join, next to the multi-index at the
+ * widest threshold /api/search/image allows and at the default duplicate threshold.
+ * Run with {@code gradle jmh}. The jmh sources are compiled and forked with {@code --add-modules jdk.incubator.vector}
+ * from build.gradle, for {@link VectorHammingScan}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HammingScanBenchmark {
+    private static final int THRESHOLD = 15;
+    private static final int LIMIT = 50;
+
+    @Param({"100000", "1000000", "5000000"})
+    public int size;
+
+    private long[] hashes;
+    private int[] ids;
+    private long query;
+    private PerceptualHashIndex index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        hashes = new long[size];
+        ids = new int[size];
+        index = new PerceptualHashIndex();
+        for (int i = 0; i < size; i++) {
+            hashes[i] = random.nextLong();
+            ids[i] = i + 1;
+            index.append(ids[i], hashes[i]);
+        }
+        index.add(size + 1, random.nextLong()); //publishes the bucket tables
+        query = hashes[size / 2] ^ 0b1011_0110_0001L; //a near duplicate, 6 bits off
+    }
+
+    @Benchmark
+    public TopKHeap scalarScan() {
+        TopKHeap heap = new TopKHeap(LIMIT);
+        HammingScanner.scanInto(hashes, ids, 0, size, query, THRESHOLD, heap);
+        return heap;
+    }
+
+    @Benchmark
+    public TopKHeap vectorScan() {
+        TopKHeap heap = new TopKHeap(LIMIT);
+        VectorHammingScan.scanInto(hashes, ids, 0, size, query, THRESHOLD, heap);
+        return heap;
+    }
+
+    @Benchmark
+    public TopKHeap parallelScan() {
+        return HammingScanner.scan(hashes, ids, 0, size, query, THRESHOLD, LIMIT);
+    }
+
+    @Benchmark
+    public HashMatches indexSearchWidest() {
+        return index.search(query, THRESHOLD, LIMIT);
+    }
+
+    @Benchmark
+    public HashMatches indexSearchDuplicate() {
+        return index.search(query, 4, LIMIT);
+    }
+}
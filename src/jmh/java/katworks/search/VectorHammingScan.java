@@ -0,0 +1,48 @@
+package katworks.search;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of {@link HammingScanner#scanInto}, using the incubating Vector API, for {@link HammingScanBenchmark}.
+ * It lives with the benchmarks because the module is incubating: only the jmh source set is compiled and run with
+ * {@code --add-modules jdk.incubator.vector}, and the archive itself always scans with the scalar loop.
+ * <p>
+ * Java 17's Vector API has no per-lane bit count, so the distance is counted with the usual SWAR steps on every
+ * lane at once. Almost no hash is within the threshold, so lanes are only looked at one by one when a whole
+ * vector has a match.
+ */
+final class VectorHammingScan {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    private VectorHammingScan() {
+    }
+
+    static void scanInto(long[] hashes, int[] ids, int from, int to, long query, int threshold, TopKHeap heap) {
+        LongVector target = LongVector.broadcast(SPECIES, query);
+        int lanes = SPECIES.length();
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += lanes) {
+            LongVector distances = bitCount(LongVector.fromArray(SPECIES, hashes, i).lanewise(VectorOperators.XOR, target));
+            VectorMask<Long> matches = distances.compare(VectorOperators.LE, threshold);
+            if (!matches.anyTrue()) continue;
+            for (int lane = matches.firstTrue(); lane < lanes; lane++) {
+                if (matches.laneIsSet(lane)) heap.add(Long.bitCount(hashes[i + lane] ^ query), ids[i + lane]);
+            }
+        }
+        HammingScanner.scanInto(hashes, ids, i, to, query, threshold, heap);
+    }
+
+    //shifts instead of the multiply in the textbook version, 64-bit lane multiplies are slow or missing below AVX-512
+    private static LongVector bitCount(LongVector x) {
+        x = x.sub(x.lanewise(VectorOperators.LSHR, 1).and(0x5555555555555555L));
+        x = x.and(0x3333333333333333L).add(x.lanewise(VectorOperators.LSHR, 2).and(0x3333333333333333L));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 4)).and(0x0F0F0F0F0F0F0F0FL);
+        x = x.add(x.lanewise(VectorOperators.LSHR, 8));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 16));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 32));
+        return x.and(0x7F);
+    }
+}
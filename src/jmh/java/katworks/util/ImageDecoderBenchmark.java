@@ -0,0 +1,96 @@
+package katworks.util;
+
+import katworks.archive.ThumbnailService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding an original for its thumbnail: a full {@link ImageIO#read} against {@link ImageDecoder} subsampling to
+ * twice the thumbnail width, the way ThumbnailService calls it. The originals are drawn once per trial, line art
+ * over gradients and shapes, and written in the formats Twitter serves.
+ * Run with {@code gradle jmh}. Add {@code -prof gc} to the JMH arguments to see the allocation difference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageDecoderBenchmark {
+    @Param({"1920x1080", "4096x4096"})
+    public String dimensions;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    private File original;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] parts = dimensions.split("x");
+        BufferedImage image = draw(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        original = File.createTempFile("image-decoder-benchmark", "." + format);
+        ImageIO.write(image, format, original);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        original.delete();
+    }
+
+    @Benchmark
+    public BufferedImage imageIoRead() throws IOException {
+        return ImageIO.read(original);
+    }
+
+    @Benchmark
+    public BufferedImage decodeForThumbnail() throws IOException {
+        return ImageDecoder.decode(original, ThumbnailService.MAX_WIDTH * 2, 0);
+    }
+
+    private static BufferedImage draw(int width, int height) {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), width, height, new Color(random.nextInt(0xFFFFFF))));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 60; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fill(new Ellipse2D.Double(random.nextDouble() * width, random.nextDouble() * height, random.nextDouble() * width / 3, random.nextDouble() * height / 3));
+        }
+        g.setColor(Color.BLACK);
+        for (int i = 0; i < 400; i++) {
+            g.setStroke(new BasicStroke(1 + random.nextFloat() * 4));
+            g.draw(new CubicCurve2D.Double(random.nextDouble() * width, random.nextDouble() * height, random.nextDouble() * width, random.nextDouble() * height,
+                    random.nextDouble() * width, random.nextDouble() * height, random.nextDouble() * width, random.nextDouble() * height));
+        }
+        g.dispose();
+        return image;
+    }
+}
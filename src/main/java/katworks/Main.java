@@ -5,8 +5,11 @@ import dev.seeight.twitterscraper.TwitterApi;
 import dev.seeight.twitterscraper.features.FeatureFetcher;
 import katworks.archive.ScrapeService;
 import katworks.database.DatabaseHandler;
+import katworks.database.SchemaMigrations;
 import katworks.database.WriteQueue;
 import katworks.discord.DiscordMain;
+import katworks.search.PerceptualHashIndex;
+import katworks.twitter.TwitterScraper;
 import katworks.util.Config;
 import katworks.web.WebServer;
 import okhttp3.OkHttpClient;
@@ -19,6 +22,7 @@ public class Main {
     public static Config config;
     public static final OkHttpClient CLIENT = new OkHttpClient();
     public static WriteQueue writeQueue;
+    public static PerceptualHashIndex hashIndex;
     public static final LocalTime startTime = LocalTime.now();
 
     public static void main(String[] args) {
@@ -45,11 +49,19 @@ public class Main {
         //this MUST be scraped at least once per api object.
         api.page = FeatureFetcher.fetchTwitterPage(api.cookie, CLIENT, null);
 
-        if (!new File(config.databasePath).exists()) {
+        //check before the write queue opens a connection, which creates an empty database file.
+        boolean newDatabase = !new File(config.databasePath).exists();
+        writeQueue = new WriteQueue(); //global write queue that prevents any locked database issues
+        if (newDatabase) {
             DatabaseHandler.createDatabase(); //creates database with required schema.
         } else {
             System.out.println("おかえります! Welcome back to SandstArchive.");
         }
+        SchemaMigrations.start(); //brings older databases up to the current schema in the background.
+
+        hashIndex = new PerceptualHashIndex(); //resident index for image similarity search
+        hashIndex.load();
+        TwitterScraper.replayJournal(); //saves posts that were downloaded but not recorded before a crash.
 
         if (config.discordEnabled) {
             new DiscordMain().start();
@@ -59,7 +71,6 @@ public class Main {
             WebServer.start();
         }
 
-        writeQueue = new WriteQueue(); //global write queue that prevents any locked database issues
         new ScrapeService().start(); //service that runs scrapes for new content every 2 hours.
     }
 }
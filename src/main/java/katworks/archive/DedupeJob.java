@@ -0,0 +1,168 @@
+package katworks.archive;
+
+import katworks.database.DatabaseHandler;
+import katworks.discord.SendStatusMessage;
+import katworks.search.HashMatches;
+import katworks.search.PerceptualHashIndex;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static katworks.Main.config;
+import static katworks.Main.hashIndex;
+
+/**
+ * Archive-wide near-duplicate clustering. Every hash in the index is linked to its neighbours within the threshold
+ * with union-find, and each media then gets the lowest media ID of its cluster written to duplicate_of
+ * (or NULL if it is the lowest itself, or has no neighbours).
+ * <p>
+ * Clustering is done in memory and is cheap to redo. The database writes are done in batches through the write queue,
+ * each batch committing a checkpoint with it, so an interrupted run continues where it stopped when started again
+ * with the same threshold.
+ */
+public class DedupeJob {
+    private static final String JOB_NAME = "dedupe";
+    private static final int BATCH_SIZE = 1000;
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private static volatile String phase = "Idle";
+    private static volatile int threshold;
+    private static volatile int total;
+    private static volatile int processed;
+    private static volatile String lastResult;
+
+    /**
+     * Starts the job on a background thread.
+     * @param threshold Maximum hamming distance for two media to be in the same cluster.
+     * @return False if the job is already running.
+     */
+    public static boolean start(int threshold) {
+        if (!running.compareAndSet(false, true)) return false;
+        DedupeJob.threshold = threshold;
+        Thread thread = new Thread(() -> {
+            try {
+                run(threshold);
+            } catch (Exception e) {
+                lastResult = "Dedupe failed: " + e.getMessage();
+                System.err.println(lastResult);
+                e.printStackTrace();
+                if (config.discordEnabled) SendStatusMessage.sendMessage(lastResult);
+            } finally {
+                phase = "Idle";
+                running.set(false);
+            }
+        }, "dedupe-job");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return Current progress and the result of the last finished run, for the API and Discord.
+     */
+    public static Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("phase", phase);
+        status.put("threshold", threshold);
+        status.put("processed", processed);
+        status.put("total", total);
+        status.put("lastResult", lastResult);
+        return status;
+    }
+
+    private static void run(int threshold) {
+        long start = System.currentTimeMillis();
+        String params = "threshold=" + threshold;
+        System.out.println("Dedupe started with threshold " + threshold + ".");
+
+        PerceptualHashIndex.Entries entries = hashIndex.entries();
+        long[] hashes = entries.hashes;
+        int[] ids = entries.ids;
+        total = ids.length;
+        processed = 0;
+
+        //1. union every hash with its neighbours. positions are in id order, so the lowest position is the lowest id.
+        phase = "Clustering";
+        int[] parent = new int[ids.length];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+        for (int i = 0; i < ids.length; i++) {
+            HashMatches matches = hashIndex.search(hashes[i], threshold, Integer.MAX_VALUE);
+            for (int m = 0; m < matches.size; m++) {
+                if (matches.mediaIds[m] <= ids[i]) continue; //every pair is seen from both sides, only handle it once
+                int other = Arrays.binarySearch(ids, matches.mediaIds[m]);
+                if (other >= 0) union(parent, i, other); //negative means it was added after the job started
+            }
+            processed = i + 1;
+        }
+        long clusteredAt = System.currentTimeMillis();
+
+        //2. write the representative of each cluster, resuming after the last checkpointed media
+        phase = "Writing";
+        long resumeAfter = DatabaseHandler.getJobCheckpoint(JOB_NAME, params);
+        int[] batchIds = new int[BATCH_SIZE];
+        int[] batchDuplicateOf = new int[BATCH_SIZE];
+        int batchCount = 0;
+        int changed = 0;
+        int clusters = 0;
+        int duplicates = 0;
+        BitSet countedRoots = new BitSet(ids.length);
+        processed = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int root = find(parent, i);
+            if (root != i) {
+                duplicates++;
+                //only clusters that actually have duplicates are counted, singletons are not interesting
+                if (!countedRoots.get(root)) {
+                    countedRoots.set(root);
+                    clusters++;
+                }
+            }
+            processed = i + 1;
+            if (ids[i] <= resumeAfter) continue;
+
+            batchIds[batchCount] = ids[i];
+            batchDuplicateOf[batchCount] = root == i ? 0 : ids[root];
+            batchCount++;
+            if (batchCount == BATCH_SIZE || i == ids.length - 1) {
+                changed += DatabaseHandler.setDuplicateOfBatch(batchIds, batchDuplicateOf, batchCount, JOB_NAME, params, ids[i]).join();
+                batchCount = 0;
+            }
+        }
+        DatabaseHandler.clearJobCheckpoint(JOB_NAME);
+
+        long end = System.currentTimeMillis();
+        double seconds = Math.max(1, end - start) / 1000.0;
+        lastResult = String.format("Dedupe finished in %.1fs (%.0f media/s, clustering took %.1fs). %d media checked%s, %d clusters with %d duplicates, %d rows updated.",
+                seconds, ids.length / seconds, (clusteredAt - start) / 1000.0, ids.length,
+                resumeAfter > 0 ? " (resumed after media " + resumeAfter + ")" : "", clusters, duplicates, changed);
+        System.out.println(lastResult);
+        if (config.discordEnabled) SendStatusMessage.sendMessage(lastResult);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]]; //path halving
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Links the two clusters, always keeping the lower position as the root.
+     */
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA == rootB) return;
+        if (rootA < rootB) parent[rootB] = rootA;
+        else parent[rootA] = rootB;
+    }
+}
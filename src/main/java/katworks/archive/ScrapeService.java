@@ -2,6 +2,7 @@ package katworks.archive;
 
 import katworks.database.DatabaseHandler;
 import katworks.discord.SendStatusMessage;
+import katworks.impl.ArchiveStats;
 import katworks.impl.TwitterAccount;
 import katworks.twitter.TwitterScraper;
 
@@ -55,6 +56,22 @@ public class ScrapeService {
             }
         }
         System.out.println("Scrape cycle complete. Next scrape in " + config.checkIntervalHours + " hours.");
-        SendStatusMessage.sendMessage(discordStatusUpdate.append("\n```").toString());
+        //totals go first, long account lists get cut off at Discord's message limit
+        SendStatusMessage.sendMessage(archiveTotals() + discordStatusUpdate.append("\n```"));
+    }
+
+    /**
+     * One line with the archive's post, media and size totals and the moderation backlog, empty if the counters
+     * are not filled yet. Posts saved by this scrape that are still queued for writing are not counted yet.
+     */
+    private static String archiveTotals() {
+        ArchiveStats stats = DatabaseHandler.getArchiveStats(null);
+        if (stats == null) return "";
+        long waiting = 0;
+        for (ArchiveStats.RatingCounts counts : stats.ratings) {
+            if (counts.contentRating.equals("Waiting") || counts.safetyRating.equals("Waiting")) waiting += counts.posts;
+        }
+        return String.format("Archive: %d posts, %d media (%.1f GB), %d posts waiting for a rating.\n",
+                stats.posts, stats.media, stats.bytes / (1024.0 * 1024 * 1024), waiting);
     }
 }
@@ -0,0 +1,226 @@
+package katworks.archive;
+
+import katworks.database.DatabaseHandler;
+import katworks.impl.TwitterMedia;
+import katworks.util.ImageDecoder;
+import katworks.util.Metrics;
+import katworks.util.OffHeapCache;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static katworks.Main.config;
+
+/**
+ * Persistent thumbnail store. Thumbnails are JPEGs at most {@link #MAX_WIDTH} wide, written to
+ * {@code config.thumbnailPath} and keyed by media ID, so moving the original between rating folders does not affect them.
+ * Files are sharded into two levels of 256 folders by the low bytes of the ID to keep directories small.
+ * <p>
+ * New media get their thumbnail from a background worker pool as soon as they are saved. The web server only
+ * generates one itself when it is missing, e.g. for media archived before this existed and not yet backfilled.
+ */
+public class ThumbnailService {
+    public static final int MAX_WIDTH = 400;
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //hot thumbnails, bounded by total bytes instead of entry count and kept off the heap
+    private static final OffHeapCache<Integer> memoryCache = new OffHeapCache<>(config.thumbnailCacheMB * 1024L * 1024L);
+
+    private static final LongAdder generatedCounter = Metrics.counter("thumbnails.generated");
+
+    static {
+        memoryCache.registerMetrics("thumbnail_cache");
+    }
+
+    private static final AtomicBoolean backfillRunning = new AtomicBoolean(false);
+    private static final AtomicInteger backfillChecked = new AtomicInteger();
+    private static final AtomicInteger backfillGenerated = new AtomicInteger();
+    private static volatile String lastBackfillResult;
+
+    /**
+     * @return Where the thumbnail of a media is (or would be) stored, e.g. {@code thumbnailPath/2a/01/298.jpg}.
+     */
+    public static Path pathFor(int mediaId) {
+        return Paths.get(config.thumbnailPath, String.format("%02x", mediaId & 0xFF), String.format("%02x", (mediaId >>> 8) & 0xFF), mediaId + ".jpg");
+    }
+
+    /**
+     * Content version of a media for thumbnail URLs ({@code ?v=}). Taken from the SHA-256 of the original,
+     * so it only changes when the original itself is replaced.
+     * @return The version, or null if the media has no hash.
+     */
+    public static String versionOf(String dataHash) {
+        if (dataHash == null || dataHash.length() < 16) return null;
+        return dataHash.substring(0, 16);
+    }
+
+    /**
+     * @return Strong ETag for the thumbnail of a media, or null if the media has no hash.
+     * Includes {@link #MAX_WIDTH} so cached copies are dropped if the thumbnail size ever changes.
+     */
+    public static String etagFor(String dataHash) {
+        String version = versionOf(dataHash);
+        return version == null ? null : "\"" + version + "-" + MAX_WIDTH + "\"";
+    }
+
+    /**
+     * Queues thumbnail generation on the worker pool.
+     */
+    public static void generateAsync(int mediaId, String sourcePath) {
+        WORKERS.submit(() -> {
+            try {
+                generate(mediaId, sourcePath);
+            } catch (Exception e) {
+                System.err.println("Thumbnail generation failed for media " + mediaId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Generates and stores the thumbnail of a media, replacing any existing one.
+     * @param sourcePath Path to the original file.
+     * @return Path of the thumbnail, or null if the original is not an image (videos, missing files).
+     */
+    public static Path generate(int mediaId, String sourcePath) throws IOException {
+        if (sourcePath == null) return null;
+        Path source = Paths.get(sourcePath);
+        String lower = sourcePath.toLowerCase();
+        if (lower.endsWith(".mp4") || lower.endsWith(".webm") || !Files.exists(source)) return null;
+
+        //twice the target width so the bilinear scale below has real pixels to work with
+        BufferedImage original = ImageDecoder.decode(source.toFile(), MAX_WIDTH * 2, 0);
+        if (original == null) return null;
+
+        int width = original.getWidth();
+        int height = original.getHeight();
+        if (width > MAX_WIDTH) {
+            height = Math.max(1, (int) ((long) height * MAX_WIDTH / width));
+            width = MAX_WIDTH;
+        }
+        BufferedImage thumb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = thumb.createGraphics();
+        g2d.setColor(Color.WHITE); //JPEG has no alpha, transparent areas would turn black otherwise
+        g2d.fillRect(0, 0, width, height);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(original, 0, 0, width, height, null);
+        g2d.dispose();
+
+        //write next to the target and move it in place so readers never see a half written file
+        Path target = pathFor(mediaId);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), mediaId + "-", ".tmp");
+        try {
+            ImageIO.write(thumb, "jpg", temp.toFile());
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        memoryCache.remove(mediaId);
+        generatedCounter.increment();
+        return target;
+    }
+
+    /**
+     * Gets the thumbnail of a media, generating it if it does not exist yet.
+     * @param sourcePath Path to the original file, only used if the thumbnail has to be generated.
+     * @return Read-only buffer of the JPEG, or null if the media has no thumbnail (not an image).
+     */
+    public static ByteBuffer read(int mediaId, String sourcePath) throws IOException {
+        ByteBuffer stored = readStored(mediaId);
+        if (stored != null) return stored;
+
+        Path thumb = generate(mediaId, sourcePath);
+        if (thumb == null) return null;
+        byte[] data = Files.readAllBytes(thumb);
+        memoryCache.put(mediaId, data);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the thumbnail of a media only if it was already generated. Never decodes anything.
+     * @return Read-only buffer of the JPEG, or null if there is no stored thumbnail.
+     */
+    public static ByteBuffer readStored(int mediaId) throws IOException {
+        ByteBuffer cached = memoryCache.get(mediaId);
+        if (cached != null) return cached;
+
+        Path thumb = pathFor(mediaId);
+        if (!Files.exists(thumb)) return null;
+        byte[] data = Files.readAllBytes(thumb);
+        memoryCache.put(mediaId, data);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Starts generating thumbnails for every media that does not have one yet, in the background.
+     * @return False if a backfill is already running.
+     */
+    public static boolean startBackfill() {
+        if (!backfillRunning.compareAndSet(false, true)) return false;
+        Thread thread = new Thread(() -> {
+            try {
+                runBackfill();
+            } catch (Exception e) {
+                lastBackfillResult = "Thumbnail backfill failed: " + e.getMessage();
+                e.printStackTrace();
+            } finally {
+                backfillRunning.set(false);
+            }
+        }, "thumbnail-backfill");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public static Map<String, Object> backfillStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", backfillRunning.get());
+        status.put("checked", backfillChecked.get());
+        status.put("generated", backfillGenerated.get());
+        status.put("lastResult", lastBackfillResult);
+        return status;
+    }
+
+    private static void runBackfill() {
+        long start = System.currentTimeMillis();
+        backfillChecked.set(0);
+        backfillGenerated.set(0);
+        int afterId = 0;
+        while (true) {
+            List<TwitterMedia> page = DatabaseHandler.getMediaPathsAfter(afterId, 500);
+            if (page.isEmpty()) break;
+            for (TwitterMedia media : page) {
+                afterId = media.id;
+                backfillChecked.incrementAndGet();
+                if (Files.exists(pathFor(media.id))) continue;
+                try {
+                    if (generate(media.id, media.localPath) != null) backfillGenerated.incrementAndGet();
+                } catch (Exception e) {
+                    System.err.println("Thumbnail generation failed for media " + media.id + ": " + e.getMessage());
+                }
+            }
+        }
+        lastBackfillResult = "Thumbnail backfill checked " + backfillChecked.get() + " media and generated " + backfillGenerated.get() +
+                " thumbnails in " + (System.currentTimeMillis() - start) / 1000 + "s.";
+        System.out.println(lastBackfillResult);
+    }
+}
@@ -0,0 +1,189 @@
+package katworks.database;
+
+import katworks.impl.ArchiveStats;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Post, media and byte totals per account and rating pair, so totals and filter counts are a handful of primary key
+ * reads instead of {@code COUNT(*)} over posts and media.
+ * <p>
+ * archive_stats has one row per scope (the whole archive, or one account, like the post_random buckets of
+ * {@link PostSampler}) and content/safety rating pair. Posts are counted by the rating of the post, media and bytes
+ * by the rating of the media. Triggers on posts, media and twitter_accounts keep it up to date in the transaction
+ * of the write itself, so no write path has to know about it.
+ * <p>
+ * Only posts of accounts that still exist are counted, the same ones the listings show, which join twitter_accounts.
+ * Deleting an account leaves its posts behind (foreign keys are not enforced), so its rows are subtracted from the
+ * archive scope and dropped, and registering it again counts whatever it left behind.
+ */
+public class ArchiveCounters {
+    /** Schema version from which archive_stats is complete, see {@link SchemaMigrations}. */
+    static final int MIGRATION_VERSION = 8;
+    /** Schema version from which a deleted post's media are taken away before the post is gone. */
+    static final int MEDIA_BEFORE_POST_VERSION = 11;
+
+    //the account and archive scope of an account, empty if the account does not exist
+    private static final String SCOPES = "(SELECT twitter_id AS scope FROM twitter_accounts WHERE twitter_id = %1$s " +
+            "UNION ALL SELECT '" + PostSampler.ARCHIVE_SCOPE + "' FROM twitter_accounts WHERE twitter_id = %1$s)";
+    private static final String ACCOUNT_OF_MEDIA = "(SELECT twitter_id FROM posts WHERE post_id = %s.post_id)";
+    static final String STATS_OF_SCOPE = "SELECT content_rating, safety_rating, posts, media, bytes FROM archive_stats WHERE scope = ? ORDER BY content_rating, safety_rating";
+
+    //shared with createDatabase() and the migration, one statement per string
+    static final List<String> SCHEMA = List.of(
+            "CREATE TABLE IF NOT EXISTS archive_stats (\n" +
+                    "    scope TEXT NOT NULL,\n" + //'' for the whole archive, otherwise the account's twitter_id
+                    "    content_rating TEXT NOT NULL,\n" +
+                    "    safety_rating TEXT NOT NULL,\n" +
+                    "    posts INTEGER NOT NULL,\n" +
+                    "    media INTEGER NOT NULL,\n" +
+                    "    bytes INTEGER NOT NULL,\n" + //sum of media.filesize
+                    "    PRIMARY KEY (scope, content_rating, safety_rating)\n" +
+                    ") WITHOUT ROWID;",
+            "CREATE TRIGGER IF NOT EXISTS posts_stats_insert AFTER INSERT ON posts BEGIN\n" +
+                    countPost("NEW", "") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS posts_stats_delete AFTER DELETE ON posts BEGIN\n" +
+                    countPost("OLD", "-") +
+                    "END;",
+            //media that outlive their post are no longer counted, their own delete trigger cannot find the post to
+            //take them from. BEFORE, so the media are still there even if the delete cascades to them
+            "CREATE TRIGGER IF NOT EXISTS posts_media_stats_delete BEFORE DELETE ON posts BEGIN\n" +
+                    add("SELECT s.scope, ifnull(m.content_rating, ''), ifnull(m.safety_rating, ''), 0, -count(*), -ifnull(sum(m.filesize), 0) " +
+                            "FROM media m, " + String.format(SCOPES, "OLD.twitter_id") + " s WHERE m.post_id = OLD.post_id GROUP BY 1, 2, 3") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS posts_stats_update AFTER UPDATE OF content_rating, safety_rating ON posts\n" +
+                    "WHEN ifnull(OLD.content_rating, '') != ifnull(NEW.content_rating, '') OR ifnull(OLD.safety_rating, '') != ifnull(NEW.safety_rating, '') BEGIN\n" +
+                    countPost("OLD", "-") + countPost("NEW", "") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS media_stats_insert AFTER INSERT ON media BEGIN\n" +
+                    countMedia("NEW", "") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS media_stats_delete AFTER DELETE ON media BEGIN\n" +
+                    countMedia("OLD", "-") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS media_stats_update AFTER UPDATE OF content_rating, safety_rating, filesize ON media\n" +
+                    "WHEN ifnull(OLD.content_rating, '') != ifnull(NEW.content_rating, '') OR ifnull(OLD.safety_rating, '') != ifnull(NEW.safety_rating, '')\n" +
+                    "    OR OLD.filesize IS NOT NEW.filesize BEGIN\n" +
+                    countMedia("OLD", "-") + countMedia("NEW", "") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS accounts_stats_insert AFTER INSERT ON twitter_accounts BEGIN\n" +
+                    countAccount("NEW.twitter_id") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS accounts_stats_delete AFTER DELETE ON twitter_accounts BEGIN\n" +
+                    add("SELECT '" + PostSampler.ARCHIVE_SCOPE + "', content_rating, safety_rating, -posts, -media, -bytes FROM archive_stats WHERE scope = OLD.twitter_id") +
+                    "    DELETE FROM archive_stats WHERE scope = OLD.twitter_id;\n" +
+                    "END;"
+    );
+
+    /**
+     * Trigger statement that adds the rows of a SELECT (scope, content_rating, safety_rating, posts, media, bytes)
+     * to the counters. The SELECT needs a WHERE or GROUP BY, otherwise SQLite reads ON CONFLICT as a join constraint.
+     */
+    private static String add(String select) {
+        return "    INSERT INTO archive_stats (scope, content_rating, safety_rating, posts, media, bytes)\n" +
+                "    " + select + "\n" +
+                "    ON CONFLICT (scope, content_rating, safety_rating) DO UPDATE SET posts = posts + excluded.posts, " +
+                "media = media + excluded.media, bytes = bytes + excluded.bytes;\n";
+    }
+
+    /**
+     * Trigger statement that counts the post row in both its scopes.
+     * @param sign "" to add the post, "-" to take it away.
+     */
+    private static String countPost(String row, String sign) {
+        return add("SELECT s.scope, ifnull(" + row + ".content_rating, ''), ifnull(" + row + ".safety_rating, ''), " + sign + "1, 0, 0 " +
+                "FROM " + String.format(SCOPES, row + ".twitter_id") + " s WHERE true");
+    }
+
+    /**
+     * Trigger statement that counts the media row in both scopes of its post's account.
+     * @param sign "" to add the media, "-" to take it away.
+     */
+    private static String countMedia(String row, String sign) {
+        return add("SELECT s.scope, ifnull(" + row + ".content_rating, ''), ifnull(" + row + ".safety_rating, ''), 0, " + sign + "1, " + sign + "ifnull(" + row + ".filesize, 0) " +
+                "FROM " + String.format(SCOPES, String.format(ACCOUNT_OF_MEDIA, row)) + " s WHERE true");
+    }
+
+    /**
+     * Statements that count every post and media of an account that exists, in both its scopes.
+     */
+    private static String countAccount(String twitterId) {
+        String scopes = String.format(SCOPES, twitterId);
+        return add("SELECT s.scope, ifnull(p.content_rating, ''), ifnull(p.safety_rating, ''), count(*), 0, 0 " +
+                "FROM posts p, " + scopes + " s WHERE p.twitter_id = " + twitterId + " GROUP BY 1, 2, 3") +
+                add("SELECT s.scope, ifnull(m.content_rating, ''), ifnull(m.safety_rating, ''), 0, count(*), ifnull(sum(m.filesize), 0) " +
+                        "FROM posts p JOIN media m ON m.post_id = p.post_id, " + scopes + " s WHERE p.twitter_id = " + twitterId + " GROUP BY 1, 2, 3");
+    }
+
+    /**
+     * Recounts everything from posts and media. Run in the task that creates the triggers, so nothing is counted twice.
+     */
+    static void rebuild(Connection conn) throws SQLException {
+        try (Statement s = conn.createStatement()) {
+            s.executeUpdate("DELETE FROM archive_stats");
+            s.executeUpdate("INSERT INTO archive_stats (scope, content_rating, safety_rating, posts, media, bytes) " +
+                    "SELECT p.twitter_id, ifnull(p.content_rating, ''), ifnull(p.safety_rating, ''), count(*), 0, 0 " +
+                    "FROM posts p JOIN twitter_accounts a ON a.twitter_id = p.twitter_id GROUP BY 1, 2, 3");
+            s.executeUpdate(add("SELECT p.twitter_id, ifnull(m.content_rating, ''), ifnull(m.safety_rating, ''), 0, count(*), ifnull(sum(m.filesize), 0) " +
+                    "FROM posts p JOIN twitter_accounts a ON a.twitter_id = p.twitter_id JOIN media m ON m.post_id = p.post_id GROUP BY 1, 2, 3"));
+            s.executeUpdate("INSERT INTO archive_stats (scope, content_rating, safety_rating, posts, media, bytes) " +
+                    "SELECT '" + PostSampler.ARCHIVE_SCOPE + "', content_rating, safety_rating, sum(posts), sum(media), sum(bytes) FROM archive_stats GROUP BY 2, 3");
+        }
+    }
+
+    /**
+     * Query summing the posts of one scope that match the rating filters, the same posts a listing with these
+     * filters returns.
+     * @param scope twitter_id, or {@link PostSampler#ARCHIVE_SCOPE}.
+     * @param params Filled with the values to bind, in order.
+     */
+    static String countPostsQuery(String scope, List<String> contentFilters, List<String> safetyFilters, List<Object> params) {
+        StringBuilder sql = new StringBuilder("SELECT ifnull(sum(posts), 0) FROM archive_stats WHERE scope = ?");
+        params.add(scope);
+        appendIn(sql, "content_rating", contentFilters, params);
+        appendIn(sql, "safety_rating", safetyFilters, params);
+        return sql.toString();
+    }
+
+    private static void appendIn(StringBuilder sql, String column, List<String> values, List<Object> params) {
+        if (values == null || values.isEmpty()) return; //no filter, every rating
+        sql.append(" AND ").append(column).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            params.add(values.get(i));
+        }
+        sql.append(")");
+    }
+
+    /**
+     * Reads the totals and the counters per rating pair of one scope.
+     */
+    static ArchiveStats read(Connection conn, String scope) throws SQLException {
+        ArchiveStats stats = new ArchiveStats();
+        try (PreparedStatement ps = conn.prepareStatement(STATS_OF_SCOPE)) {
+            ps.setString(1, scope);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ArchiveStats.RatingCounts counts = new ArchiveStats.RatingCounts();
+                    counts.contentRating = rs.getString("content_rating");
+                    counts.safetyRating = rs.getString("safety_rating");
+                    counts.posts = rs.getLong("posts");
+                    counts.media = rs.getLong("media");
+                    counts.bytes = rs.getLong("bytes");
+                    if (counts.posts == 0 && counts.media == 0) continue; //every post of the pair was re-rated
+                    stats.posts += counts.posts;
+                    stats.media += counts.media;
+                    stats.bytes += counts.bytes;
+                    stats.ratings.add(counts);
+                }
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,39 @@
+package katworks.database;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Eviction for the caches in front of the database ({@link SessionCache}, {@link EntityCache}), which keep their
+ * entries in a concurrent map bounded by count.
+ */
+final class CacheEviction {
+    private CacheEviction() { }
+
+    /**
+     * Makes room in a full map by dropping expired entries and then, if that was not enough, the tenth that ranks
+     * lowest. One thread evicts from a map at a time, the ones that waited for it find there is room already.
+     * @param expired Entries that can go first, null if entries do not expire on their own.
+     * @param rank Lowest goes first, e.g. when the entry was loaded.
+     * @return How many entries were dropped.
+     */
+    static <K, V> int evict(Map<K, V> entries, int maxEntries, Predicate<V> expired, ToLongFunction<V> rank) {
+        synchronized (entries) {
+            if (entries.size() < maxEntries) return 0; //another thread already made room
+            int before = entries.size();
+            if (expired != null) entries.values().removeIf(expired);
+            if (entries.size() >= maxEntries) {
+                List<Map.Entry<K, V>> lowest = new ArrayList<>(entries.entrySet());
+                lowest.sort(Comparator.comparingLong(e -> rank.applyAsLong(e.getValue())));
+                for (Map.Entry<K, V> e : lowest.subList(0, Math.max(1, lowest.size() / 10))) {
+                    entries.remove(e.getKey(), e.getValue());
+                }
+            }
+            return before - entries.size();
+        }
+    }
+}
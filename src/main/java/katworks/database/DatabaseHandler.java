@@ -2,7 +2,10 @@ package katworks.database;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import katworks.database.WriteQueue.Priority;
 import katworks.impl.*;
+import katworks.search.HashMatches;
+import katworks.search.PerceptualHashIndex;
 import net.dv8tion.jda.api.entities.User;
 import org.sqlite.SQLiteConfig;
 
@@ -15,34 +18,83 @@ import java.sql.*;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static katworks.Main.config;
+import static katworks.Main.hashIndex;
 import static katworks.Main.writeQueue;
 
 public class DatabaseHandler {
     private static final String dbUrl = "jdbc:sqlite:" + config.databasePath;
     private static final String ALPHANUMERIC = "abcdefghijkmnpqrstuvwxyzABCDEFGHJKLMNPQRSTUVWXYZ0123456789";
     private static final SecureRandom RANDOM = new SecureRandom();
+    private static final String ACCOUNT_COLUMNS = "twitter_id, artist_id, screen_name, display_name, account_status, is_protected, last_scraped_id, download_status, discord_thread_id, safety_rating";
+    private static final int SEARCH_NAME_LIMIT = 20; //artists and accounts returned by search()
+
+    //point lookups, package-private so QueryPlanTest checks the statements that actually run
+    static final String ACCOUNT_BY_SCREEN_NAME = "SELECT " + ACCOUNT_COLUMNS + " FROM twitter_accounts WHERE screen_name = ?";
+    static final String ACCOUNTS_OF_ARTIST = "SELECT " + ACCOUNT_COLUMNS + " FROM twitter_accounts WHERE artist_id = ?";
+    static final String ARTIST_BY_ID = "SELECT id, name, description FROM artists WHERE id = ?";
+    static final String ARTIST_ID_BY_NAME = "SELECT id FROM artists WHERE name = ?";
+    static final String ALIASES_OF_ARTIST = "SELECT id, artist_id, alias_name, safety_rating FROM aliases WHERE artist_id = ?";
+    static final String MEDIA_OF_POST = "SELECT id, local_path FROM media WHERE post_id = ?";
+    static final String MEDIA_BY_DATA_HASH = "SELECT id, duplicate_of FROM media WHERE data_hash = ? ORDER BY id LIMIT 1";
+    static final String POSTS_OF_ACCOUNT = "SELECT p.post_id, p.twitter_id, p.post_text, p.post_date, p.archive_date, " +
+            "p.safety_rating AS p_safety, p.content_rating AS p_content, " +
+            "m.id, m.media_type, m.original_url, m.local_path, m.caption, m.media_index, " +
+            "m.perceptual_hash, m.data_hash, m.duplicate_of, m.width, m.height, m.filesize, " +
+            "m.safety_rating AS m_safety, m.content_rating AS m_content " +
+            "FROM posts p " +
+            "LEFT JOIN media m ON p.post_id = m.post_id " +
+            "WHERE p.twitter_id = ? " +
+            "ORDER BY p.post_date DESC, m.media_index ASC";
+    static final String SESSION_BY_TOKEN = "SELECT u.id, u.username, u.email, u.password_hash, u.role, " +
+            "u.restriction_level, u.banned, u.invite_key_used, u.note, " +
+            "u.about_me, u.creation_date, s.expires_at " +
+            "FROM sessions s " +
+            "JOIN users u ON s.user_id = u.id " +
+            "WHERE s.session_token = ?";
+    static final String BOT_TOKEN_OF_USER = "SELECT session_token FROM sessions WHERE user_id = ? AND token_type = 'Bot' LIMIT 1";
     private static final HikariDataSource dataSource;
+    private static final SessionCache sessions = new SessionCache(config.sessionCacheSize);
+    private static final EntityCache<String, TwitterPost> postCache = new EntityCache<>("posts", config.entityCacheSize);
+    private static final EntityCache<Integer, TwitterMedia> mediaCache = new EntityCache<>("media", config.entityCacheSize);
+    private static final EntityCache<String, TwitterAccount> accountCache = new EntityCache<>("accounts", config.entityCacheSize);
+    private static final EntityCache<Integer, ArtistDetails> artistCache = new EntityCache<>("artists", config.entityCacheSize);
+    //starts at the startup time, so versions (and the ETags made from them) are not handed out again after a restart
+    private static final AtomicLong archiveVersion = new AtomicLong(System.currentTimeMillis());
 
     static {
         HikariConfig hkConfig = new HikariConfig();
         hkConfig.setJdbcUrl(dbUrl);
-        // SQLite doesn't need huge pools. 10 is plenty for high concurrency.
-        hkConfig.setMaximumPoolSize(10);
+        hkConfig.setPoolName("sqlite-readers");
+        // Readers never block each other in WAL mode, so one per core keeps every core busy without oversubscribing.
+        hkConfig.setMaximumPoolSize(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        hkConfig.setReadOnly(true); // has to agree with the SQLite flag below, sqlite-jdbc cannot change it after opening
+        hkConfig.setConnectionInitSql("PRAGMA query_only = ON;");
 
         // Pass the SQLite properties directly to the pool so they only happen ONCE
         SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setReadOnly(true);
         sqliteConfig.setBusyTimeout(5000);
-        sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
-        sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(256L * 1024 * 1024));
+        sqliteConfig.setCacheSize(-16 * 1024); // negative is KiB, so 16MB of page cache per reader
+        sqliteConfig.setTempStore(SQLiteConfig.TempStore.MEMORY);
         hkConfig.setDataSourceProperties(sqliteConfig.toProperties());
 
         dataSource = new HikariDataSource(hkConfig);
     }
 
+    /**
+     * Gets a connection from the read-only pool. Anything that changes the database has to go through
+     * {@code writeQueue}, which owns the only writable connection.
+     */
     public static Connection getConnection() throws SQLException {
         return dataSource.getConnection();
     }
@@ -71,18 +123,20 @@ public class DatabaseHandler {
 
     /**
      * Sets the last scraped twitter ID for the specified twitter account ID.
+     * Queued as bulk work in the order of the account's other writes, like the posts of the scrape it comes from.
      * @param twitterId
      * @param lastScrapedId
      * @return
      */
     public static void setLastScrapedId(String twitterId, String lastScrapedId) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.BULK, twitterId, conn -> {
             String sql = "UPDATE twitter_accounts SET last_scraped_id = ? WHERE twitter_id = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, lastScrapedId);
                 ps.setString(2, twitterId);
 
                 ps.executeUpdate();
+                accountChanged(twitterId);
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -90,13 +144,15 @@ public class DatabaseHandler {
     }
 
     public static void setLastScrapedIdByName(String screenname, String lastScrapedId) {
-        writeQueue.runAsyncWrite(conn -> {
+        //after the scrape's own setLastScrapedId, which would otherwise overwrite this when it runs later
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, getAccountByScreenName(screenname).twitterId, conn -> {
             String sql = "UPDATE twitter_accounts SET last_scraped_id = ? WHERE screen_name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, lastScrapedId);
                 ps.setString(2, screenname);
 
                 ps.executeUpdate();
+                accountsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -110,13 +166,14 @@ public class DatabaseHandler {
      * @return
      */
     public static void setDiscordThreadId(String twitterId, String discordThreadId) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE twitter_accounts SET discord_thread_id = ? WHERE twitter_id = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, discordThreadId);
                 ps.setString(2, twitterId);
 
                 ps.executeUpdate();
+                accountChanged(twitterId);
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -128,12 +185,13 @@ public class DatabaseHandler {
      */
     public static void setAccountStatus(String screenName, String status) {
         if (status.equals(AccountStatus.ACTIVE) || status.equals(AccountStatus.DELETED) || status.equals(AccountStatus.SUSPENDED)) {
-            writeQueue.runAsyncWrite(conn -> {
+            writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
                 String sql = "UPDATE twitter_accounts SET account_status = ? WHERE screen_name = ?";
                 try (PreparedStatement ps = conn.prepareStatement(sql)) {
                     ps.setString(1, status);
                     ps.setString(2, screenName);
                     ps.executeUpdate();
+                    accountsChanged();
                 } catch (SQLException e) {
                     throw new RuntimeException(e);
                 }
@@ -151,13 +209,14 @@ public class DatabaseHandler {
      * @return
      */
     public static void setDownloadStatus(String screenName, boolean downloadStaus) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE twitter_accounts SET download_status = ? WHERE screen_name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setBoolean(1, downloadStaus);
                 ps.setString(2, screenName);
 
                 ps.executeUpdate();
+                accountsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -171,13 +230,14 @@ public class DatabaseHandler {
      * @return
      */
     public static void setProtected(String screenName, boolean protect) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE twitter_accounts SET is_protected = ? WHERE screen_name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setBoolean(1, protect);
                 ps.setString(2, screenName);
 
                 ps.executeUpdate();
+                accountsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -190,13 +250,14 @@ public class DatabaseHandler {
      * @param newDisplayName
      */
     public static void setDisplayName(String screenName, String newDisplayName) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE twitter_accounts SET display_name = ? WHERE screen_name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1,newDisplayName);
                 ps.setString(2,screenName);
 
                 ps.executeUpdate();
+                accountsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -205,13 +266,14 @@ public class DatabaseHandler {
 
     public static void setAccountSafetyRating(String screenName, String newSafetyRating) {
         if (!config.safetyRatings.contains(newSafetyRating) && !newSafetyRating.equals("Waiting")) return;
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE twitter_accounts SET safety_rating = ? WHERE screen_name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1,newSafetyRating);
                 ps.setString(2,screenName);
 
                 ps.executeUpdate();
+                accountsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -219,12 +281,17 @@ public class DatabaseHandler {
     }
 
     public static void deleteAccountByScreenName(String screenName) {
-        writeQueue.runAsyncWrite(conn -> {
+        //after the posts that are already queued for the account
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, getAccountByScreenName(screenName).twitterId, conn -> {
             String sql = "DELETE FROM twitter_accounts WHERE screen_name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1,screenName);
 
                 ps.executeUpdate();
+                //foreign keys are not enforced, so its posts and media stay behind unchanged and the cached
+                //entries are still right. The listings stop showing them, they join twitter_accounts
+                accountsChanged();
+                listingsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -298,15 +365,7 @@ public class DatabaseHandler {
         List<TwitterPost> posts = new ArrayList<>();
         //gemini wrote this. it works and is way more safe and efficient than anything i could make.
         //join media and posts tables
-        String sql = "SELECT p.post_id, p.twitter_id, p.post_text, p.post_date, p.archive_date, " +
-                "p.safety_rating AS p_safety, p.content_rating AS p_content, " +
-                "m.id, m.media_type, m.original_url, m.local_path, m.caption, m.media_index, " +
-                "m.perceptual_hash, m.data_hash, m.duplicate_of, m.width, m.height, m.filesize, " +
-                "m.safety_rating AS m_safety, m.content_rating AS m_content " +
-                "FROM posts p " +
-                "LEFT JOIN media m ON p.post_id = m.post_id " +
-                "WHERE p.twitter_id = ? " +
-                "ORDER BY p.post_date DESC, m.media_index ASC";
+        String sql = POSTS_OF_ACCOUNT;
 
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, twitterId);
@@ -343,8 +402,8 @@ public class DatabaseHandler {
                         m.localPath = rs.getString("local_path");
                         m.caption = rs.getString("caption");
                         m.mediaIndex = rs.getInt("media_index");
-                        m.perceptualHash = rs.getString("perceptual_hash");
-                        m.dataHash = rs.getString("data_hash");
+                        m.perceptualHash = readPerceptualHash(rs);
+                        m.dataHash = readDataHash(rs);
                         m.duplicateOf = rs.getInt("duplicate_of");
                         m.width = rs.getInt("width");
                         m.height = rs.getInt("height");
@@ -363,7 +422,19 @@ public class DatabaseHandler {
         return posts;
     }
 
+    /**
+     * Looks the account up through the entity cache. Returns an empty account (null twitterId) if there is none.
+     * The returned account may be shared, do not modify it.
+     */
     public static TwitterAccount getAccountById(String twitterId) {
+        TwitterAccount account = accountCache.get(twitterId, id -> {
+            TwitterAccount loaded = loadAccount(id);
+            return loaded.twitterId != null ? loaded : null;
+        });
+        return account != null ? account : new TwitterAccount();
+    }
+
+    private static TwitterAccount loadAccount(String twitterId) {
         TwitterAccount account = new TwitterAccount();
         String sql = "SELECT twitter_id, artist_id, screen_name, display_name, account_status, is_protected, last_scraped_id, download_status, discord_thread_id, safety_rating " +
                 "FROM twitter_accounts " +
@@ -390,9 +461,7 @@ public class DatabaseHandler {
 
     public static TwitterAccount getAccountByScreenName(String screenName) {
         TwitterAccount account = new TwitterAccount();
-        String sql = "SELECT twitter_id, artist_id, screen_name, display_name, account_status, is_protected, last_scraped_id, download_status, discord_thread_id, safety_rating " +
-                "FROM twitter_accounts " +
-                "WHERE screen_name = ?";
+        String sql = ACCOUNT_BY_SCREEN_NAME;
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1,screenName);
             try (ResultSet rs = ps.executeQuery()) {
@@ -441,7 +510,7 @@ public class DatabaseHandler {
         String finalArtistName = artistName;
         String finalScreenName = screenName;
         String finalDisplayName = displayName;
-        return writeQueue.runAsyncWriteWithResult(conn -> {
+        return writeQueue.runAsyncWriteWithResult(Priority.INTERACTIVE, conn -> {
             String responseMessage = "";
 
             try {
@@ -460,7 +529,7 @@ public class DatabaseHandler {
 
                 // 2. Safe Artist Resolve
                 int artistId = -1;
-                String artistCheckSql = "SELECT id FROM artists WHERE name = ?";
+                String artistCheckSql = ARTIST_ID_BY_NAME;
                 try (PreparedStatement artistStmt = conn.prepareStatement(artistCheckSql)) {
                     artistStmt.setString(1, finalArtistName);
                     try (ResultSet rs = artistStmt.executeQuery()) {
@@ -504,6 +573,7 @@ public class DatabaseHandler {
                 }
 
                 conn.commit();
+                accountChanged(finalTwitterId);
                 return responseMessage + "Account registered successfully.";
 
             } catch (Exception e) {
@@ -546,136 +616,244 @@ public class DatabaseHandler {
      */
     public static void setMediaCaption(String id, String captionText) {
         if (captionText == null) return;
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE media SET caption = ? WHERE id = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, captionText);
                 ps.setString(2, id);
                 ps.executeUpdate();
+                mediaChanged(conn, Integer.parseInt(id));
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
         });
     }
 
+    // ==========================================
+    // ENTITY CACHE INVALIDATION
+    // ==========================================
+    // Called from inside write tasks that change what getPostDetails(), getMediaById(), getAccountById(),
+    // getArtistDetailsById() or the post listings return. The cached entries are dropped once the task has committed.
+
+    public static void postChanged(String postId) {
+        writeQueue.afterCommit(() -> postCache.invalidate(postId));
+    }
+
+    /**
+     * @param postId The post the media belongs to, whose details list it too. May be null if it is invalidated separately.
+     */
+    public static void mediaChanged(int mediaId, String postId) {
+        writeQueue.afterCommit(() -> {
+            mediaCache.invalidate(mediaId);
+            if (postId != null) postCache.invalidate(postId);
+        });
+    }
+
+    /**
+     * Same as {@link #mediaChanged(int, String)}, looking up the post of the media.
+     */
+    static void mediaChanged(Connection conn, int mediaId) throws SQLException {
+        String postId = null;
+        try (PreparedStatement ps = conn.prepareStatement("SELECT post_id FROM media WHERE id = ?")) {
+            ps.setInt(1, mediaId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) postId = rs.getString(1);
+            }
+        }
+        mediaChanged(mediaId, postId);
+    }
+
+    public static void accountChanged(String twitterId) {
+        writeQueue.afterCommit(() -> {
+            accountCache.invalidate(twitterId);
+            artistCache.invalidateAll(); //artist details list their accounts
+        });
+    }
+
+    /**
+     * For writes that find the account by screen name, which the cache is not keyed by.
+     */
+    public static void accountsChanged() {
+        writeQueue.afterCommit(() -> {
+            accountCache.invalidateAll();
+            artistCache.invalidateAll();
+        });
+    }
+
+    public static void artistChanged(int artistId) {
+        writeQueue.afterCommit(() -> artistCache.invalidate(artistId));
+    }
+
+    /**
+     * For writes that find the artist by name, which the cache is not keyed by.
+     */
+    public static void artistsChanged() {
+        writeQueue.afterCommit(artistCache::invalidateAll);
+    }
+
+    /**
+     * For writes that change what the post listings return: new posts, rating changes and deleted accounts.
+     * Bumps {@link #getArchiveVersion()}.
+     */
+    public static void listingsChanged() {
+        writeQueue.afterCommit(archiveVersion::incrementAndGet);
+    }
+
+    /**
+     * Version of the post listings. Any page read under the same version is still current, so the web server keys
+     * its page cache and listing ETags by it.
+     */
+    public static long getArchiveVersion() {
+        return archiveVersion.get();
+    }
+
+    /**
+     * Creates every table and index of the current schema. Shared with {@code QueryPlanTest}, which builds its
+     * synthetic archive from the same statements.
+     */
+    static void createSchema(Statement statement) throws SQLException {
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS artists (\n" +
+                        "    id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+                        "    name TEXT NOT NULL COLLATE NOCASE,\n" +
+                        "    description TEXT\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS aliases (\n" +
+                        "    id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+                        "    artist_id INTEGER NOT NULL,\n" +
+                        "    alias_name TEXT NOT NULL COLLATE NOCASE,\n" +
+                        "    safety_rating TEXT,\n" +
+                        "    FOREIGN KEY (artist_id) REFERENCES artists(id) ON DELETE CASCADE\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS twitter_accounts (\n" +
+                        "    twitter_id TEXT PRIMARY KEY,\n" +
+                        "    artist_id INTEGER NOT NULL,\n" +
+                        "    screen_name TEXT NOT NULL COLLATE NOCASE,\n" +
+                        "    display_name TEXT,\n" +
+                        "    account_status TEXT,\n" +
+                        "    is_protected INTEGER DEFAULT 0,\n" +
+                        "    last_scraped_id TEXT,\n" +
+                        "    download_status INTEGER DEFAULT 1,\n" +
+                        "    discord_thread_id TEXT,\n" +
+                        "    safety_rating TEXT,\n" +
+                        "    FOREIGN KEY (artist_id) REFERENCES artists(id) ON DELETE CASCADE\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS posts (\n" +
+                        "    post_id TEXT PRIMARY KEY,\n" +
+                        "    twitter_id TEXT NOT NULL,\n" +
+                        "    post_text TEXT,\n" +
+                        "    post_date INTEGER,\n" +
+                        "    archive_date INTEGER,\n" +
+                        "    safety_rating TEXT,\n" +
+                        "    content_rating INTEGER,\n" +
+                        "    FOREIGN KEY (twitter_id) REFERENCES twitter_accounts(twitter_id) ON DELETE CASCADE\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS media (\n" +
+                        "    id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+                        "    post_id TEXT NOT NULL,\n" +
+                        "    media_type TEXT,\n" +
+                        "    original_url TEXT,\n" +
+                        "    local_path TEXT,\n" +
+                        "    caption TEXT,\n" +
+                        "    safety_rating TEXT,\n" +
+                        "    content_rating TEXT,\n" +
+                        "    media_index INTEGER,\n" +
+                        "    perceptual_hash INTEGER,\n" +
+                        "    data_hash BLOB,\n" +
+                        "    duplicate_of INTEGER,\n" +
+                        "    width INTEGER,\n" +
+                        "    height INTEGER,\n" +
+                        "    filesize INTEGER,\n" +
+                        "    FOREIGN KEY (post_id) REFERENCES posts(post_id) ON DELETE CASCADE,\n" +
+                        "    FOREIGN KEY (duplicate_of) REFERENCES media(id) ON DELETE SET NULL\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS users(\n" +
+                        "   id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+                        "   username TEXT UNIQUE COLLATE NOCASE NOT NULL,\n" +
+                        "   email TEXT UNIQUE COLLATE NOCASE,\n" + //email is optional
+                        "   password_hash TEXT NOT NULL,\n" +
+                        "   role TEXT NOT NULL DEFAULT 'Read',\n" +
+                        "   restriction_level TEXT DEFAULT 'None',\n" +
+                        "   banned INTEGER NOT NULL DEFAULT 0,\n" +
+                        "   invite_key_used TEXT,\n" +
+                        "   note TEXT,\n" +
+                        "   about_me TEXT,\n" +
+                        "   creation_date INTEGER NOT NULL\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS invite_keys(\n" +
+                        "   id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
+                        "   invite_key TEXT UNIQUE NOT NULL,\n" +
+                        "   grant_role TEXT NOT NULL DEFAULT 'Read',\n" +
+                        "   max_uses INTEGER NOT NULL DEFAULT 1,\n" + //only 1 use by default
+                        "   times_used INTEGER NOT NULL DEFAULT 0,\n" +
+                        "   expires_at INTEGER,\n" + //-1 never expires
+                        "   created_by_user_id INTEGER,\n" +
+                        "   creation_date INTEGER NOT NULL,\n" +
+                        "   FOREIGN KEY (created_by_user_id) REFERENCES users(id)\n" +
+                        ");");
+        statement.execute(
+                "CREATE TABLE IF NOT EXISTS sessions (\n" +
+                        "    session_token TEXT PRIMARY KEY,\n" +
+                        "    user_id INTEGER NOT NULL,\n" +
+                        "    token_type TEXT NOT NULL DEFAULT 'User',\n" + // 'User' or 'Bot'
+                        "    created_at INTEGER NOT NULL,\n" +
+                        "    expires_at INTEGER,\n" + // NULL means never expires
+                        "    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE\n" +
+                        ");");
+        statement.execute(SchemaMigrations.CREATE_JOB_CHECKPOINTS);
+        // sqlite-jdbc only runs the first statement of a string, so every index gets its own execute
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_post_twitter_id ON posts(twitter_id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_media_post_id ON media(post_id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_media_data_hash ON media(data_hash)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_media_p_hash ON media(perceptual_hash)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_media_local_path ON media(local_path)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_posts_date ON posts(post_date, post_id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_posts_account_date ON posts(twitter_id, post_date, post_id)");
+        statement.execute("CREATE INDEX IF NOT EXISTS idx_sessions_token ON sessions(session_token)");
+        for (String sql : SchemaMigrations.QUERY_INDEXES) {
+            statement.execute(sql);
+        }
+        for (String sql : PostSampler.SCHEMA) {
+            statement.execute(sql);
+        }
+        for (String sql : TextSearch.SCHEMA) {
+            statement.execute(sql);
+        }
+        for (String sql : ArchiveCounters.SCHEMA) {
+            statement.execute(sql);
+        }
+    }
+
     /**
      * Creates database with required schema at the location specified in the config.
      */
     public static void createDatabase() {
         System.out.println("WELCOME TO SANDSTAR ARCHIVE. Your database is being created at " + config.databasePath);
-        try (Connection conn = getConnection(); Statement statement = conn.createStatement()) {
-            //enable foreign keys
-            statement.execute("PRAGMA journal_mode = WAL;");
-            statement.execute("PRAGMA foreign_keys = ON;");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS artists (\n" +
-                            "    id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
-                            "    name TEXT NOT NULL COLLATE NOCASE,\n" +
-                            "    description TEXT\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS aliases (\n" +
-                            "    id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
-                            "    artist_id INTEGER NOT NULL,\n" +
-                            "    alias_name TEXT NOT NULL COLLATE NOCASE,\n" +
-                            "    safety_rating TEXT,\n" +
-                            "    FOREIGN KEY (artist_id) REFERENCES artists(id) ON DELETE CASCADE\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS twitter_accounts (\n" +
-                            "    twitter_id TEXT PRIMARY KEY,\n" +
-                            "    artist_id INTEGER NOT NULL,\n" +
-                            "    screen_name TEXT NOT NULL COLLATE NOCASE,\n" +
-                            "    display_name TEXT,\n" +
-                            "    account_status TEXT,\n" +
-                            "    is_protected INTEGER DEFAULT 0,\n" +
-                            "    last_scraped_id TEXT,\n" +
-                            "    download_status INTEGER DEFAULT 1,\n" +
-                            "    discord_thread_id TEXT,\n" +
-                            "    safety_rating TEXT,\n" +
-                            "    FOREIGN KEY (artist_id) REFERENCES artists(id) ON DELETE CASCADE\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS posts (\n" +
-                            "    post_id TEXT PRIMARY KEY,\n" +
-                            "    twitter_id TEXT NOT NULL,\n" +
-                            "    post_text TEXT,\n" +
-                            "    post_date INTEGER,\n" +
-                            "    archive_date INTEGER,\n" +
-                            "    safety_rating TEXT,\n" +
-                            "    content_rating INTEGER,\n" +
-                            "    FOREIGN KEY (twitter_id) REFERENCES twitter_accounts(twitter_id) ON DELETE CASCADE\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS media (\n" +
-                            "    id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
-                            "    post_id TEXT NOT NULL,\n" +
-                            "    media_type TEXT,\n" +
-                            "    original_url TEXT,\n" +
-                            "    local_path TEXT,\n" +
-                            "    caption TEXT,\n" +
-                            "    safety_rating TEXT,\n" +
-                            "    content_rating TEXT,\n" +
-                            "    media_index INTEGER,\n" +
-                            "    perceptual_hash TEXT,\n" +
-                            "    data_hash TEXT,\n" +
-                            "    duplicate_of INTEGER,\n" +
-                            "    width INTEGER,\n" +
-                            "    height INTEGER,\n" +
-                            "    filesize INTEGER,\n" +
-                            "    FOREIGN KEY (post_id) REFERENCES posts(post_id) ON DELETE CASCADE,\n" +
-                            "    FOREIGN KEY (duplicate_of) REFERENCES media(id) ON DELETE SET NULL\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS users(\n" +
-                            "   id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
-                            "   username TEXT UNIQUE COLLATE NOCASE NOT NULL,\n" +
-                            "   email TEXT UNIQUE COLLATE NOCASE,\n" + //email is optional
-                            "   password_hash TEXT NOT NULL,\n" +
-                            "   role TEXT NOT NULL DEFAULT 'Read',\n" +
-                            "   restriction_level TEXT DEFAULT 'None',\n" +
-                            "   banned INTEGER NOT NULL DEFAULT 0,\n" +
-                            "   invite_key_used TEXT,\n" +
-                            "   note TEXT,\n" +
-                            "   about_me TEXT,\n" +
-                            "   creation_date INTEGER NOT NULL\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS invite_keys(\n" +
-                            "   id INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
-                            "   invite_key TEXT UNIQUE NOT NULL,\n" +
-                            "   grant_role TEXT NOT NULL DEFAULT 'Read',\n" +
-                            "   max_uses INTEGER NOT NULL DEFAULT 1,\n" + //only 1 use by default
-                            "   times_used INTEGER NOT NULL DEFAULT 0,\n" +
-                            "   expires_at INTEGER,\n" + //-1 never expires
-                            "   created_by_user_id INTEGER,\n" +
-                            "   creation_date INTEGER NOT NULL,\n" +
-                            "   FOREIGN KEY (created_by_user_id) REFERENCES users(id)\n" +
-                            ");");
-            statement.execute(
-                    "CREATE TABLE IF NOT EXISTS sessions (\n" +
-                            "    session_token TEXT PRIMARY KEY,\n" +
-                            "    user_id INTEGER NOT NULL,\n" +
-                            "    token_type TEXT NOT NULL DEFAULT 'User',\n" + // 'User' or 'Bot'
-                            "    created_at INTEGER NOT NULL,\n" +
-                            "    expires_at INTEGER,\n" + // NULL means never expires
-                            "    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE\n" +
-                            ");");
-            statement.execute(
-                    "CREATE INDEX IF NOT EXISTS idx_post_twitter_id ON posts(twitter_id);\n" +
-                            "CREATE INDEX IF NOT EXISTS idx_media_post_id ON media(post_id);\n" +
-                            "CREATE INDEX IF NOT EXISTS idx_media_data_hash ON media(data_hash);\n" +
-                            "CREATE INDEX IF NOT EXISTS idx_media_p_hash ON media(perceptual_hash);\n" +
-                            "CREATE INDEX IF NOT EXISTS idx_sessions_token ON sessions(session_token);");
+        try {
+            //the writer connection is already in WAL mode, schema changes go through it like every other write
+            writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
+                try (Statement statement = conn.createStatement()) {
+                    createSchema(statement);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
 
             InviteKey initialKey = generateKey(Permission.EXECUTE,2,-1,null);
 
             System.out.println("DATABASE CREATED! You now need to use the web server to register your account.\n" +
                     "Your registration key is [" + initialKey.inviteKey + "]. This key has 2 uses, and never expires.\n" +
                     "It will grant you Execute permissions to manage your archive.");
-        } catch (SQLException e) {
+        } catch (RuntimeException e) {
             System.out.println("Database creation failed. Check if .db file was created, delete it, and try again.");
-            throw new RuntimeException(e);
+            throw e;
         }
     }
 
@@ -709,7 +887,7 @@ public class DatabaseHandler {
         }
         //if both ratings are null, just exit
         if (newContent == null && newSafety == null) return;
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             try {
                 // 1. Fetch current Post record to handle null parameters
                 String currentPostContent, currentPostSafety;
@@ -734,7 +912,7 @@ public class DatabaseHandler {
 
                 // 2. Fetch all media associated with this post
                 List<MediaRecord> mediaFiles = new ArrayList<>();
-                try (PreparedStatement ps = conn.prepareStatement("SELECT id, local_path FROM media WHERE post_id = ?")) {
+                try (PreparedStatement ps = conn.prepareStatement(MEDIA_OF_POST)) {
                     ps.setString(1, postId);
                     ResultSet rs = ps.executeQuery();
                     while (rs.next()) {
@@ -791,6 +969,11 @@ public class DatabaseHandler {
                     ps.setString(3, postId);
                     ps.executeUpdate();
                 }
+                postChanged(postId);
+                for (MediaRecord media : mediaFiles) {
+                    mediaChanged(media.id, null);
+                }
+                listingsChanged();
                 // System.out.println("[Success] Updated Post " + postId + " to " + finalContent + "/" + finalSafety);
             } catch (Exception e) {
                 System.err.println("[Critical Error] Failed to set ratings for post " + postId);
@@ -827,7 +1010,7 @@ public class DatabaseHandler {
         }
         //if both ratings are null, just exit
         if (newContent == null && newSafety == null) return;
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             try {
                 // 1. Fetch current media record
                 String currentContent, currentSafety, currentPath;
@@ -901,6 +1084,8 @@ public class DatabaseHandler {
                     ps.setInt(4, mediaId);
                     ps.executeUpdate();
                 }
+                mediaChanged(conn, mediaId);
+                listingsChanged();
             } catch (Exception e) {
                 System.err.println("[Critical Error] Failed to update media ID: " + mediaId);
                 e.printStackTrace();
@@ -965,6 +1150,14 @@ public class DatabaseHandler {
 
     public static List<Artist> searchArtists(String query) {
         List<Artist> results = new ArrayList<>();
+        if (SchemaMigrations.isApplied(TextSearch.MIGRATION_VERSION)) {
+            try (Connection conn = getConnection()) {
+                results = getArtistsInOrder(conn, TextSearch.searchArtists(conn, query, false, -1));
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            results.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
+            return results;
+        }
+
         // Search by artist name OR alias name
         String sql = "SELECT DISTINCT a.id, a.name, a.description FROM artists a " +
                 "LEFT JOIN aliases al ON a.id = al.artist_id " +
@@ -983,11 +1176,46 @@ public class DatabaseHandler {
         return results;
     }
 
+    private static List<Artist> getArtistsInOrder(Connection conn, List<Integer> artistIds) throws SQLException {
+        List<Artist> results = new ArrayList<>();
+        if (artistIds.isEmpty()) return results;
+
+        Map<Integer, Artist> byId = new HashMap<>();
+        String sql = "SELECT id, name, description FROM artists WHERE id IN (" + String.join(", ", Collections.nCopies(artistIds.size(), "?")) + ")";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < artistIds.size(); i++) {
+                ps.setInt(i + 1, artistIds.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    byId.put(rs.getInt("id"), new Artist(rs.getInt("id"), rs.getString("name"), rs.getString("description")));
+                }
+            }
+        }
+        for (Integer id : artistIds) {
+            Artist artist = byId.get(id);
+            if (artist != null) results.add(artist);
+        }
+        return results;
+    }
+
+    /**
+     * Looks the artist up through the entity cache. Returns empty details (null name) if there is none.
+     * The returned details may be shared, do not modify them.
+     */
     public static ArtistDetails getArtistDetailsById(int artistId) {
+        ArtistDetails details = artistCache.get(artistId, id -> {
+            ArtistDetails loaded = loadArtistDetails(id);
+            return loaded.name != null ? loaded : null;
+        });
+        return details != null ? details : new ArtistDetails();
+    }
+
+    private static ArtistDetails loadArtistDetails(int artistId) {
         ArtistDetails details = new ArtistDetails();
         try (Connection conn = getConnection()) {
             // 1. Get Artist
-            try (PreparedStatement ps = conn.prepareStatement("SELECT id, name, description FROM artists WHERE id = ?")) {
+            try (PreparedStatement ps = conn.prepareStatement(ARTIST_BY_ID)) {
                 ps.setInt(1, artistId);
                 ResultSet rs = ps.executeQuery();
                 if (rs.next()) {
@@ -997,7 +1225,7 @@ public class DatabaseHandler {
                 }
             }
             // 2. Get Aliases
-            try (PreparedStatement ps = conn.prepareStatement("SELECT id, artist_id, alias_name, safety_rating FROM aliases WHERE artist_id = ?")) {
+            try (PreparedStatement ps = conn.prepareStatement(ALIASES_OF_ARTIST)) {
                 ps.setInt(1, artistId);
                 ResultSet rs = ps.executeQuery();
                 while (rs.next()) {
@@ -1010,7 +1238,7 @@ public class DatabaseHandler {
                 }
             }
             // 3. Get Accounts
-            try (PreparedStatement ps = conn.prepareStatement("SELECT twitter_id, artist_id, screen_name, display_name, account_status, is_protected, last_scraped_id, download_status, discord_thread_id, safety_rating FROM twitter_accounts WHERE artist_id = ?")) {
+            try (PreparedStatement ps = conn.prepareStatement(ACCOUNTS_OF_ARTIST)) {
                 ps.setInt(1, artistId);
                 ResultSet rs = ps.executeQuery();
                 while (rs.next()) {
@@ -1033,34 +1261,102 @@ public class DatabaseHandler {
     }
 
     public static List<TwitterAccount> searchAccounts(String query) {
+        if (SchemaMigrations.isApplied(TextSearch.MIGRATION_VERSION)) {
+            try (Connection conn = getConnection()) {
+                return getAccountsInOrder(conn, TextSearch.searchAccounts(conn, query, false, -1));
+            } catch (SQLException e) { throw new RuntimeException(e); }
+        }
+
         List<TwitterAccount> results = new ArrayList<>();
         // Search by artist name OR alias name
-        String sql = "SELECT twitter_id, artist_id, screen_name, display_name, account_status, is_protected, last_scraped_id, download_status, discord_thread_id, safety_rating FROM twitter_accounts WHERE screen_name LIKE ? OR display_name LIKE ?";
+        String sql = "SELECT " + ACCOUNT_COLUMNS + " FROM twitter_accounts WHERE screen_name LIKE ? OR display_name LIKE ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
             String q = "%" + query + "%";
             ps.setString(1, q);
             ps.setString(2, q);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    TwitterAccount acc = new TwitterAccount();
-                    acc.twitterId = rs.getString("twitter_id");
-                    acc.artistId = rs.getInt("artist_id");
-                    acc.screenName = rs.getString("screen_name");
-                    acc.displayName = rs.getString("display_name");
-                    acc.accountStatus = rs.getString("account_status");
-                    acc.isProtected = rs.getBoolean("is_protected");
-                    acc.lastScrapedId = rs.getString("last_scraped_id");
-                    acc.downloadStatus = rs.getBoolean("download_status");
-                    acc.discordThreadId = rs.getString("discord_thread_id");
-                    acc.safetyRating = rs.getString("safety_rating");
-                    results.add(acc);
+                    results.add(readAccount(rs));
+                }
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+        return results;
+    }
+
+    private static List<TwitterAccount> getAccountsInOrder(Connection conn, List<String> twitterIds) throws SQLException {
+        List<TwitterAccount> results = new ArrayList<>();
+        if (twitterIds.isEmpty()) return results;
+
+        Map<String, TwitterAccount> byId = new HashMap<>();
+        String sql = "SELECT " + ACCOUNT_COLUMNS + " FROM twitter_accounts WHERE twitter_id IN (" + String.join(", ", Collections.nCopies(twitterIds.size(), "?")) + ")";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < twitterIds.size(); i++) {
+                ps.setString(i + 1, twitterIds.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    TwitterAccount acc = readAccount(rs);
+                    byId.put(acc.twitterId, acc);
                 }
             }
+        }
+        for (String id : twitterIds) {
+            TwitterAccount acc = byId.get(id);
+            if (acc != null) results.add(acc);
+        }
+        return results;
+    }
+
+    private static TwitterAccount readAccount(ResultSet rs) throws SQLException {
+        TwitterAccount acc = new TwitterAccount();
+        acc.twitterId = rs.getString("twitter_id");
+        acc.artistId = rs.getInt("artist_id");
+        acc.screenName = rs.getString("screen_name");
+        acc.displayName = rs.getString("display_name");
+        acc.accountStatus = rs.getString("account_status");
+        acc.isProtected = rs.getBoolean("is_protected");
+        acc.lastScrapedId = rs.getString("last_scraped_id");
+        acc.downloadStatus = rs.getBoolean("download_status");
+        acc.discordThreadId = rs.getString("discord_thread_id");
+        acc.safetyRating = rs.getString("safety_rating");
+        return acc;
+    }
+
+    /**
+     * Full-text search over post text and captions, artist names and aliases and account names.
+     * Posts are ranked by bm25 and paged, artists and accounts are ranked the same way and only returned with the first page.
+     * Before the search tables are filled on an older database only artists and accounts are searched, the old way.
+     */
+    public static SearchResults search(String query, List<String> contentFilters, List<String> safetyFilters, int limit, int offset) {
+        SearchResults results = new SearchResults();
+        if (!SchemaMigrations.isApplied(TextSearch.MIGRATION_VERSION)) {
+            if (offset == 0) {
+                results.artists = searchArtists(query);
+                results.accounts = searchAccounts(query);
+                if (results.artists.size() > SEARCH_NAME_LIMIT) results.artists = results.artists.subList(0, SEARCH_NAME_LIMIT);
+                if (results.accounts.size() > SEARCH_NAME_LIMIT) results.accounts = results.accounts.subList(0, SEARCH_NAME_LIMIT);
+            }
+            return results;
+        }
+
+        try (Connection conn = getConnection()) {
+            results.posts = getPostsInOrder(conn, TextSearch.searchPosts(conn, query, contentFilters, safetyFilters, limit, offset));
+            if (offset == 0) {
+                results.artists = getArtistsInOrder(conn, TextSearch.searchArtists(conn, query, true, SEARCH_NAME_LIMIT));
+                results.accounts = getAccountsInOrder(conn, TextSearch.searchAccounts(conn, query, true, SEARCH_NAME_LIMIT));
+            }
         } catch (SQLException e) { throw new RuntimeException(e); }
         return results;
     }
 
+    /**
+     * Looks the media up through the entity cache. The returned media may be shared, do not modify it.
+     */
     public static TwitterMedia getMediaById(int id) {
+        return mediaCache.get(id, DatabaseHandler::loadMedia);
+    }
+
+    private static TwitterMedia loadMedia(int id) {
         String sql = "SELECT * FROM media WHERE id = ?";
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, id);
@@ -1074,8 +1370,8 @@ public class DatabaseHandler {
                     m.localPath = rs.getString("local_path");
                     m.caption = rs.getString("caption");
                     m.mediaIndex = rs.getInt("media_index");
-                    m.perceptualHash = rs.getString("perceptual_hash");
-                    m.dataHash = rs.getString("data_hash");
+                    m.perceptualHash = readPerceptualHash(rs);
+                    m.dataHash = readDataHash(rs);
                     m.duplicateOf = rs.getInt("duplicate_of");
                     m.width = rs.getInt("width");
                     m.height = rs.getInt("height");
@@ -1089,12 +1385,19 @@ public class DatabaseHandler {
         return null;
     }
 
+    /**
+     * Looks the post and its media up through the entity cache. The returned post may be shared, do not modify it.
+     */
     public static TwitterPost getPostDetails(String postId) {
+        return postCache.get(postId, DatabaseHandler::loadPostDetails);
+    }
+
+    private static TwitterPost loadPostDetails(String postId) {
         TwitterPost post = null;
         String sql = "SELECT p.*, " +
                 "m.id AS m_id, m.media_type, m.original_url, m.local_path, m.caption, " +
                 "m.safety_rating AS m_safety, m.content_rating AS m_content, m.media_index, " +
-                "m.width, m.height, m.filesize " +
+                "m.width, m.height, m.filesize, m.data_hash " +
                 "FROM posts p " +
                 "LEFT JOIN media m ON p.post_id = m.post_id " +
                 "WHERE p.post_id = ? " +
@@ -1133,6 +1436,7 @@ public class DatabaseHandler {
                         m.width = rs.getInt("width");
                         m.height = rs.getInt("height");
                         m.filesize = rs.getLong("filesize");
+                        m.dataHash = readDataHash(rs);
 
                         post.media.add(m);
                     }
@@ -1147,7 +1451,7 @@ public class DatabaseHandler {
     public static ArtistDetails getArtistDetailsByName(String name) {
         int id = -1;
         try (Connection conn = getConnection();
-             PreparedStatement ps = conn.prepareStatement("SELECT id FROM artists WHERE name = ?")) {
+             PreparedStatement ps = conn.prepareStatement(ARTIST_ID_BY_NAME)) {
             ps.setString(1, name);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) id = rs.getInt("id");
@@ -1157,17 +1461,49 @@ public class DatabaseHandler {
     }
 
     public static List<TwitterPost> getGlobalPostsPaged(int limit, int offset, List<String> contentFilters, List<String> safetyFilters, String sort) {
-        return getFilteredPosts(null, limit, offset, contentFilters, safetyFilters, sort);
+        return getFilteredPosts(null, limit, offset, null, contentFilters, safetyFilters, sort);
+    }
+
+    /**
+     * Same as {@link #getGlobalPostsPaged(int, int, List, List, String)}, but starts after the cursor instead of
+     * skipping rows. Offset is ignored when a cursor is given, and the cursor is ignored for random order.
+     */
+    public static List<TwitterPost> getGlobalPostsPaged(int limit, int offset, PostCursor cursor, List<String> contentFilters, List<String> safetyFilters, String sort) {
+        return getFilteredPosts(null, limit, offset, cursor, contentFilters, safetyFilters, sort);
     }
 
     public static List<TwitterPost> getPostsByUserIdPaged(String twitterId, int limit, int offset, List<String> contentFilters, List<String> safetyFilters, String sort) {
-        return getFilteredPosts(twitterId, limit, offset, contentFilters, safetyFilters, sort);
+        return getFilteredPosts(twitterId, limit, offset, null, contentFilters, safetyFilters, sort);
+    }
+
+    /**
+     * Same as {@link #getPostsByUserIdPaged(String, int, int, List, List, String)}, but starts after the cursor.
+     */
+    public static List<TwitterPost> getPostsByUserIdPaged(String twitterId, int limit, int offset, PostCursor cursor, List<String> contentFilters, List<String> safetyFilters, String sort) {
+        return getFilteredPosts(twitterId, limit, offset, cursor, contentFilters, safetyFilters, sort);
     }
 
-    private static List<TwitterPost> getFilteredPosts(String twitterId, int limit, int offset, List<String> contentFilters, List<String> safetyFilters, String sort) {
+    private static List<TwitterPost> getFilteredPosts(String twitterId, int limit, int offset, PostCursor cursor, List<String> contentFilters, List<String> safetyFilters, String sort) {
         List<TwitterPost> posts = new ArrayList<>();
-        StringBuilder subquery = new StringBuilder("SELECT * FROM posts WHERE 1=1");
         List<Object> params = new ArrayList<>();
+        String sql = filteredPostsQuery(twitterId, limit, offset, cursor, contentFilters, safetyFilters, sort, params);
+
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            bindParams(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                posts = readPostListing(rs);
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+        return posts;
+    }
+
+    /**
+     * Builds the listing query run by {@link #getFilteredPosts}. {@code QueryPlanTest} checks the plans of the
+     * queries built here, so any change to the listings is covered by it.
+     * @param params Filled with the values to bind, in order.
+     */
+    static String filteredPostsQuery(String twitterId, int limit, int offset, PostCursor cursor, List<String> contentFilters, List<String> safetyFilters, String sort, List<Object> params) {
+        StringBuilder subquery = new StringBuilder("SELECT * FROM posts WHERE 1=1");
 
         // Handle specific account targeting
         if (twitterId != null) {
@@ -1175,9 +1511,16 @@ public class DatabaseHandler {
             params.add(twitterId);
         }
 
+        // The rating indexes only hand back posts in date order for a single rating. With several ratings, or with an
+        // account that its own index narrows down much further, comparing a CAST keeps SQLite off them, otherwise it
+        // may sort every post with a common rating just to return one page. The CAST keeps the values matching the
+        // same way, a unary + would drop the column affinity and miss ratings that look like numbers.
+        boolean oneRating = twitterId == null && (contentFilters == null || contentFilters.size() <= 1)
+                && (safetyFilters == null || safetyFilters.size() <= 1);
+
         // Handle Content Filters (If empty, we append NOTHING, thereby returning ALL ratings)
         if (contentFilters != null && !contentFilters.isEmpty()) {
-            subquery.append(" AND content_rating IN (");
+            subquery.append(oneRating ? " AND content_rating IN (" : " AND CAST(content_rating AS TEXT) IN (");
             for (int i = 0; i < contentFilters.size(); i++) {
                 subquery.append(i == 0 ? "?" : ", ?");
                 params.add(contentFilters.get(i));
@@ -1187,7 +1530,7 @@ public class DatabaseHandler {
 
         // Handle Safety Filters (If empty, we append NOTHING, thereby returning ALL ratings)
         if (safetyFilters != null && !safetyFilters.isEmpty()) {
-            subquery.append(" AND safety_rating IN (");
+            subquery.append(oneRating ? " AND safety_rating IN (" : " AND CAST(safety_rating AS TEXT) IN (");
             for (int i = 0; i < safetyFilters.size(); i++) {
                 subquery.append(i == 0 ? "?" : ", ?");
                 params.add(safetyFilters.get(i));
@@ -1195,17 +1538,29 @@ public class DatabaseHandler {
             subquery.append(")");
         }
 
-        // Determine sort order
-        String innerOrder = "post_date DESC"; // Default Newest
-        String outerOrder = "p.post_date DESC, m.media_index ASC";
+        // Determine sort order. post_id breaks ties between posts with the same date, so pages never overlap
+        // and media rows of two posts with the same date are never interleaved.
+        String innerOrder = "post_date DESC, post_id DESC"; // Default Newest
+        String outerOrder = "p.post_date DESC, p.post_id DESC, m.media_index ASC";
+        String after = "<";
 
         if ("oldest".equalsIgnoreCase(sort)) {
-            innerOrder = "post_date ASC";
-            outerOrder = "p.post_date ASC, m.media_index ASC";
+            innerOrder = "post_date ASC, post_id ASC";
+            outerOrder = "p.post_date ASC, p.post_id ASC, m.media_index ASC";
+            after = ">";
         } else if ("random".equalsIgnoreCase(sort)) {
             innerOrder = "RANDOM()";
             // Important: keep the media grouped by post when selecting randomly, but don't force them back into chronological order
             outerOrder = "p.post_id, m.media_index ASC";
+            cursor = null;
+        }
+
+        // Keyset pagination: seek straight past the last post of the previous page on the (post_date, post_id) index
+        if (cursor != null) {
+            subquery.append(" AND (post_date, post_id) ").append(after).append(" (?, ?)");
+            params.add(cursor.postDate);
+            params.add(cursor.postId);
+            offset = 0;
         }
 
         subquery.append(" ORDER BY ").append(innerOrder).append(" LIMIT ? OFFSET ?");
@@ -1213,55 +1568,228 @@ public class DatabaseHandler {
         params.add(offset);
 
         // Ensure LIMIT/OFFSET remains in the subquery to properly limit amount of POSTS, not MEDIA.
-        String sql = "SELECT p.*, a.screen_name, " +
-                "m.id AS m_id, m.media_type, m.original_url, m.local_path, m.content_rating AS m_content, m.safety_rating AS m_safety " +
+        return "SELECT p.*, a.screen_name, " +
+                "m.id AS m_id, m.media_type, m.original_url, m.local_path, m.data_hash, m.content_rating AS m_content, m.safety_rating AS m_safety " +
                 "FROM (" + subquery.toString() + ") p " +
                 "JOIN twitter_accounts a ON p.twitter_id = a.twitter_id " +
                 "LEFT JOIN media m ON p.post_id = m.post_id " +
                 "ORDER BY " + outerOrder;
+    }
 
+    /**
+     * How many posts a listing with these filters has in all its pages, read from the counters in archive_stats
+     * instead of counting the posts.
+     * @param twitterId Account to count, or null for the whole archive.
+     * @return The amount, or -1 while the migration that fills the counters has not finished.
+     */
+    public static long countPosts(String twitterId, List<String> contentFilters, List<String> safetyFilters) {
+        if (!SchemaMigrations.isApplied(ArchiveCounters.MIGRATION_VERSION)) return -1;
+        List<Object> params = new ArrayList<>();
+        String sql = ArchiveCounters.countPostsQuery(twitterId != null ? twitterId : PostSampler.ARCHIVE_SCOPE, contentFilters, safetyFilters, params);
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Parameter setting
-            for (int i = 0; i < params.size(); i++) {
-                Object param = params.get(i);
-                if (param instanceof String) {
-                    ps.setString(i + 1, (String) param);
-                } else if (param instanceof Integer) {
-                    ps.setInt(i + 1, (Integer) param);
+            bindParams(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Post, media and byte totals, overall and per rating pair.
+     * @param twitterId Account to count, or null for the whole archive.
+     * @return The totals, or null while the migration that fills the counters has not finished.
+     */
+    public static ArchiveStats getArchiveStats(String twitterId) {
+        if (!SchemaMigrations.isApplied(ArchiveCounters.MIGRATION_VERSION)) return null;
+        try (Connection conn = getConnection()) {
+            return ArchiveCounters.read(conn, twitterId != null ? twitterId : PostSampler.ARCHIVE_SCOPE);
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Page of the moderation queue: posts whose content or safety rating is still Waiting, by post date.
+     * @param twitterId Account to list, or null for the whole archive.
+     * @param cursor Last post of the previous page, or null for the first page.
+     */
+    public static List<TwitterPost> getModerationQueue(String twitterId, int limit, PostCursor cursor, boolean newestFirst) {
+        List<Object> params = new ArrayList<>();
+        boolean indexed = SchemaMigrations.isApplied(SchemaMigrations.WAITING_ACCOUNT_INDEX_VERSION);
+        String sql = moderationQueueQuery(twitterId, limit, cursor, newestFirst, indexed, params);
+        List<String> postIds = new ArrayList<>();
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            bindParams(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    postIds.add(rs.getString(1));
                 }
             }
+            return getPostsInOrder(conn, postIds);
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
 
+    /**
+     * Builds the query run by {@link #getModerationQueue}. Only the partial Waiting indexes are read, so a page costs
+     * the same however much of the archive has been rated. {@code QueryPlanTest} checks its plans.
+     * @param indexed Whether the Waiting indexes exist yet and should be forced. Without statistics SQLite may
+     * otherwise walk a date index and skip over every rated post.
+     * @param params Filled with the values to bind, in order.
+     */
+    static String moderationQueueQuery(String twitterId, int limit, PostCursor cursor, boolean newestFirst, boolean indexed, List<Object> params) {
+        StringBuilder sql = new StringBuilder("SELECT p.post_id FROM posts p");
+        if (indexed) sql.append(twitterId != null ? " INDEXED BY idx_posts_waiting_account" : " INDEXED BY idx_posts_waiting");
+        //same condition as the partial indexes, which they are only used for
+        sql.append(" JOIN twitter_accounts a ON a.twitter_id = p.twitter_id WHERE (p.content_rating = 'Waiting' OR p.safety_rating = 'Waiting')");
+        if (twitterId != null) {
+            sql.append(" AND p.twitter_id = ?");
+            params.add(twitterId);
+        }
+        if (cursor != null) {
+            sql.append(" AND (p.post_date, p.post_id) ").append(newestFirst ? "<" : ">").append(" (?, ?)");
+            params.add(cursor.postDate);
+            params.add(cursor.postId);
+        }
+        String direction = newestFirst ? "DESC" : "ASC";
+        sql.append(" ORDER BY p.post_date ").append(direction).append(", p.post_id ").append(direction).append(" LIMIT ?");
+        params.add(limit);
+        return sql.toString();
+    }
+
+    /**
+     * How many posts are waiting for a rating, in total and per account. Read from the counters in archive_stats,
+     * or counted from the Waiting index until the migration that fills them has finished.
+     * @param twitterId Account to count, or null for every account.
+     * @return The counts, without any posts.
+     */
+    public static ModerationQueue getModerationBacklog(String twitterId) {
+        String sql;
+        if (SchemaMigrations.isApplied(ArchiveCounters.MIGRATION_VERSION)) {
+            sql = "SELECT s.scope, a.screen_name, sum(s.posts) FROM archive_stats s JOIN twitter_accounts a ON a.twitter_id = s.scope " +
+                    "WHERE (s.content_rating = 'Waiting' OR s.safety_rating = 'Waiting')" + (twitterId != null ? " AND s.scope = ?" : "") +
+                    " GROUP BY s.scope, a.screen_name HAVING sum(s.posts) > 0";
+        } else {
+            sql = "SELECT p.twitter_id, a.screen_name, count(*) FROM posts p JOIN twitter_accounts a ON a.twitter_id = p.twitter_id " +
+                    "WHERE (p.content_rating = 'Waiting' OR p.safety_rating = 'Waiting')" + (twitterId != null ? " AND p.twitter_id = ?" : "") +
+                    " GROUP BY p.twitter_id, a.screen_name";
+        }
+
+        ModerationQueue backlog = new ModerationQueue();
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            if (twitterId != null) ps.setString(1, twitterId);
             try (ResultSet rs = ps.executeQuery()) {
-                TwitterPost currentPost = null;
                 while (rs.next()) {
-                    String rowPostId = rs.getString("post_id");
-                    if (currentPost == null || !currentPost.postId.equals(rowPostId)) {
-                        currentPost = new TwitterPost();
-                        currentPost.postId = rowPostId;
-                        currentPost.screenName = rs.getString("screen_name");
-                        currentPost.twitterId = rs.getString("twitter_id");
-                        currentPost.postText = rs.getString("post_text");
-                        currentPost.postDate = rs.getLong("post_date");
-                        currentPost.archiveDate = rs.getLong("archive_date");
-                        currentPost.safetyRating = rs.getString("safety_rating");
-                        currentPost.contentRating = rs.getString("content_rating");
-                        currentPost.media = new ArrayList<>();
-                        posts.add(currentPost);
-                    }
-                    int mId = rs.getInt("m_id");
-                    if (mId != 0) {
-                        TwitterMedia m = new TwitterMedia();
-                        m.id = mId;
-                        m.originalUrl = rs.getString("original_url");
-                        m.localPath = rs.getString("local_path");
-                        m.contentRating = rs.getString("m_content");
-                        m.safetyRating = rs.getString("m_safety");
-                        m.mediaType = rs.getString("media_type");
-                        currentPost.media.add(m);
-                    }
+                    ModerationQueue.AccountBacklog account = new ModerationQueue.AccountBacklog();
+                    account.twitterId = rs.getString(1);
+                    account.screenName = rs.getString(2);
+                    account.waiting = rs.getLong(3);
+                    backlog.waiting += account.waiting;
+                    backlog.accounts.add(account);
                 }
             }
         } catch (SQLException e) { throw new RuntimeException(e); }
+        backlog.accounts.sort((a, b) -> Long.compare(b.waiting, a.waiting));
+        return backlog;
+    }
+
+    static void bindParams(PreparedStatement ps, List<Object> params) throws SQLException {
+        for (int i = 0; i < params.size(); i++) {
+            Object param = params.get(i);
+            if (param instanceof String) {
+                ps.setString(i + 1, (String) param);
+            } else if (param instanceof Integer) {
+                ps.setInt(i + 1, (Integer) param);
+            } else if (param instanceof Long) {
+                ps.setLong(i + 1, (Long) param);
+            }
+        }
+    }
+
+    /**
+     * Page of posts in a seeded random order, see {@link PostSampler}. Until the post_random tables are filled
+     * (the migration runs in the background on older databases) this falls back to an unseeded random page.
+     * @param twitterId Account to pick from, or null for the whole archive.
+     * @param cursor Seed and position to start at. Moved past the returned page.
+     */
+    public static List<TwitterPost> getRandomPostsPaged(String twitterId, int limit, RandomCursor cursor, List<String> contentFilters, List<String> safetyFilters) {
+        if (!SchemaMigrations.isApplied(PostSampler.EMPTY_SLOTS_VERSION)) {
+            List<TwitterPost> posts = getFilteredPosts(twitterId, limit, (int) cursor.position, null, contentFilters, safetyFilters, "random");
+            cursor.position += limit;
+            return posts;
+        }
+
+        String scope = twitterId == null ? PostSampler.ARCHIVE_SCOPE : twitterId;
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false); //one snapshot, so a compaction can't land between reading the epochs and the slots
+            List<String> postIds = PostSampler.sample(conn, scope, contentFilters, safetyFilters, cursor, limit);
+            List<TwitterPost> posts = getPostsInOrder(conn, postIds);
+            conn.commit();
+            return posts;
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    //loads full post listings for the given ids, kept in the order the ids were given
+    private static List<TwitterPost> getPostsInOrder(Connection conn, List<String> postIds) throws SQLException {
+        if (postIds.isEmpty()) return new ArrayList<>();
+
+        String sql = "SELECT p.*, a.screen_name, " +
+                "m.id AS m_id, m.media_type, m.original_url, m.local_path, m.data_hash, m.content_rating AS m_content, m.safety_rating AS m_safety " +
+                "FROM posts p " +
+                "JOIN twitter_accounts a ON p.twitter_id = a.twitter_id " +
+                "LEFT JOIN media m ON p.post_id = m.post_id " +
+                "WHERE p.post_id IN (" + String.join(", ", Collections.nCopies(postIds.size(), "?")) + ") " +
+                "ORDER BY p.post_id, m.media_index ASC";
+        List<TwitterPost> posts;
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < postIds.size(); i++) {
+                ps.setString(i + 1, postIds.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                posts = readPostListing(rs);
+            }
+        }
+
+        Map<String, Integer> order = new HashMap<>();
+        for (int i = 0; i < postIds.size(); i++) {
+            order.put(postIds.get(i), i);
+        }
+        posts.sort((a, b) -> Integer.compare(order.get(a.postId), order.get(b.postId)));
+        return posts;
+    }
+
+    /**
+     * Groups post listing rows (posts joined with their account and media, one row per media) into posts.
+     * Rows of one post have to be next to each other.
+     */
+    private static List<TwitterPost> readPostListing(ResultSet rs) throws SQLException {
+        List<TwitterPost> posts = new ArrayList<>();
+        TwitterPost currentPost = null;
+        while (rs.next()) {
+            String rowPostId = rs.getString("post_id");
+            if (currentPost == null || !currentPost.postId.equals(rowPostId)) {
+                currentPost = new TwitterPost();
+                currentPost.postId = rowPostId;
+                currentPost.screenName = rs.getString("screen_name");
+                currentPost.twitterId = rs.getString("twitter_id");
+                currentPost.postText = rs.getString("post_text");
+                currentPost.postDate = rs.getLong("post_date");
+                currentPost.archiveDate = rs.getLong("archive_date");
+                currentPost.safetyRating = rs.getString("safety_rating");
+                currentPost.contentRating = rs.getString("content_rating");
+                currentPost.media = new ArrayList<>();
+                posts.add(currentPost);
+            }
+            int mId = rs.getInt("m_id");
+            if (mId != 0) {
+                TwitterMedia m = new TwitterMedia();
+                m.id = mId;
+                m.originalUrl = rs.getString("original_url");
+                m.localPath = rs.getString("local_path");
+                m.contentRating = rs.getString("m_content");
+                m.safetyRating = rs.getString("m_safety");
+                m.mediaType = rs.getString("media_type");
+                m.dataHash = readDataHash(rs);
+                currentPost.media.add(m);
+            }
+        }
         return posts;
     }
 
@@ -1285,21 +1813,27 @@ public class DatabaseHandler {
             return "Error: Artist '" + artistName + "' not found.";
         }
 
-        // Run synchronously so we can return the actual result
+        // Wait for the write so we can return the actual result
+        String aliasName = newAliasName;
         String sql = "INSERT INTO aliases (artist_id, alias_name, safety_rating) VALUES (?, ?, ?)";
-        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, artist.id);
-            ps.setString(2, newAliasName);
-            ps.setString(3, safetyRating);
-            ps.executeUpdate();
-            return "Added alias name '" + newAliasName  + "' for artist '" + artistName + "'.";
-        } catch (SQLException e) {
-            if (e.getMessage().toLowerCase().contains("unique")) {
-                return "Error: This alias already exists.";
+        String result = writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, artist.id);
+                ps.setString(2, aliasName);
+                ps.setString(3, safetyRating);
+                ps.executeUpdate();
+                artistChanged(artist.id);
+                return null;
+            } catch (SQLException e) {
+                if (e.getMessage().toLowerCase().contains("unique")) {
+                    return "Error: This alias already exists.";
+                }
+                e.printStackTrace();
+                return "Error: Failed to save alias to the database.";
             }
-            e.printStackTrace();
-            return "Error: Failed to save alias to the database.";
-        }
+        });
+        if (result != null) return result;
+        return "Added alias name '" + newAliasName  + "' for artist '" + artistName + "'.";
     }
 
     public static List<Artist> getAllArtists() {
@@ -1321,12 +1855,13 @@ public class DatabaseHandler {
 
     public static void setArtistDescriptionByName(String artistName, String description) {
         if (artistName == null || description == null) return;
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE artists SET description = ? WHERE name = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, description);
                 ps.setString(2, artistName);
                 ps.executeUpdate();
+                artistsChanged();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -1371,16 +1906,21 @@ public class DatabaseHandler {
         if (email != null) email = email.trim();
         inviteKeyStr = inviteKeyStr.trim();
 
-        try (Connection conn = getConnection()) {
-            conn.setAutoCommit(false); // Start transaction
+        // Hash before queueing, bcrypt is slow on purpose and would hold up every other write
+        String hashedPassword = org.mindrot.jbcrypt.BCrypt.hashpw(rawPassword, org.mindrot.jbcrypt.BCrypt.gensalt(12));
+        String finalUsername = username;
+        String finalEmail = email;
+        String finalInviteKey = inviteKeyStr;
 
+        // Runs as one write task, so the key check, its increment and the insert are a single transaction
+        return writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
             try {
                 String assignedRole;
 
                 // 2. Validate Invite Key
                 String keySql = "SELECT id, max_uses, times_used, expires_at, grant_role FROM invite_keys WHERE invite_key = ?";
                 try (PreparedStatement ps = conn.prepareStatement(keySql)) {
-                    ps.setString(1, inviteKeyStr);
+                    ps.setString(1, finalInviteKey);
                     ResultSet rs = ps.executeQuery();
 
                     if (!rs.next()) return "Error: Invalid invite key.";
@@ -1402,37 +1942,37 @@ public class DatabaseHandler {
                     }
                 }
 
-                // 3. Hash Password and Insert User
-                String hashedPassword = org.mindrot.jbcrypt.BCrypt.hashpw(rawPassword, org.mindrot.jbcrypt.BCrypt.gensalt(12));
+                // 3. Insert User
                 String insertUserSql = "INSERT INTO users (username, email, password_hash, role, invite_key_used, creation_date) VALUES (?, ?, ?, ?, ?, ?)";
 
                 try (PreparedStatement ps = conn.prepareStatement(insertUserSql)) {
-                    ps.setString(1, username);
-                    if (email == null || email.isEmpty()) ps.setNull(2, java.sql.Types.VARCHAR);
-                    else ps.setString(2, email);
+                    ps.setString(1, finalUsername);
+                    if (finalEmail == null || finalEmail.isEmpty()) ps.setNull(2, java.sql.Types.VARCHAR);
+                    else ps.setString(2, finalEmail);
 
                     ps.setString(3, hashedPassword);
                     ps.setString(4, assignedRole);
-                    ps.setString(5, inviteKeyStr);
+                    ps.setString(5, finalInviteKey);
                     ps.setLong(6, System.currentTimeMillis());
 
                     ps.executeUpdate();
                 }
 
-                conn.commit();
                 return "Success";
 
             } catch (SQLException e) {
-                conn.rollback(); // Undo invite key increment if user creation fails
+                try {
+                    conn.rollback(); // Undo invite key increment if user creation fails
+                } catch (SQLException ex) {
+                    throw new RuntimeException(ex);
+                }
                 if (e.getMessage().toLowerCase().contains("unique")) {
                     return "Error: Username or Email is already taken.";
                 }
                 e.printStackTrace();
                 return "Error: Database failure during user registration.";
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        });
     }
 
     /**
@@ -1458,7 +1998,7 @@ public class DatabaseHandler {
             newKey.inviteKey = sb.toString();
 
             // 2. Insert into the database
-            writeQueue.runAsyncWrite(conn -> {
+            writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
                 String sql = "INSERT INTO invite_keys (invite_key, grant_role, max_uses, expires_at, created_by_user_id, creation_date) VALUES (?, ?, ?, ?, ?, ?)";
                 try (PreparedStatement ps = conn.prepareStatement(sql)) {
                     ps.setString(1, newKey.inviteKey);
@@ -1511,7 +2051,7 @@ public class DatabaseHandler {
     }
 
     public static void updateKey(int id, String newRole, int newMaxUses, long newExpiresAt) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE invite_keys SET grant_role = ?, max_uses = ?, expires_at = ? WHERE id = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, newRole);
@@ -1524,7 +2064,7 @@ public class DatabaseHandler {
     }
 
     public static void deleteKey(int id) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.INTERACTIVE, conn -> {
             try (PreparedStatement ps = conn.prepareStatement("DELETE FROM invite_keys WHERE id = ?")) {
                 ps.setInt(1, id);
                 ps.executeUpdate();
@@ -1562,7 +2102,7 @@ public class DatabaseHandler {
     }
 
     public static void updateUserAdmin(int id, String newRole, boolean isBanned, String newNote) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWriteWithResult(Priority.INTERACTIVE, conn -> {
             String sql = "UPDATE users SET role = ?, banned = ?, note = ? WHERE id = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, newRole);
@@ -1571,7 +2111,8 @@ public class DatabaseHandler {
                 ps.setInt(4, id);
                 ps.executeUpdate();
             } catch (SQLException e) { throw new RuntimeException(e); }
-        });
+            return null;
+        }).whenComplete((result, error) -> sessions.invalidateUser(id)); //cached sessions carry the old role and ban
     }
 
     public static ArchiveUser getUserProfile(int id) {
@@ -1602,63 +2143,72 @@ public class DatabaseHandler {
         if (email != null) email = email.trim();
         if (aboutMe != null) aboutMe = aboutMe.trim();
 
-        try (Connection conn = getConnection()) {
-
-            // Single statement executes are auto-committed safely by JDBC
-            if (plainPassword != null && !plainPassword.isBlank()) {
-                if (plainPassword.length() < 6) return "Error: Password must be at least 6 characters.";
-                String hash = org.mindrot.jbcrypt.BCrypt.hashpw(plainPassword, org.mindrot.jbcrypt.BCrypt.gensalt(12));
+        if (plainPassword != null && !plainPassword.isBlank() && plainPassword.length() < 6) return "Error: Password must be at least 6 characters.";
+        // Hashed outside the write task, same as in registerUser
+        String hash = (plainPassword != null && !plainPassword.isBlank())
+                ? org.mindrot.jbcrypt.BCrypt.hashpw(plainPassword, org.mindrot.jbcrypt.BCrypt.gensalt(12))
+                : null;
+        String finalUsername = username;
+        String finalEmail = email;
+        String finalAboutMe = aboutMe;
 
-                String sql = "UPDATE users SET username = ?, email = ?, password_hash = ?, about_me = ? WHERE id = ?";
-                try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                    ps.setString(1, username);
-                    if (email == null || email.isEmpty()) ps.setNull(2, java.sql.Types.VARCHAR); else ps.setString(2, email);
-                    ps.setString(3, hash);
-                    ps.setString(4, aboutMe);
-                    ps.setInt(5, id);
-                    ps.executeUpdate();
+        String result = writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
+            try {
+                if (hash != null) {
+                    String sql = "UPDATE users SET username = ?, email = ?, password_hash = ?, about_me = ? WHERE id = ?";
+                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                        ps.setString(1, finalUsername);
+                        if (finalEmail == null || finalEmail.isEmpty()) ps.setNull(2, java.sql.Types.VARCHAR); else ps.setString(2, finalEmail);
+                        ps.setString(3, hash);
+                        ps.setString(4, finalAboutMe);
+                        ps.setInt(5, id);
+                        ps.executeUpdate();
+                    }
+                } else {
+                    String sql = "UPDATE users SET username = ?, email = ?, about_me = ? WHERE id = ?";
+                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                        ps.setString(1, finalUsername);
+                        if (finalEmail == null || finalEmail.isEmpty()) ps.setNull(2, java.sql.Types.VARCHAR); else ps.setString(2, finalEmail);
+                        ps.setString(3, finalAboutMe);
+                        ps.setInt(4, id);
+                        ps.executeUpdate();
+                    }
                 }
-            } else {
-                String sql = "UPDATE users SET username = ?, email = ?, about_me = ? WHERE id = ?";
-                try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                    ps.setString(1, username);
-                    if (email == null || email.isEmpty()) ps.setNull(2, java.sql.Types.VARCHAR); else ps.setString(2, email);
-                    ps.setString(3, aboutMe);
-                    ps.setInt(4, id);
-                    ps.executeUpdate();
+                return "Success";
+            } catch (SQLException e) {
+                if (e.getMessage().toLowerCase().contains("unique")) {
+                    return "Error: Username or Email is already taken.";
                 }
+                e.printStackTrace();
+                return "Error: Database failure while updating profile.";
             }
-            return "Success";
-        } catch (SQLException e) {
-            if (e.getMessage().toLowerCase().contains("unique")) {
-                return "Error: Username or Email is already taken.";
-            }
-            e.printStackTrace();
-            return "Error: Database failure while updating profile.";
-        }
+        });
+        sessions.invalidateUser(id); //cached sessions carry the old username and password hash
+        return result;
     }
 
     public static void deleteUser(int id) {
-        try (Connection conn = getConnection()) {
+        writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
             // Attempt to completely erase the user
             try (PreparedStatement ps = conn.prepareStatement("DELETE FROM users WHERE id = ?")) {
                 ps.setInt(1, id);
                 ps.executeUpdate();
+            } catch (SQLException e) {
+                // If deletion is blocked because they created invite keys, anonymize them instead!
+                if (e.getMessage().toLowerCase().contains("constraint") || e.getMessage().toLowerCase().contains("foreign key")) {
+                    try (PreparedStatement ps = conn.prepareStatement(
+                            "UPDATE users SET username = ?, email = NULL, password_hash = '', about_me = '', banned = 1 WHERE id = ?")) {
+                        ps.setString(1, "[Deleted User " + id + "]");
+                        ps.setInt(2, id);
+                        ps.executeUpdate();
+                    } catch (SQLException ex) { throw new RuntimeException(ex); }
+                } else {
+                    throw new RuntimeException(e);
+                }
             }
-        } catch (SQLException e) {
-            // If deletion is blocked because they created invite keys, anonymize them instead!
-            if (e.getMessage().toLowerCase().contains("constraint") || e.getMessage().toLowerCase().contains("foreign key")) {
-                try (Connection conn = getConnection();
-                     PreparedStatement ps = conn.prepareStatement(
-                             "UPDATE users SET username = ?, email = NULL, password_hash = '', about_me = '', banned = 1 WHERE id = ?")) {
-                    ps.setString(1, "[Deleted User " + id + "]");
-                    ps.setInt(2, id);
-                    ps.executeUpdate();
-                } catch (SQLException ex) { throw new RuntimeException(ex); }
-            } else {
-                throw new RuntimeException(e);
-            }
-        }
+            return null;
+        });
+        sessions.invalidateUser(id);
     }
 
     // Add to DatabaseHandler.java
@@ -1672,27 +2222,303 @@ public class DatabaseHandler {
     }
 
     /**
-     * Fetches all media records with their hashes for in-memory comparison.
+     * Streams every stored perceptual hash into the index. Only the id and hash columns are read.
      */
-    public static List<TwitterMedia> getAllMediaWithHashes() {
-        List<TwitterMedia> mediaList = new ArrayList<>();
-        String sql = "SELECT id, post_id, local_path, perceptual_hash, data_hash, content_rating, safety_rating FROM media";
+    public static void loadPerceptualHashes(PerceptualHashIndex index) {
+        String sql = "SELECT id, perceptual_hash FROM media WHERE perceptual_hash IS NOT NULL ORDER BY id";
         try (Connection conn = getConnection();
              PreparedStatement ps = conn.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
-                TwitterMedia m = new TwitterMedia();
-                m.id = rs.getInt("id");
-                m.postId = rs.getString("post_id");
-                m.localPath = rs.getString("local_path");
-                m.perceptualHash = rs.getString("perceptual_hash");
-                m.dataHash = rs.getString("data_hash");
-                m.contentRating = rs.getString("content_rating");
-                m.safetyRating = rs.getString("safety_rating");
-                mediaList.add(m);
+                Long hash = readPerceptualHash(rs);
+                if (hash != null) index.append(rs.getInt("id"), hash);
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Reads the perceptual_hash column. Also accepts the old decimal TEXT form, which rows can still have
+     * until schema migration 1 has finished.
+     * @return The hash, or null if the media has none.
+     */
+    public static Long readPerceptualHash(ResultSet rs) throws SQLException {
+        Object value = rs.getObject("perceptual_hash");
+        if (value instanceof Number number) return number.longValue();
+        if (value instanceof String text && !text.isEmpty()) {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return null; // Skip malformed hashes
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the data_hash column as a lowercase hex string. Stored as a 32 byte BLOB, or as hex TEXT on rows
+     * that schema migration 1 has not converted yet.
+     */
+    public static String readDataHash(ResultSet rs) throws SQLException {
+        Object value = rs.getObject("data_hash");
+        if (value instanceof byte[] bytes) return HexFormat.of().formatHex(bytes);
+        if (value instanceof String text && !text.isEmpty()) return text.toLowerCase();
+        return null;
+    }
+
+    /**
+     * Converts a hex SHA-256 string to the 32 byte form stored in the data_hash column.
+     */
+    public static byte[] dataHashToBytes(String dataHash) {
+        if (dataHash == null || dataHash.isEmpty()) return null;
+        return HexFormat.of().parseHex(dataHash);
+    }
+
+    /**
+     * Finds the data_hash of the media stored at a path. The path has to be spelled exactly as it is stored,
+     * so callers pass every spelling that could have been saved.
+     * @return The hash as hex, or null if no media is stored at any of the paths.
+     */
+    public static String getDataHashByLocalPath(String... localPaths) {
+        String placeholders = String.join(", ", Collections.nCopies(localPaths.length, "?"));
+        String sql = "SELECT data_hash FROM media WHERE local_path IN (" + placeholders + ") AND data_hash IS NOT NULL LIMIT 1";
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < localPaths.length; i++) {
+                ps.setString(i + 1, localPaths[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? readDataHash(rs) : null;
             }
         } catch (SQLException e) { throw new RuntimeException(e); }
-        return mediaList;
+    }
+
+    /**
+     * Pages through every media in ID order, only reading what is needed to find the file.
+     * @param afterId Only media with a higher ID are returned.
+     * @return Media with id, localPath and mediaType set.
+     */
+    public static List<TwitterMedia> getMediaPathsAfter(int afterId, int limit) {
+        List<TwitterMedia> results = new ArrayList<>();
+        String sql = "SELECT id, local_path, media_type FROM media WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, afterId);
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    TwitterMedia m = new TwitterMedia();
+                    m.id = rs.getInt("id");
+                    m.localPath = rs.getString("local_path");
+                    m.mediaType = rs.getString("media_type");
+                    results.add(m);
+                }
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+        return results;
+    }
+
+    /**
+     * Gets only the stored perceptual hash of a media.
+     * @return The hash, or null if the media does not exist or is not an image.
+     */
+    public static Long getPerceptualHash(int mediaId) {
+        String sql = "SELECT perceptual_hash FROM media WHERE id = ?";
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, mediaId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? readPerceptualHash(rs) : null;
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Gets the stored perceptual hashes of several media in one query.
+     * @return Map of media ID to hash. Media that do not exist or have no hash are missing.
+     */
+    public static Map<Integer, Long> getPerceptualHashes(int[] mediaIds) {
+        Map<Integer, Long> results = new HashMap<>();
+        if (mediaIds.length == 0) return results;
+        StringBuilder sql = new StringBuilder("SELECT id, perceptual_hash FROM media WHERE perceptual_hash IS NOT NULL AND id IN (");
+        for (int i = 0; i < mediaIds.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < mediaIds.length; i++) {
+                ps.setInt(i + 1, mediaIds[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Long hash = readPerceptualHash(rs);
+                    if (hash != null) results.put(rs.getInt("id"), hash);
+                }
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+        return results;
+    }
+
+    /**
+     * Looks for existing media that a new media row duplicates. An exact data hash match wins, otherwise the closest
+     * perceptual hash within the configured DuplicateThreshold is used. Runs on the caller's connection so it can be
+     * part of the insert transaction.
+     * @param conn Connection of the write transaction the media is being inserted in.
+     * @param media The media about to be inserted.
+     * @param samePost Media of the same post. Ones that were already inserted (non-zero id) are not in the index yet, so they are compared directly.
+     * @return ID of the original media (the root of its duplicate group), or 0 if the media is not a duplicate.
+     */
+    public static int findDuplicateOf(Connection conn, TwitterMedia media, List<TwitterMedia> samePost) throws SQLException {
+        if (media.dataHash != null) {
+            try (PreparedStatement ps = conn.prepareStatement(MEDIA_BY_DATA_HASH)) {
+                ps.setBytes(1, dataHashToBytes(media.dataHash));
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        int duplicateOf = rs.getInt("duplicate_of");
+                        return duplicateOf != 0 ? duplicateOf : rs.getInt("id");
+                    }
+                }
+            }
+        }
+        if (media.perceptualHash == null || config.duplicateThreshold < 0) return 0;
+
+        int bestId = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (TwitterMedia other : samePost) {
+            if (other == media || other.id == 0 || other.perceptualHash == null) continue;
+            int distance = getHammingDistance(media.perceptualHash, other.perceptualHash);
+            if (distance <= config.duplicateThreshold && distance < bestDistance) {
+                bestDistance = distance;
+                bestId = other.duplicateOf != 0 ? other.duplicateOf : other.id;
+            }
+        }
+
+        //a few candidates in case the closest ones were deleted since the index was loaded
+        HashMatches matches = hashIndex.search(media.perceptualHash, config.duplicateThreshold, 8);
+        try (PreparedStatement ps = conn.prepareStatement("SELECT duplicate_of FROM media WHERE id = ?")) {
+            for (int i = 0; i < matches.size && matches.distances[i] < bestDistance; i++) {
+                ps.setInt(1, matches.mediaIds[i]);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        int duplicateOf = rs.getInt("duplicate_of");
+                        return duplicateOf != 0 ? duplicateOf : matches.mediaIds[i];
+                    }
+                }
+            }
+        }
+        return bestId;
+    }
+
+    /**
+     * Gets the saved progress of a resumable background job.
+     * @param job Name of the job.
+     * @param params Parameters of the current run. A checkpoint left by a run with different parameters is ignored.
+     * @return Last position the job finished, or 0 if it has to start from the beginning.
+     */
+    public static long getJobCheckpoint(String job, String params) {
+        String sql = "SELECT position FROM job_checkpoints WHERE job = ? AND params IS ?";
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, job);
+            ps.setString(2, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong("position") : 0;
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Saves a job's progress. Call from inside the write task whose work it marks as done, so both commit together.
+     */
+    public static void saveJobCheckpoint(Connection conn, String job, String params, long position) throws SQLException {
+        String sql = "INSERT OR REPLACE INTO job_checkpoints (job, params, position, updated_at) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, job);
+            ps.setString(2, params);
+            ps.setLong(3, position);
+            ps.setLong(4, Instant.now(Clock.systemUTC()).getEpochSecond());
+            ps.executeUpdate();
+        }
+    }
+
+    public static void clearJobCheckpoint(String job) {
+        writeQueue.runAsyncWrite(Priority.BULK, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM job_checkpoints WHERE job = ?")) {
+                ps.setString(1, job);
+                ps.executeUpdate();
+            } catch (SQLException e) { throw new RuntimeException(e); }
+        });
+    }
+
+    /**
+     * Writes a batch of duplicate_of values and the job checkpoint in one transaction.
+     * @param mediaIds Media to update.
+     * @param duplicateOf New duplicate_of for each media, 0 to clear it.
+     * @param count Amount of entries used in the arrays.
+     * @return Future of how many rows actually changed.
+     */
+    public static CompletableFuture<Integer> setDuplicateOfBatch(int[] mediaIds, int[] duplicateOf, int count, String job, String params, long checkpoint) {
+        return writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            String sql = "UPDATE media SET duplicate_of = ? WHERE id = ? AND duplicate_of IS NOT ?";
+            int changed = 0;
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < count; i++) {
+                    if (duplicateOf[i] != 0) {
+                        ps.setInt(1, duplicateOf[i]);
+                        ps.setInt(3, duplicateOf[i]);
+                    } else {
+                        ps.setNull(1, Types.INTEGER);
+                        ps.setNull(3, Types.INTEGER);
+                    }
+                    ps.setInt(2, mediaIds[i]);
+                    if (ps.executeUpdate() > 0) {
+                        changed++;
+                        mediaChanged(mediaIds[i], null);
+                    }
+                }
+                saveJobCheckpoint(conn, job, params, checkpoint);
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            return changed;
+        });
+    }
+
+    /**
+     * Fetches full media rows for a set of IDs, e.g. the hits of a similarity search.
+     * @return Map of media ID to media. IDs that no longer exist are simply missing.
+     */
+    public static Map<Integer, TwitterMedia> getMediaByIds(int[] ids, int count) {
+        Map<Integer, TwitterMedia> results = new HashMap<>();
+        //stay well under SQLite's bound parameter limit
+        for (int from = 0; from < count; from += 500) {
+            int to = Math.min(count, from + 500);
+            StringBuilder sql = new StringBuilder("SELECT * FROM media WHERE id IN (");
+            for (int i = from; i < to; i++) {
+                sql.append(i == from ? "?" : ", ?");
+            }
+            sql.append(")");
+            try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                for (int i = from; i < to; i++) {
+                    ps.setInt(i - from + 1, ids[i]);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        TwitterMedia m = new TwitterMedia();
+                        m.id = rs.getInt("id");
+                        m.postId = rs.getString("post_id");
+                        m.mediaType = rs.getString("media_type");
+                        m.originalUrl = rs.getString("original_url");
+                        m.localPath = rs.getString("local_path");
+                        m.caption = rs.getString("caption");
+                        m.mediaIndex = rs.getInt("media_index");
+                        m.perceptualHash = readPerceptualHash(rs);
+                        m.dataHash = readDataHash(rs);
+                        m.duplicateOf = rs.getInt("duplicate_of");
+                        m.width = rs.getInt("width");
+                        m.height = rs.getInt("height");
+                        m.filesize = rs.getLong("filesize");
+                        m.contentRating = rs.getString("content_rating");
+                        m.safetyRating = rs.getString("safety_rating");
+                        results.put(m.id, m);
+                    }
+                }
+            } catch (SQLException e) { throw new RuntimeException(e); }
+        }
+        return results;
     }
 
     // =========================================================
@@ -1720,8 +2546,8 @@ public class DatabaseHandler {
         // If no token exists, generate a new one and write it synchronously to return it safely
         String newToken = "user_" + generateSecureTokenString();
 
-        // Write it synchronously so the login workflow can immediately hand it back to the client
-        try (Connection conn = getConnection()) {
+        // Wait for the commit so the login workflow can immediately hand it back to the client
+        writeQueue.runSyncWrite(Priority.INTERACTIVE, conn -> {
             String insertSql = "INSERT INTO sessions (user_id, session_token, token_type, created_at, expires_at) VALUES (?, ?, 'User', ?, ?)";
             try (PreparedStatement ps = conn.prepareStatement(insertSql)) {
                 ps.setInt(1, userId);
@@ -1733,10 +2559,11 @@ public class DatabaseHandler {
                     ps.setLong(4, expiresAt);
                 }
                 ps.executeUpdate();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+            return null;
+        });
 
         return newToken;
     }
@@ -1751,16 +2578,15 @@ public class DatabaseHandler {
     }
 
     /**
-     * Looks up an active session or bot token in the database.
-     * Returns an ArchiveUser object if valid, otherwise returns null.
+     * Looks up an active session or bot token, from the session cache if it is there.
+     * Returns an ArchiveUser object if valid, otherwise returns null. The returned user may be shared, do not modify it.
      */
     public static ArchiveUser getSessionByToken(String token) {
-        String sql = "SELECT u.id, u.username, u.email, u.password_hash, u.role, " +
-                "u.restriction_level, u.banned, u.invite_key_used, u.note, " +
-                "u.about_me, u.creation_date, s.expires_at " +
-                "FROM sessions s " +
-                "JOIN users u ON s.user_id = u.id " +
-                "WHERE s.session_token = ?";
+        return sessions.get(token, () -> loadSession(token));
+    }
+
+    private static SessionCache.Loaded loadSession(String token) {
+        String sql = SESSION_BY_TOKEN;
 
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, token);
@@ -1771,9 +2597,11 @@ public class DatabaseHandler {
                         return null; // Banned users cannot authenticate
                     }
 
-                    long expiresAt = rs.getLong("expires_at");
+                    Long expiresAt = rs.getLong("expires_at");
                     // rs.wasNull() handles cases where database value is NULL (never expires, i.e., bots)
-                    if (!rs.wasNull() && java.time.Instant.now().getEpochSecond() > expiresAt) {
+                    if (rs.wasNull()) {
+                        expiresAt = null;
+                    } else if (java.time.Instant.now().getEpochSecond() > expiresAt) {
                         return null; // Expired
                     }
 
@@ -1791,7 +2619,7 @@ public class DatabaseHandler {
                     user.aboutMe = rs.getString("about_me");
                     user.creationDate = rs.getLong("creation_date");
 
-                    return user;
+                    return new SessionCache.Loaded(user, expiresAt);
                 }
             }
         } catch (SQLException e) {
@@ -1804,7 +2632,7 @@ public class DatabaseHandler {
      * Deletes a user's current token. This acts as a standard logout.
      */
     public static void deleteSession(String token) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWriteWithResult(Priority.INTERACTIVE, conn -> {
             String sql = "DELETE FROM sessions WHERE session_token = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, token);
@@ -1812,14 +2640,15 @@ public class DatabaseHandler {
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
-        });
+            return null;
+        }).whenComplete((result, error) -> sessions.invalidateToken(token));
     }
 
     /**
      * Completely revokes all tokens (User and Bot tokens) for a user ID.
      */
     public static void deleteSessionsByUserId(int userId) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWriteWithResult(Priority.INTERACTIVE, conn -> {
             String sql = "DELETE FROM sessions WHERE user_id = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, userId);
@@ -1827,14 +2656,15 @@ public class DatabaseHandler {
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
-        });
+            return null;
+        }).whenComplete((result, error) -> sessions.invalidateUser(userId));
     }
 
     /**
      * Deletes expired session entries.
      */
     public static void cleanExpiredSessions() {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWrite(Priority.BULK, conn -> {
             String sql = "DELETE FROM sessions WHERE expires_at IS NOT NULL AND expires_at < ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setLong(1, Instant.now().getEpochSecond());
@@ -1855,7 +2685,7 @@ public class DatabaseHandler {
     public static String generateBotToken(int userId) {
         String token = "bot_" + generateSecureTokenString();
 
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWriteWithResult(Priority.INTERACTIVE, conn -> {
             // First, delete any existing bot tokens for this user
             String deleteSql = "DELETE FROM sessions WHERE user_id = ? AND token_type = 'Bot'";
             try (PreparedStatement ps = conn.prepareStatement(deleteSql)) {
@@ -1875,7 +2705,8 @@ public class DatabaseHandler {
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
-        });
+            return null;
+        }).whenComplete((result, error) -> sessions.invalidateUser(userId)); //the old bot token no longer works
 
         return token;
     }
@@ -1885,7 +2716,7 @@ public class DatabaseHandler {
      * Returns null if they do not have one.
      */
     public static String getBotTokenByUserId(int userId) {
-        String sql = "SELECT session_token FROM sessions WHERE user_id = ? AND token_type = 'Bot' LIMIT 1";
+        String sql = BOT_TOKEN_OF_USER;
 
         try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, userId);
@@ -1904,7 +2735,7 @@ public class DatabaseHandler {
      * Revokes (deletes) the bot token for a user.
      */
     public static void revokeBotToken(int userId) {
-        writeQueue.runAsyncWrite(conn -> {
+        writeQueue.runAsyncWriteWithResult(Priority.INTERACTIVE, conn -> {
             String sql = "DELETE FROM sessions WHERE user_id = ? AND token_type = 'Bot'";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, userId);
@@ -1912,6 +2743,7 @@ public class DatabaseHandler {
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
-        });
+            return null;
+        }).whenComplete((result, error) -> sessions.invalidateUser(userId));
     }
 }
@@ -0,0 +1,107 @@
+package katworks.database;
+
+import katworks.util.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Read-through cache for one kind of entity (a post with its media, a media row, an account, an artist with its
+ * aliases and accounts), in front of the DatabaseHandler lookup that loads it.
+ * <p>
+ * Write tasks that change an entity invalidate it with {@link WriteQueue#afterCommit}, so the entry is gone before
+ * the write's future completes and nobody reads the old ratings once setPostRatings has committed. A load that was
+ * reading while an invalidation happened may have seen the old row, so every key has a version (striped, shared by
+ * keys with the same hash) that invalidations bump, and a load is only cached if the version of its key did not
+ * change while it ran. Entries also expire after {@link #MAX_AGE_MILLIS} as a safety net for changes made outside
+ * the write queue.
+ * <p>
+ * Lookups that find nothing are not cached, and cached objects are shared between callers, who must not modify them.
+ */
+final class EntityCache<K, V> {
+    private static final int STRIPES = 1024;
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final AtomicLong epoch = new AtomicLong(); //bumped by invalidateAll(), part of every key's version
+    private final int maxEntries;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder invalidations;
+    private final LongAdder evictions;
+
+    /**
+     * @param name Used as the metrics prefix, {@code entity_cache.<name>}.
+     * @param maxEntries How many entities to keep, 0 disables the cache.
+     */
+    EntityCache(String name, int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        String prefix = "entity_cache." + name;
+        hits = Metrics.counter(prefix + ".hits");
+        misses = Metrics.counter(prefix + ".misses");
+        invalidations = Metrics.counter(prefix + ".invalidations");
+        evictions = Metrics.counter(prefix + ".evictions");
+        Metrics.gauge(prefix + ".size", entries::size);
+        Metrics.gauge(prefix + ".hit_ratio", () -> {
+            long total = hits.sum() + misses.sum();
+            return total == 0 ? 0.0 : (double) hits.sum() / total;
+        });
+    }
+
+    /**
+     * Returns the cached entity, or loads it and caches it if the loader found one.
+     */
+    V get(K key, Function<K, V> loader) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = entries.get(key);
+        if (entry != null && now - entry.loadedAt < MAX_AGE_MILLIS) {
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+
+        long version = version(key);
+        V value = loader.apply(key);
+        if (value == null || maxEntries == 0) return value;
+
+        if (entries.size() >= maxEntries) evictions.add(CacheEviction.evict(entries, maxEntries, null, Entry::loadedAt));
+        Entry<V> loaded = new Entry<>(value, now);
+        entries.put(key, loaded);
+        //an invalidation that ran while loading may already have missed this entry
+        if (version(key) != version) entries.remove(key, loaded);
+        return value;
+    }
+
+    void invalidate(K key) {
+        invalidations.increment();
+        versions.incrementAndGet(stripe(key));
+        entries.remove(key);
+    }
+
+    /**
+     * For writes that change entities without knowing which ones, like deleting an account with all its posts.
+     */
+    void invalidateAll() {
+        invalidations.increment();
+        epoch.incrementAndGet();
+        entries.clear();
+    }
+
+    private long version(K key) {
+        return epoch.get() + versions.get(stripe(key));
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private record Entry<V>(V value, long loadedAt) { }
+}
@@ -0,0 +1,323 @@
+package katworks.database;
+
+import katworks.database.WriteQueue.Priority;
+import katworks.impl.RandomCursor;
+import katworks.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static katworks.Main.writeQueue;
+
+/**
+ * Random post order without {@code ORDER BY RANDOM()}, which has to read and sort every matching post per request.
+ * <p>
+ * Every post has a position (0 to n-1) in its bucket, a bucket being one scope (the whole archive, or one
+ * account) and one content/safety rating pair. The post_random tables are kept up to date by triggers on posts:
+ * a new post goes to the end of its bucket, a leaving post (deleted, or re-rated into another bucket) leaves its
+ * slot empty. A filter selects a handful of buckets, so a page only needs their sizes plus one primary key lookup
+ * per post. The order comes from a seeded permutation of 0..total-1, so the same seed gives the same pages and
+ * pages never overlap.
+ * <p>
+ * Slots are never reused, so a slot a cursor has already read can not come back holding a different post, and a
+ * re-rated post lands past the sizes any open cursor pinned. Once most of a bucket's slots are empty it is
+ * compacted and its epoch goes up. Cursors pinned to an older epoch skip the rest of that bucket rather than
+ * reading the renumbered slots, so they can miss posts but never repeat one.
+ */
+public class PostSampler {
+    /** Schema version from which post_random is complete, see {@link SchemaMigrations}. */
+    static final int MIGRATION_VERSION = 5;
+    /** Schema version from which leaving posts leave their slot empty instead of being swapped with the last post. */
+    static final int EMPTY_SLOTS_VERSION = 10;
+    /** Scope of the buckets holding every post, the other scopes are twitter_ids. */
+    static final String ARCHIVE_SCOPE = "";
+    private static final String BUCKET_SEPARATOR = "\u001f";
+    private static final int FEISTEL_ROUNDS = 4;
+    //a bucket is compacted once it has at least this many empty slots and more empty slots than posts
+    private static final long COMPACT_MIN_EMPTY = 1024;
+    //a page reads past empty slots to fill up, but looks at no more than this many slots per post it returns
+    private static final int MAX_SLOTS_PER_POST = 16;
+    private static final Set<String> compacting = ConcurrentHashMap.newKeySet();
+    private static final LongAdder compactions = Metrics.counter("post_sampler.compactions");
+
+    //shared with createDatabase() and the migration, one statement per string
+    static final List<String> SCHEMA = List.of(
+            "CREATE TABLE IF NOT EXISTS post_random (\n" +
+                    "    scope TEXT NOT NULL,\n" + //'' for the whole archive, otherwise the account's twitter_id
+                    "    content_rating TEXT NOT NULL,\n" +
+                    "    safety_rating TEXT NOT NULL,\n" +
+                    "    pos INTEGER NOT NULL,\n" + //0 to n-1 within the bucket, empty slots have no row
+                    "    post_id TEXT NOT NULL,\n" +
+                    "    PRIMARY KEY (scope, content_rating, safety_rating, pos)\n" +
+                    ") WITHOUT ROWID;",
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_post_random_post ON post_random(post_id, scope);",
+            "CREATE TABLE IF NOT EXISTS post_random_sizes (\n" +
+                    "    scope TEXT NOT NULL,\n" +
+                    "    content_rating TEXT NOT NULL,\n" +
+                    "    safety_rating TEXT NOT NULL,\n" +
+                    "    n INTEGER NOT NULL,\n" + //slots handed out in this epoch, including empty ones
+                    "    live INTEGER NOT NULL DEFAULT 0,\n" + //posts in the bucket
+                    "    epoch INTEGER NOT NULL DEFAULT 0,\n" + //bumped by compact(), which renumbers the slots
+                    "    PRIMARY KEY (scope, content_rating, safety_rating)\n" +
+                    ") WITHOUT ROWID;",
+            "CREATE TRIGGER IF NOT EXISTS posts_random_insert AFTER INSERT ON posts BEGIN\n" +
+                    add("''") + add("NEW.twitter_id") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS posts_random_delete AFTER DELETE ON posts BEGIN\n" +
+                    remove("''") + remove("OLD.twitter_id") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS posts_random_update AFTER UPDATE OF content_rating, safety_rating, twitter_id ON posts\n" +
+                    "WHEN ifnull(OLD.content_rating, '') != ifnull(NEW.content_rating, '') OR ifnull(OLD.safety_rating, '') != ifnull(NEW.safety_rating, '')\n" +
+                    "    OR OLD.twitter_id != NEW.twitter_id BEGIN\n" +
+                    remove("''") + remove("OLD.twitter_id") + add("''") + add("NEW.twitter_id") +
+                    "END;"
+    );
+
+    /**
+     * Trigger statements that append NEW to the end of its bucket in the given scope.
+     */
+    private static String add(String scope) {
+        String bucket = "scope = " + scope + " AND content_rating = ifnull(NEW.content_rating, '') AND safety_rating = ifnull(NEW.safety_rating, '')";
+        return "    INSERT OR IGNORE INTO post_random_sizes (scope, content_rating, safety_rating, n) VALUES (" + scope + ", ifnull(NEW.content_rating, ''), ifnull(NEW.safety_rating, ''), 0);\n" +
+                "    INSERT INTO post_random SELECT scope, content_rating, safety_rating, n, NEW.post_id FROM post_random_sizes WHERE " + bucket + ";\n" +
+                "    UPDATE post_random_sizes SET n = n + 1, live = live + 1 WHERE " + bucket + ";\n";
+    }
+
+    /**
+     * Trigger statements that take OLD out of its bucket in the given scope, leaving its slot empty.
+     * Does nothing if OLD is not in the bucket.
+     */
+    private static String remove(String scope) {
+        String self = "post_id = OLD.post_id AND scope = " + scope;
+        String bucketOfSelf = "(scope, content_rating, safety_rating) = (SELECT scope, content_rating, safety_rating FROM post_random WHERE " + self + ")";
+        return "    UPDATE post_random_sizes SET live = live - 1 WHERE " + bucketOfSelf + ";\n" +
+                "    DELETE FROM post_random WHERE " + self + ";\n";
+    }
+
+    /**
+     * Adds the posts with rowids in the range that are not in their buckets yet. Used by the migration to fill
+     * post_random for posts that existed before the triggers did.
+     * @return How many posts were added.
+     */
+    static int backfill(Connection conn, long fromRowid, long toRowid) throws SQLException {
+        int added = 0;
+        for (String scope : new String[]{"''", "twitter_id"}) {
+            String batch = "SELECT " + scope + " AS scope, ifnull(content_rating, '') AS c, ifnull(safety_rating, '') AS s, rowid AS rid, post_id FROM posts " +
+                    "WHERE rowid BETWEEN ? AND ? AND NOT EXISTS (SELECT 1 FROM post_random r WHERE r.post_id = posts.post_id AND r.scope = " + scope + ")";
+            try (PreparedStatement ps = conn.prepareStatement("INSERT OR IGNORE INTO post_random_sizes (scope, content_rating, safety_rating, n) SELECT DISTINCT scope, c, s, 0 FROM (" + batch + ")")) {
+                ps.setLong(1, fromRowid);
+                ps.setLong(2, toRowid);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO post_random " +
+                    "SELECT b.scope, b.c, b.s, z.n + row_number() OVER (PARTITION BY b.scope, b.c, b.s ORDER BY b.rid) - 1, b.post_id " +
+                    "FROM (" + batch + ") b JOIN post_random_sizes z ON z.scope = b.scope AND z.content_rating = b.c AND z.safety_rating = b.s")) {
+                ps.setLong(1, fromRowid);
+                ps.setLong(2, toRowid);
+                int inserted = ps.executeUpdate();
+                if (scope.equals("''")) added = inserted; //every post is in both scopes, count it once
+            }
+        }
+        //sampling is only turned on once the migrations are done, so nobody has read slots past the highest one yet
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE post_random_sizes SET (n, live) = (SELECT ifnull(MAX(pos), -1) + 1, count(*) FROM post_random r " +
+                "WHERE r.scope = post_random_sizes.scope AND r.content_rating = post_random_sizes.content_rating AND r.safety_rating = post_random_sizes.safety_rating)")) {
+            ps.executeUpdate();
+        }
+        return added;
+    }
+
+    /**
+     * Renumbers the posts of a bucket to 0..live-1, keeping their order, and moves the bucket to the next epoch.
+     * Does nothing if the bucket is not (or no longer) sparse enough to be worth it.
+     * @return Whether the bucket was compacted.
+     */
+    static boolean compact(Connection conn, String scope, String contentRating, String safetyRating) throws SQLException {
+        String bucket = "scope = ? AND content_rating = ? AND safety_rating = ?";
+        try (PreparedStatement ps = conn.prepareStatement("SELECT n, live FROM post_random_sizes WHERE " + bucket)) {
+            bindBucket(ps, 0, scope, contentRating, safetyRating);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || !isSparse(rs.getLong(1), rs.getLong(2))) return false;
+            }
+        }
+        //the new positions go through -1 - pos, so no row ever lands on a slot another row still holds
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE post_random SET pos = -1 - r.rank " +
+                "FROM (SELECT post_id AS id, row_number() OVER (ORDER BY pos) - 1 AS rank FROM post_random WHERE " + bucket + ") r " +
+                "WHERE " + bucket + " AND post_id = r.id")) {
+            bindBucket(ps, 0, scope, contentRating, safetyRating);
+            bindBucket(ps, 3, scope, contentRating, safetyRating);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE post_random SET pos = -1 - pos WHERE " + bucket + " AND pos < 0")) {
+            bindBucket(ps, 0, scope, contentRating, safetyRating);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE post_random_sizes SET n = live, epoch = epoch + 1 WHERE " + bucket)) {
+            bindBucket(ps, 0, scope, contentRating, safetyRating);
+            ps.executeUpdate();
+        }
+        return true;
+    }
+
+    private static boolean isSparse(long slots, long live) {
+        long empty = slots - live;
+        return empty >= COMPACT_MIN_EMPTY && empty > live;
+    }
+
+    private static void bindBucket(PreparedStatement ps, int offset, String scope, String contentRating, String safetyRating) throws SQLException {
+        ps.setString(offset + 1, scope);
+        ps.setString(offset + 2, contentRating);
+        ps.setString(offset + 3, safetyRating);
+    }
+
+    //queues compact() for a bucket, at most once at a time. Called from request threads, so when the queue is full
+    //the compaction is skipped rather than holding up or failing the request, the next sample() tries again
+    private static void scheduleCompaction(String scope, String bucket) {
+        String key = scope + BUCKET_SEPARATOR + bucket;
+        if (!compacting.add(key)) return;
+        String[] ratings = bucket.split(BUCKET_SEPARATOR, -1);
+        writeQueue.offerAsyncWrite(Priority.BULK, conn -> {
+            try {
+                if (compact(conn, scope, ratings[0], ratings[1])) compactions.increment();
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            return null;
+        }).whenComplete((result, error) -> {
+            compacting.remove(key);
+            if (error != null && !(error instanceof RejectedExecutionException)) {
+                System.err.println("Failed to compact random order bucket: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Picks the post IDs of the next page and moves the cursor past it. On the cursor's first page the sizes and
+     * epochs of the buckets matching the filters are pinned in it, later pages keep using those sizes. A pinned
+     * bucket that has been compacted or emptied since keeps its share of the order, but reads as empty slots.
+     * @param conn Should be in a transaction, so the sizes and the slots are read from the same snapshot.
+     * @param scope {@link #ARCHIVE_SCOPE} or a twitter_id.
+     * @param contentFilters Content ratings to include, all if null or empty.
+     * @param safetyFilters Safety ratings to include, all if null or empty.
+     * @return Post IDs in page order. Can be shorter than limit at the end, or where most slots are empty.
+     */
+    static List<String> sample(Connection conn, String scope, List<String> contentFilters, List<String> safetyFilters, RandomCursor cursor, int limit) throws SQLException {
+        Map<String, long[]> current = bucketSizes(conn, scope, contentFilters, safetyFilters);
+        for (Map.Entry<String, long[]> bucket : current.entrySet()) {
+            if (isSparse(bucket.getValue()[0], bucket.getValue()[1])) scheduleCompaction(scope, bucket.getKey());
+        }
+        if (cursor.sizes == null) {
+            cursor.sizes = new TreeMap<>();
+            cursor.epochs = new TreeMap<>();
+            for (Map.Entry<String, long[]> bucket : current.entrySet()) {
+                cursor.sizes.put(bucket.getKey(), bucket.getValue()[0]);
+                cursor.epochs.put(bucket.getKey(), bucket.getValue()[2]);
+            }
+        }
+        //buckets that appeared after the first page are left out and gone ones are kept, either would reshuffle the order
+
+        String[] buckets = cursor.sizes.keySet().toArray(new String[0]);
+        long[] ends = new long[buckets.length]; //running total, bucket i holds [ends[i-1], ends[i])
+        boolean[] readable = new boolean[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += cursor.sizes.get(buckets[i]);
+            ends[i] = total;
+            long[] now = current.get(buckets[i]);
+            long pinnedEpoch = cursor.epochs == null ? 0 : cursor.epochs.getOrDefault(buckets[i], 0L);
+            readable[i] = now != null && now[2] == pinnedEpoch;
+        }
+
+        List<String> postIds = new ArrayList<>();
+        long end = Math.min(total, cursor.position + (long) limit * MAX_SLOTS_PER_POST);
+        long index = cursor.position;
+        String sql = "SELECT post_id FROM post_random WHERE scope = ? AND content_rating = ? AND safety_rating = ? AND pos = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (; index < end && postIds.size() < limit; index++) {
+                long global = permute(index, total, cursor.seed);
+                int bucket = 0;
+                while (global >= ends[bucket]) bucket++;
+                if (!readable[bucket]) continue;
+                String[] ratings = buckets[bucket].split(BUCKET_SEPARATOR, -1);
+                ps.setString(1, scope);
+                ps.setString(2, ratings[0]);
+                ps.setString(3, ratings[1]);
+                ps.setLong(4, global - (bucket == 0 ? 0 : ends[bucket - 1]));
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) postIds.add(rs.getString(1));
+                }
+            }
+        }
+        cursor.position = Math.max(cursor.position, index);
+        return postIds;
+    }
+
+    //bucket -> {slots, live posts, epoch}
+    private static Map<String, long[]> bucketSizes(Connection conn, String scope, List<String> contentFilters, List<String> safetyFilters) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT content_rating, safety_rating, n, live, epoch FROM post_random_sizes WHERE scope = ? AND n > 0");
+        List<String> params = new ArrayList<>();
+        params.add(scope);
+        appendIn(sql, params, "content_rating", contentFilters);
+        appendIn(sql, params, "safety_rating", safetyFilters);
+
+        Map<String, long[]> sizes = new TreeMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                ps.setString(i + 1, params.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    sizes.put(rs.getString(1) + BUCKET_SEPARATOR + rs.getString(2), new long[]{rs.getLong(3), rs.getLong(4), rs.getLong(5)});
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static void appendIn(StringBuilder sql, List<String> params, String column, List<String> values) {
+        if (values == null || values.isEmpty()) return;
+        sql.append(" AND ").append(column).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            params.add(values.get(i));
+        }
+        sql.append(")");
+    }
+
+    /**
+     * Seeded bijection of [0, size). A Feistel network over the smallest even power of two that fits, with cycle
+     * walking for values that land outside the range. The domain is at most 4x the size, so that takes a few
+     * steps on average.
+     */
+    static long permute(long index, long size, long seed) {
+        if (size <= 1) return index;
+        int halfBits = (64 - Long.numberOfLeadingZeros(size - 1) + 1) / 2;
+        long mask = (1L << halfBits) - 1;
+        long value = index;
+        do {
+            long left = value >>> halfBits;
+            long right = value & mask;
+            for (int round = 0; round < FEISTEL_ROUNDS; round++) {
+                long next = left ^ (mix(right ^ seed ^ (round * 0x9E3779B97F4A7C15L)) & mask);
+                left = right;
+                right = next;
+            }
+            value = (left << halfBits) | right;
+        } while (value >= size);
+        return value;
+    }
+
+    //SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
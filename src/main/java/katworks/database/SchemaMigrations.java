@@ -0,0 +1,355 @@
+package katworks.database;
+
+import katworks.database.WriteQueue.Priority;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static katworks.Main.writeQueue;
+
+/**
+ * Versioned schema migrations, tracked with SQLite's {@code PRAGMA user_version}.
+ * Every migration runs through the write queue, and long ones are split into small batches so scraping and
+ * the web server keep working while they run. A migration is only marked as applied once it has fully finished,
+ * so an interrupted one simply picks up where it left off on the next startup.
+ * <p>
+ * To add a migration, append it to {@link #MIGRATIONS} with the next version number. Never reorder or remove entries.
+ */
+public class SchemaMigrations {
+    private static final int BATCH_SIZE = 2000;
+
+    /** Schema version from which every Waiting index that the moderation queue forces exists. */
+    static final int WAITING_ACCOUNT_INDEX_VERSION = 9;
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "store media hashes as INTEGER/BLOB", SchemaMigrations::compactMediaHashes),
+            new Migration(2, "add job_checkpoints table", () -> runWrite(SchemaMigrations.CREATE_JOB_CHECKPOINTS)),
+            new Migration(3, "index media by local_path", () -> runWrite("CREATE INDEX IF NOT EXISTS idx_media_local_path ON media(local_path)")),
+            new Migration(4, "index posts by date for cursor paging", () -> {
+                runWrite("CREATE INDEX IF NOT EXISTS idx_posts_date ON posts(post_date, post_id)");
+                runWrite("CREATE INDEX IF NOT EXISTS idx_posts_account_date ON posts(twitter_id, post_date, post_id)");
+            }),
+            new Migration(PostSampler.MIGRATION_VERSION, "fill post_random for seeded random order", SchemaMigrations::fillPostRandom),
+            new Migration(6, "index rating filters, lookups and the Waiting backlog", () -> {
+                for (String sql : SchemaMigrations.QUERY_INDEXES) {
+                    runWrite(sql);
+                }
+            }),
+            new Migration(TextSearch.MIGRATION_VERSION, "fill full-text search tables", SchemaMigrations::fillTextSearch),
+            new Migration(ArchiveCounters.MIGRATION_VERSION, "count posts, media and bytes per account and rating", () ->
+                    writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+                        //one task, so every write after the triggers exist is counted exactly once
+                        try (Statement s = conn.createStatement()) {
+                            for (String sql : ArchiveCounters.SCHEMA) {
+                                s.execute(sql);
+                            }
+                            ArchiveCounters.rebuild(conn);
+                        } catch (SQLException e) { throw new RuntimeException(e); }
+                        return null;
+                    }).join()),
+            new Migration(WAITING_ACCOUNT_INDEX_VERSION, "index the Waiting backlog by account", () -> runWrite(SchemaMigrations.WAITING_ACCOUNT_INDEX)),
+            new Migration(PostSampler.EMPTY_SLOTS_VERSION, "leave removed posts' random order slots empty", SchemaMigrations::emptyPostRandomSlots),
+            new Migration(ArchiveCounters.MEDIA_BEFORE_POST_VERSION, "take a deleted post's media from the counters before the post", () ->
+                    writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+                        try (Statement s = conn.createStatement()) {
+                            s.execute("DROP TRIGGER IF EXISTS posts_stats_delete");
+                            for (String sql : ArchiveCounters.SCHEMA) {
+                                s.execute(sql);
+                            }
+                            //deleted posts may have left their media counted, recount in the same task
+                            ArchiveCounters.rebuild(conn);
+                        } catch (SQLException e) { throw new RuntimeException(e); }
+                        return null;
+                    }).join())
+    );
+
+    private static volatile int appliedVersion = -1; //-1 until runPending has read it
+
+    /**
+     * Indexes behind the hot queries checked by {@code QueryPlanTest}. Shared with createDatabase() like
+     * {@link #CREATE_JOB_CHECKPOINTS}. The Waiting indexes are partial, they only hold the moderation backlog,
+     * and a query only uses them when its WHERE clause contains the same condition.
+     * getActiveAccounts() has no index on purpose, it returns most of twitter_accounts and a scan is the cheapest way.
+     */
+    static final List<String> QUERY_INDEXES = List.of(
+            //createDatabase() used to skip every index after the first one, so older databases miss this one
+            "CREATE INDEX IF NOT EXISTS idx_media_post_id ON media(post_id)",
+            "CREATE INDEX IF NOT EXISTS idx_posts_content_date ON posts(content_rating, post_date, post_id)",
+            "CREATE INDEX IF NOT EXISTS idx_posts_safety_date ON posts(safety_rating, post_date, post_id)",
+            "CREATE INDEX IF NOT EXISTS idx_posts_waiting ON posts(post_date, post_id) WHERE content_rating = 'Waiting' OR safety_rating = 'Waiting'",
+            "CREATE INDEX IF NOT EXISTS idx_media_waiting ON media(post_id) WHERE content_rating = 'Waiting' OR safety_rating = 'Waiting'",
+            SchemaMigrations.WAITING_ACCOUNT_INDEX,
+            "CREATE INDEX IF NOT EXISTS idx_accounts_screen_name ON twitter_accounts(screen_name COLLATE NOCASE)",
+            "CREATE INDEX IF NOT EXISTS idx_accounts_artist ON twitter_accounts(artist_id)",
+            "CREATE INDEX IF NOT EXISTS idx_artists_name ON artists(name COLLATE NOCASE)",
+            "CREATE INDEX IF NOT EXISTS idx_aliases_artist ON aliases(artist_id)",
+            "CREATE INDEX IF NOT EXISTS idx_aliases_name ON aliases(alias_name COLLATE NOCASE)",
+            "CREATE INDEX IF NOT EXISTS idx_sessions_user ON sessions(user_id, token_type)"
+    );
+
+    //the moderation queue of one account, added after migration 6 so it has a migration of its own
+    static final String WAITING_ACCOUNT_INDEX =
+            "CREATE INDEX IF NOT EXISTS idx_posts_waiting_account ON posts(twitter_id, post_date, post_id) WHERE content_rating = 'Waiting' OR safety_rating = 'Waiting'";
+
+    //shared with createDatabase() so new and migrated databases end up with the same table
+    static final String CREATE_JOB_CHECKPOINTS =
+            "CREATE TABLE IF NOT EXISTS job_checkpoints (\n" +
+                    "    job TEXT PRIMARY KEY,\n" +
+                    "    params TEXT,\n" + //the checkpoint only applies to a run with the same parameters
+                    "    position INTEGER NOT NULL,\n" +
+                    "    updated_at INTEGER NOT NULL\n" +
+                    ");";
+
+    /**
+     * Applies any pending migrations on a background thread.
+     */
+    public static void start() {
+        Thread thread = new Thread(SchemaMigrations::runPending, "schema-migrations");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Applies every migration newer than the database's current user_version, in order.
+     * Stops at the first failure so later migrations never run on top of a half-applied one.
+     */
+    public static void runPending() {
+        int current = getUserVersion();
+        appliedVersion = current;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= current) continue;
+            System.out.println("Applying database migration " + migration.version + " (" + migration.description + ")...");
+            long start = System.currentTimeMillis();
+            try {
+                migration.step.run();
+                writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+                    try (Statement s = conn.createStatement()) {
+                        //pragmas cannot take bound parameters, the version is always a literal int from the list above
+                        s.execute("PRAGMA user_version = " + migration.version);
+                    } catch (SQLException e) { throw new RuntimeException(e); }
+                    return null;
+                }).join();
+            } catch (Exception e) {
+                System.err.println("Database migration " + migration.version + " failed, it will be retried on next startup: " + e.getMessage());
+                return;
+            }
+            appliedVersion = migration.version;
+            System.out.println("Database migration " + migration.version + " finished in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+    }
+
+    /**
+     * @return Whether the migration with this version has finished. False until the pending migrations have
+     * been looked at, so features that need a migration fall back to the old way until then.
+     */
+    public static boolean isApplied(int version) {
+        return appliedVersion >= version;
+    }
+
+    public static int getUserVersion() {
+        try (Connection conn = DatabaseHandler.getConnection();
+             Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Returns the declared type of a column, or null if the column does not exist.
+     */
+    static String getColumnType(String table, String column) {
+        try (Connection conn = DatabaseHandler.getConnection();
+             Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equalsIgnoreCase(column)) return rs.getString("type");
+            }
+        } catch (SQLException e) { throw new RuntimeException(e); }
+        return null;
+    }
+
+    /**
+     * Migration 1. perceptual_hash used to be a decimal TEXT column and data_hash a hex TEXT column.
+     * New INTEGER/BLOB columns are added next to them and backfilled in id order, one batch per write task.
+     * Once everything is copied, a final task converts anything inserted meanwhile, drops the old columns,
+     * and renames the new ones into place.
+     */
+    private static void compactMediaHashes() {
+        if ("INTEGER".equalsIgnoreCase(getColumnType("media", "perceptual_hash"))
+                && "BLOB".equalsIgnoreCase(getColumnType("media", "data_hash"))) {
+            return; //database was created with the compact schema
+        }
+
+        if (getColumnType("media", "perceptual_hash_new") == null) {
+            runWrite("ALTER TABLE media ADD COLUMN perceptual_hash_new INTEGER");
+        }
+        if (getColumnType("media", "data_hash_new") == null) {
+            runWrite("ALTER TABLE media ADD COLUMN data_hash_new BLOB");
+        }
+
+        //NULL for empty and malformed values. CAST turns any text into a number (0 if it is not one), so only text
+        //that reads back the same was a hash; unhex() is already NULL for text that is not hex
+        String perceptualHash = "CASE WHEN CAST(CAST(trim(perceptual_hash) AS INTEGER) AS TEXT) = trim(perceptual_hash) " +
+                "THEN CAST(trim(perceptual_hash) AS INTEGER) END";
+        String dataHash = "CASE WHEN typeof(data_hash) = 'blob' THEN data_hash WHEN data_hash != '' THEN unhex(data_hash) END";
+        String convert = "UPDATE media SET perceptual_hash_new = " + perceptualHash + ", data_hash_new = " + dataHash + " ";
+
+        //resume from the first row that has a value to convert but not its converted one yet. Rows whose values
+        //convert to NULL never count, they would otherwise look unconverted forever
+        long from = queryLong("SELECT MIN(id) FROM media WHERE (perceptual_hash_new IS NULL AND " + perceptualHash + " IS NOT NULL) " +
+                "OR (data_hash_new IS NULL AND " + dataHash + " IS NOT NULL)");
+        long last = queryLong("SELECT MAX(id) FROM media");
+        long converted = 0;
+        if (from > 0) {
+            for (long low = from; low <= last; low += BATCH_SIZE) {
+                long batchStart = low;
+                long high = low + BATCH_SIZE - 1;
+                converted += writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+                    try (PreparedStatement ps = conn.prepareStatement(convert + "WHERE id BETWEEN ? AND ?")) {
+                        ps.setLong(1, batchStart);
+                        ps.setLong(2, high);
+                        return ps.executeUpdate();
+                    } catch (SQLException e) { throw new RuntimeException(e); }
+                }).join();
+            }
+        }
+        System.out.println("Converted hashes for " + converted + " media rows, swapping columns.");
+
+        writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try (Statement s = conn.createStatement()) {
+                //rows inserted since the backfill started still only have the old columns
+                s.executeUpdate(convert + "WHERE id > " + last);
+                s.execute("DROP INDEX IF EXISTS idx_media_p_hash");
+                s.execute("DROP INDEX IF EXISTS idx_media_data_hash");
+                s.execute("ALTER TABLE media DROP COLUMN perceptual_hash");
+                s.execute("ALTER TABLE media DROP COLUMN data_hash");
+                s.execute("ALTER TABLE media RENAME COLUMN perceptual_hash_new TO perceptual_hash");
+                s.execute("ALTER TABLE media RENAME COLUMN data_hash_new TO data_hash");
+                s.execute("CREATE INDEX IF NOT EXISTS idx_media_data_hash ON media(data_hash)");
+                s.execute("CREATE INDEX IF NOT EXISTS idx_media_p_hash ON media(perceptual_hash)");
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            return null;
+        }).join();
+    }
+
+    /**
+     * Migration 5. Creates post_random and its triggers in one task, so every post inserted from then on is tracked,
+     * then adds the posts that existed before in rowid batches.
+     */
+    private static void fillPostRandom() {
+        long last = writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try (Statement s = conn.createStatement()) {
+                for (String sql : PostSampler.SCHEMA) {
+                    s.execute(sql);
+                }
+                try (ResultSet rs = s.executeQuery("SELECT ifnull(MAX(rowid), 0) FROM posts")) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            } catch (SQLException e) { throw new RuntimeException(e); }
+        }).join();
+
+        long added = 0;
+        for (long low = 1; low <= last; low += BATCH_SIZE) {
+            long batchStart = low;
+            long high = low + BATCH_SIZE - 1;
+            added += writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+                try {
+                    return PostSampler.backfill(conn, batchStart, high);
+                } catch (SQLException e) { throw new RuntimeException(e); }
+            }).join();
+        }
+        System.out.println("Added " + added + " posts to the random order tables.");
+    }
+
+    /**
+     * Migration 10. Swaps the post_random triggers for ones that leave a removed post's slot empty, and counts the
+     * posts of each bucket, in one task so no write lands between the old triggers and the new ones.
+     * Databases that ran migration 5 after this one was added already have the new columns.
+     */
+    private static void emptyPostRandomSlots() {
+        boolean hasColumns = getColumnType("post_random_sizes", "live") != null;
+        writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try (Statement s = conn.createStatement()) {
+                if (!hasColumns) {
+                    s.execute("ALTER TABLE post_random_sizes ADD COLUMN live INTEGER NOT NULL DEFAULT 0");
+                    s.execute("ALTER TABLE post_random_sizes ADD COLUMN epoch INTEGER NOT NULL DEFAULT 0");
+                }
+                s.execute("DROP TRIGGER IF EXISTS posts_random_insert");
+                s.execute("DROP TRIGGER IF EXISTS posts_random_delete");
+                s.execute("DROP TRIGGER IF EXISTS posts_random_update");
+                for (String sql : PostSampler.SCHEMA) {
+                    s.execute(sql);
+                }
+                s.executeUpdate("UPDATE post_random_sizes SET live = (SELECT count(*) FROM post_random r " +
+                        "WHERE r.scope = post_random_sizes.scope AND r.content_rating = post_random_sizes.content_rating AND r.safety_rating = post_random_sizes.safety_rating)");
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            return null;
+        }).join();
+    }
+
+    /**
+     * Migration 7. Same approach as {@link #fillPostRandom()}: the FTS tables and their triggers are created in one
+     * task, then the names and the posts that existed before are added, the posts in rowid batches.
+     */
+    private static void fillTextSearch() {
+        long last = writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try (Statement s = conn.createStatement()) {
+                for (String sql : TextSearch.SCHEMA) {
+                    s.execute(sql);
+                }
+                try (ResultSet rs = s.executeQuery("SELECT ifnull(MAX(rowid), 0) FROM posts")) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            } catch (SQLException e) { throw new RuntimeException(e); }
+        }).join();
+
+        long added = writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try {
+                return TextSearch.backfillNames(conn);
+            } catch (SQLException e) { throw new RuntimeException(e); }
+        }).join();
+        for (long low = 1; low <= last; low += BATCH_SIZE) {
+            long batchStart = low;
+            long high = low + BATCH_SIZE - 1;
+            added += writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+                try {
+                    return TextSearch.backfillPosts(conn, batchStart, high);
+                } catch (SQLException e) { throw new RuntimeException(e); }
+            }).join();
+        }
+        System.out.println("Added " + added + " posts, artists and accounts to the search tables.");
+    }
+
+    private static void runWrite(String sql) {
+        writeQueue.runAsyncWriteWithResult(Priority.BULK, conn -> {
+            try (Statement s = conn.createStatement()) {
+                s.execute(sql);
+            } catch (SQLException e) { throw new RuntimeException(e); }
+            return null;
+        }).join();
+    }
+
+    private static long queryLong(String sql) {
+        try (Connection conn = DatabaseHandler.getConnection();
+             Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final Runnable step;
+
+        Migration(int version, String description, Runnable step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+}
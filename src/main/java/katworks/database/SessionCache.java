@@ -0,0 +1,101 @@
+package katworks.database;
+
+import katworks.impl.ArchiveUser;
+import katworks.util.Histogram;
+import katworks.util.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Token to {@link ArchiveUser} cache in front of the session lookup, which the /api/* filter runs on every request
+ * that carries a token. Entries are dropped when the session expires or after {@link #MAX_AGE_MILLIS}, whichever
+ * comes first, and are invalidated by the writes that end or change a session once those have committed.
+ * <p>
+ * A lookup that was already reading when an invalidation happened may have read the old row, so loads remember the
+ * invalidation count they started under and are not cached if it changed in the meantime.
+ * Only valid sessions are cached, unknown, expired and banned tokens always go to the database.
+ */
+final class SessionCache {
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5); //bounds staleness for changes made outside the app
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final int maxEntries;
+
+    private final LongAdder hits = Metrics.counter("session_cache.hits");
+    private final LongAdder misses = Metrics.counter("session_cache.misses");
+    private final LongAdder evictions = Metrics.counter("session_cache.evictions");
+    private final Histogram loadMicros = Metrics.histogram("session_cache.load_us");
+
+    /**
+     * @param maxEntries How many sessions to keep, 0 disables the cache.
+     */
+    SessionCache(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        Metrics.gauge("session_cache.size", entries::size);
+        Metrics.gauge("session_cache.invalidations", invalidations::get);
+        Metrics.gauge("session_cache.hit_ratio", () -> {
+            long total = hits.sum() + misses.sum();
+            return total == 0 ? 0.0 : (double) hits.sum() / total;
+        });
+        //every hit saves one database lookup, estimated at the mean time a miss took
+        Metrics.gauge("session_cache.saved_us_per_hit", loadMicros::mean);
+        Metrics.gauge("session_cache.saved_ms", () -> (long) (hits.sum() * loadMicros.mean() / 1000));
+    }
+
+    /**
+     * Returns the cached user for the token, or loads it and caches the result if it is a valid session.
+     * @param loader Looks the session up in the database, null if the token is not valid.
+     */
+    ArchiveUser get(String token, Supplier<Loaded> loader) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(token);
+        if (entry != null && entry.validUntil > now) {
+            hits.increment();
+            return entry.user;
+        }
+        misses.increment();
+
+        long invalidationsBefore = invalidations.get();
+        long start = System.nanoTime();
+        Loaded loaded = loader.get();
+        loadMicros.record((System.nanoTime() - start) / 1000);
+        if (loaded == null) {
+            if (entry != null) entries.remove(token, entry);
+            return null;
+        }
+
+        long validUntil = now + MAX_AGE_MILLIS;
+        if (loaded.expiresAt != null) validUntil = Math.min(validUntil, TimeUnit.SECONDS.toMillis(loaded.expiresAt));
+        if (maxEntries > 0 && validUntil > now) {
+            if (entries.size() >= maxEntries) evictions.add(CacheEviction.evict(entries, maxEntries, e -> e.validUntil <= now, Entry::validUntil));
+            entries.put(token, new Entry(loaded.user, validUntil));
+            //an invalidation that ran while loading may already have missed this entry
+            if (invalidations.get() != invalidationsBefore) entries.remove(token);
+        }
+        return loaded.user;
+    }
+
+    void invalidateToken(String token) {
+        invalidations.incrementAndGet();
+        entries.remove(token);
+    }
+
+    void invalidateUser(int userId) {
+        invalidations.incrementAndGet();
+        entries.values().removeIf(entry -> entry.user.id == userId);
+    }
+
+    /**
+     * A session as read from the database.
+     * @param expiresAt Epoch seconds, null if the session never expires.
+     */
+    record Loaded(ArchiveUser user, Long expiresAt) { }
+
+    private record Entry(ArchiveUser user, long validUntil) { }
+}
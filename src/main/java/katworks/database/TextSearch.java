@@ -0,0 +1,252 @@
+package katworks.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Full-text search with SQLite FTS5, replacing the {@code LIKE '%q%'} scans.
+ * <p>
+ * posts_fts holds the text of every post and the captions of its media. It is tokenized into words (accents
+ * folded, so "cafe" finds "café") and ranked with bm25. artists_fts (name and aliases) and accounts_fts (screen
+ * and display name) use the trigram tokenizer instead, which finds any part of a name like LIKE did, but from an
+ * index. Triggers keep all three up to date, so no write path has to know about them.
+ * <p>
+ * The FTS rowid is the numeric post, artist or account ID, not the rowid of the table, which VACUUM may renumber
+ * for posts and twitter_accounts since their keys are TEXT.
+ */
+public class TextSearch {
+    /** Schema version from which the FTS tables are complete, see {@link SchemaMigrations}. */
+    static final int MIGRATION_VERSION = 7;
+    private static final int TRIGRAM = 3; //the trigram index can only look up (and rank) at least 3 characters
+
+    private static final String POST_CAPTIONS = "(SELECT group_concat(caption, ' ') FROM media WHERE post_id = %s AND caption IS NOT NULL)";
+    private static final String ARTIST_ALIASES = "(SELECT group_concat(alias_name, char(10)) FROM aliases WHERE artist_id = %s)";
+
+    //shared with createDatabase() and the migration, one statement per string
+    static final List<String> SCHEMA = List.of(
+            "CREATE VIRTUAL TABLE IF NOT EXISTS posts_fts USING fts5(post_text, captions, tokenize = 'unicode61 remove_diacritics 2')",
+            "CREATE VIRTUAL TABLE IF NOT EXISTS artists_fts USING fts5(name, aliases, tokenize = 'trigram')",
+            "CREATE VIRTUAL TABLE IF NOT EXISTS accounts_fts USING fts5(screen_name, display_name, tokenize = 'trigram')",
+            "CREATE TRIGGER IF NOT EXISTS posts_fts_insert AFTER INSERT ON posts BEGIN\n" +
+                    "    INSERT OR REPLACE INTO posts_fts (rowid, post_text, captions) VALUES (CAST(NEW.post_id AS INTEGER), NEW.post_text, " + String.format(POST_CAPTIONS, "NEW.post_id") + ");\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS posts_fts_update AFTER UPDATE OF post_text ON posts BEGIN\n" +
+                    "    UPDATE posts_fts SET post_text = NEW.post_text WHERE rowid = CAST(NEW.post_id AS INTEGER);\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS posts_fts_delete AFTER DELETE ON posts BEGIN\n" +
+                    "    DELETE FROM posts_fts WHERE rowid = CAST(OLD.post_id AS INTEGER);\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS media_fts_insert AFTER INSERT ON media WHEN NEW.caption IS NOT NULL BEGIN\n" +
+                    updateCaptions("NEW") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS media_fts_update AFTER UPDATE OF caption ON media WHEN OLD.caption IS NOT NEW.caption BEGIN\n" +
+                    updateCaptions("NEW") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS media_fts_delete AFTER DELETE ON media WHEN OLD.caption IS NOT NULL BEGIN\n" +
+                    updateCaptions("OLD") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS artists_fts_insert AFTER INSERT ON artists BEGIN\n" +
+                    "    INSERT OR REPLACE INTO artists_fts (rowid, name, aliases) VALUES (NEW.id, NEW.name, " + String.format(ARTIST_ALIASES, "NEW.id") + ");\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS artists_fts_update AFTER UPDATE OF name ON artists BEGIN\n" +
+                    "    UPDATE artists_fts SET name = NEW.name WHERE rowid = NEW.id;\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS artists_fts_delete AFTER DELETE ON artists BEGIN\n" +
+                    "    DELETE FROM artists_fts WHERE rowid = OLD.id;\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS aliases_fts_insert AFTER INSERT ON aliases BEGIN\n" +
+                    updateAliases("NEW") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS aliases_fts_update AFTER UPDATE OF alias_name, artist_id ON aliases BEGIN\n" +
+                    updateAliases("OLD") + updateAliases("NEW") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS aliases_fts_delete AFTER DELETE ON aliases BEGIN\n" +
+                    updateAliases("OLD") +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS accounts_fts_insert AFTER INSERT ON twitter_accounts BEGIN\n" +
+                    "    INSERT OR REPLACE INTO accounts_fts (rowid, screen_name, display_name) VALUES (CAST(NEW.twitter_id AS INTEGER), NEW.screen_name, NEW.display_name);\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS accounts_fts_update AFTER UPDATE OF screen_name, display_name ON twitter_accounts BEGIN\n" +
+                    "    UPDATE accounts_fts SET screen_name = NEW.screen_name, display_name = NEW.display_name WHERE rowid = CAST(NEW.twitter_id AS INTEGER);\n" +
+                    "END;",
+            "CREATE TRIGGER IF NOT EXISTS accounts_fts_delete AFTER DELETE ON twitter_accounts BEGIN\n" +
+                    "    DELETE FROM accounts_fts WHERE rowid = CAST(OLD.twitter_id AS INTEGER);\n" +
+                    "END;"
+    );
+
+    /**
+     * Trigger statement that rebuilds the captions column of the post the media row belongs to.
+     */
+    private static String updateCaptions(String row) {
+        return "    UPDATE posts_fts SET captions = " + String.format(POST_CAPTIONS, row + ".post_id") +
+                " WHERE rowid = CAST(" + row + ".post_id AS INTEGER);\n";
+    }
+
+    /**
+     * Trigger statement that rebuilds the aliases column of the artist the alias belongs to.
+     */
+    private static String updateAliases(String row) {
+        return "    UPDATE artists_fts SET aliases = " + String.format(ARTIST_ALIASES, row + ".artist_id") +
+                " WHERE rowid = " + row + ".artist_id;\n";
+    }
+
+    /**
+     * Adds the posts with rowids in the range that are not in posts_fts yet. Posts added after the triggers were
+     * created are already there, and rows that are already in are skipped, so batches can be retried.
+     * @return How many posts were added.
+     */
+    static int backfillPosts(Connection conn, long fromRowid, long toRowid) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO posts_fts (rowid, post_text, captions) " +
+                        "SELECT CAST(p.post_id AS INTEGER), p.post_text, " + String.format(POST_CAPTIONS, "p.post_id") + " FROM posts p " +
+                        "WHERE p.rowid BETWEEN ? AND ? AND NOT EXISTS (SELECT 1 FROM posts_fts f WHERE f.rowid = CAST(p.post_id AS INTEGER))")) {
+            ps.setLong(1, fromRowid);
+            ps.setLong(2, toRowid);
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Adds every artist and account that is not in the name tables yet. There are few enough for a single task.
+     * @return How many rows were added.
+     */
+    static int backfillNames(Connection conn) throws SQLException {
+        int added;
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO artists_fts (rowid, name, aliases) SELECT a.id, a.name, " + String.format(ARTIST_ALIASES, "a.id") + " FROM artists a " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM artists_fts f WHERE f.rowid = a.id)")) {
+            added = ps.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO accounts_fts (rowid, screen_name, display_name) SELECT CAST(a.twitter_id AS INTEGER), a.screen_name, a.display_name FROM twitter_accounts a " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM accounts_fts f WHERE f.rowid = CAST(a.twitter_id AS INTEGER))")) {
+            added += ps.executeUpdate();
+        }
+        return added;
+    }
+
+    /**
+     * Post IDs whose text or captions contain every word of the query, best bm25 match first. The last word also
+     * matches as a prefix, so results show up while the user is still typing it. Text matches weigh twice as much
+     * as caption matches.
+     */
+    static List<String> searchPosts(Connection conn, String query, List<String> contentFilters, List<String> safetyFilters, int limit, int offset) throws SQLException {
+        List<String> postIds = new ArrayList<>();
+        String match = wordQuery(query);
+        if (match == null) return postIds;
+
+        List<Object> params = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(searchPostsQuery(match, contentFilters, safetyFilters, limit, offset, params))) {
+            DatabaseHandler.bindParams(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) postIds.add(rs.getString(1));
+            }
+        }
+        return postIds;
+    }
+
+    /**
+     * Builds the query for searchPosts(), shared with {@code QueryPlanTest}.
+     * @param match An FTS5 query from {@link #wordQuery(String)}.
+     * @param params Filled with the parameters to bind, in order.
+     */
+    static String searchPostsQuery(String match, List<String> contentFilters, List<String> safetyFilters, int limit, int offset, List<Object> params) {
+        StringBuilder sql = new StringBuilder("SELECT p.post_id FROM posts_fts f JOIN posts p ON p.post_id = CAST(f.rowid AS TEXT) WHERE posts_fts MATCH ?");
+        params.add(match);
+        if (contentFilters != null && !contentFilters.isEmpty()) {
+            sql.append(" AND p.content_rating IN (").append(placeholders(contentFilters.size())).append(")");
+            params.addAll(contentFilters);
+        }
+        if (safetyFilters != null && !safetyFilters.isEmpty()) {
+            sql.append(" AND p.safety_rating IN (").append(placeholders(safetyFilters.size())).append(")");
+            params.addAll(safetyFilters);
+        }
+        sql.append(" ORDER BY bm25(posts_fts, 2.0, 1.0), p.post_id DESC LIMIT ? OFFSET ?");
+        params.add(limit);
+        params.add(offset);
+        return sql.toString();
+    }
+
+    /**
+     * IDs of the artists whose name or one of whose aliases contains the query.
+     * @param ranked Whether to order by bm25, name matches first. Otherwise the order is undefined and the caller sorts.
+     */
+    static List<Integer> searchArtists(Connection conn, String query, boolean ranked, int limit) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(nameSql("artists_fts", "name", "aliases", query, ranked))) {
+            bindNameQuery(ps, query, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * twitter_ids of the accounts whose screen name or display name contains the query.
+     * @param ranked Whether to order by bm25, screen name matches first. Otherwise the order is undefined and the caller sorts.
+     */
+    static List<String> searchAccounts(Connection conn, String query, boolean ranked, int limit) throws SQLException {
+        List<String> ids = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(nameSql("accounts_fts", "screen_name", "display_name", query, ranked))) {
+            bindNameQuery(ps, query, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) ids.add(Long.toString(rs.getLong(1)));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Substring search on a trigram table. Queries too short for the trigram index fall back to LIKE, which scans
+     * the FTS table (still much smaller than the table it indexes) and cannot be ranked.
+     */
+    static String nameSql(String table, String first, String second, String query, boolean ranked) {
+        if (query.codePointCount(0, query.length()) < TRIGRAM) {
+            return "SELECT rowid FROM " + table + " WHERE " + first + " LIKE ? OR " + second + " LIKE ? LIMIT ?";
+        }
+        return "SELECT rowid FROM " + table + " WHERE " + table + " MATCH ?" +
+                (ranked ? " ORDER BY bm25(" + table + ", 2.0, 1.0)" : "") + " LIMIT ?";
+    }
+
+    private static void bindNameQuery(PreparedStatement ps, String query, int limit) throws SQLException {
+        if (query.codePointCount(0, query.length()) < TRIGRAM) {
+            ps.setString(1, "%" + query + "%");
+            ps.setString(2, "%" + query + "%");
+            ps.setInt(3, limit);
+        } else {
+            ps.setString(1, phrase(query));
+            ps.setInt(2, limit);
+        }
+    }
+
+    /**
+     * Turns what the user typed into an FTS5 query: every word as a quoted phrase, so quotes, dashes and FTS5
+     * keywords in it are searched for instead of parsed, and the last word as a prefix.
+     * @return The query, or null if there is nothing to search for.
+     */
+    static String wordQuery(String query) {
+        String[] words = query.trim().split("\\s+");
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (word.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append(phrase(word));
+        }
+        if (match.length() == 0) return null;
+        return match.append('*').toString();
+    }
+
+    private static String phrase(String text) {
+        return "\"" + text.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
@@ -0,0 +1,113 @@
+package katworks.database;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of writes that were queued but not committed yet. Each journaled write is logged as
+ * {@code ENQ <id> <type> <payload>} (and flushed to disk) before it is queued, and as {@code ACK <id>} once its
+ * transaction has committed. Whatever has no ACK after a crash is handed back by {@link #recover()} so it can be
+ * queued again, which means replayed writes have to be idempotent.
+ * <p>
+ * The file is truncated whenever nothing is outstanding, so it stays small.
+ */
+public class WriteJournal {
+    private static final long TRUNCATE_AFTER_BYTES = 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Entry> recovered;
+    private long nextId = 1;
+    private int outstanding;
+
+    public record Entry(long id, String type, String payload) { }
+
+    /**
+     * Opens (or creates) the journal and reads back everything that was never acknowledged.
+     */
+    public WriteJournal(Path path) throws IOException {
+        this.path = path;
+        this.recovered = readPending();
+        this.outstanding = recovered.size();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return Entries that were logged but not acknowledged before the last shutdown, oldest first.
+     * They count as outstanding until they are acknowledged.
+     */
+    public List<Entry> recover() {
+        return recovered;
+    }
+
+    /**
+     * Logs a write and forces it to disk.
+     * @param payload Single line of text the replay handler can rebuild the write from, e.g. JSON.
+     * @return ID to acknowledge once the write has committed.
+     */
+    public synchronized long append(String type, String payload) throws IOException {
+        if (type.contains(" ") || payload.contains("\n")) throw new IllegalArgumentException("Journal type may not contain spaces, payload may not contain line breaks");
+        long id = nextId++;
+        write("ENQ " + id + " " + type + " " + payload + "\n");
+        channel.force(false);
+        outstanding++;
+        return id;
+    }
+
+    /**
+     * Marks a write as committed. Not forced to disk, a lost ACK only means the write is replayed once more.
+     */
+    public synchronized void ack(long id) {
+        try {
+            write("ACK " + id + "\n");
+            outstanding--;
+            if (outstanding <= 0 && channel.size() > TRUNCATE_AFTER_BYTES) {
+                channel.truncate(0);
+                outstanding = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write to the write journal: " + e.getMessage());
+        }
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private List<Entry> readPending() throws IOException {
+        if (!Files.exists(path)) return new ArrayList<>();
+        Map<Long, Entry> pending = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //a torn last line from a crash mid-append is skipped, its write was never queued
+                String[] parts = line.split(" ", 4);
+                try {
+                    if (parts[0].equals("ENQ") && parts.length == 4) {
+                        long id = Long.parseLong(parts[1]);
+                        pending.put(id, new Entry(id, parts[2], parts[3]));
+                        nextId = Math.max(nextId, id + 1);
+                    } else if (parts[0].equals("ACK") && parts.length == 2) {
+                        pending.remove(Long.parseLong(parts[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping damaged write journal line: " + line);
+                }
+            }
+        }
+        return new ArrayList<>(pending.values());
+    }
+}
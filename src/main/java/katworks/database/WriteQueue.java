@@ -1,23 +1,117 @@
 package katworks.database;
 
+import katworks.util.Histogram;
+import katworks.util.Metrics;
+import org.sqlite.SQLiteConfig;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static katworks.Main.config;
 
+/**
+ * Single writer for the database. Every write goes through one thread and one connection, owned by the queue, so
+ * SQLite never sees two writers at once. Readers use the read-only pool in {@link DatabaseHandler} instead.
+ * <p>
+ * Writes are group committed: the writer takes everything that is waiting (up to {@link #MAX_BATCH_TASKS}
+ * tasks or {@link #MAX_BATCH_NANOS} of work), runs it in one transaction and commits once, so a scrape that queues
+ * hundreds of inserts pays for a handful of WAL commits instead of hundreds. Each task runs inside its own savepoint,
+ * so a failing task only undoes its own changes. Futures are completed after the commit, never before.
+ * <p>
+ * Tasks are queued in one of three {@link Priority} lanes. The writer always takes interactive work first, then
+ * normal, then bulk, so a moderator's rating does not wait behind a backfill. A lower lane that has not been
+ * served for a while still gets one task through, so bulk work slows down under load but never stops.
+ * <p>
+ * Lanes do not keep the order between each other, so writes that depend on each other pass an order key (the
+ * account's twitter_id, for example). Writes with the same key always run in the order they were queued: they share
+ * one lane, the most urgent one any of them was queued in, and earlier writes of the key move up with a more urgent
+ * one instead of being overtaken by it. Deleting an account therefore waits for the posts that were already queued
+ * for it, without waiting for the rest of the bulk backlog.
+ * <p>
+ * The queue is bounded ({@code config.writeQueueCapacity}). When it is full, producers block, have their write
+ * dropped or get an exception, depending on {@link FullPolicy}. Interactive writes and writes queued from the writer
+ * thread itself are never held back. Writes queued with {@link #runJournaledWrite} are also logged to a
+ * {@link WriteJournal} until they commit, and can be replayed after a crash with {@link #replayJournal}.
+ */
 public class WriteQueue {
+    private static final int MAX_BATCH_TASKS = 500;
+    private static final long MAX_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
     private final String dbUrl = "jdbc:sqlite:" + config.databasePath;
-    private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+    private final Map<Priority, Lane> lanes = new EnumMap<>(Priority.class); //tasks are added and taken while holding it
+    private final Map<String, ArrayDeque<WriteTask<?>>> pendingByKey = new HashMap<>(); //queued tasks per order key, guarded by lanes
+    private final Semaphore available = new Semaphore(0); //one permit per queued task, across all lanes
+    private final Semaphore capacity; //one permit per free slot, only taken by bounded (non-interactive) writes
+    private final int capacityLimit;
+    private final FullPolicy fullPolicy;
+    private final WriteJournal journal; //null if journaling is disabled or the journal could not be opened
+    private final Thread writer;
+    private Connection connection; //only used by the writer thread after the constructor
+    private WriteTask<?> running; //the task the writer thread is running, for afterCommit()
+
+    private final Histogram batchSizes = Metrics.histogram("writequeue.batch_size");
+    private final Histogram commitMicros = Metrics.histogram("writequeue.commit_us");
+    private final LongAdder failedTasks = Metrics.counter("writequeue.failed_tasks");
+    private final LongAdder failedBatches = Metrics.counter("writequeue.failed_batches");
+    private final LongAdder rejected = Metrics.counter("writequeue.rejected");
+    private final LongAdder producerBlocked = Metrics.counter("writequeue.producer_blocked");
+    private final LongAdder failedCallbacks = Metrics.counter("writequeue.failed_after_commit");
+    private final LongAdder promoted = Metrics.counter("writequeue.promoted");
 
     /**
-     * Initializes write queue, and sets pragmas to make reading not block writing.
+     * Initializes write queue, and opens the writer connection with pragmas to make reading not block writing.
+     * This is the first connection to the database, so it also creates the file if it does not exist.
      */
     public WriteQueue() {
+        try {
+            connection = openConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new Lane(priority));
+        }
+        Metrics.gauge("writequeue.depth", available::availablePermits);
+
+        capacityLimit = config.writeQueueCapacity > 0 ? config.writeQueueCapacity : Integer.MAX_VALUE;
+        capacity = new Semaphore(capacityLimit);
+        fullPolicy = FullPolicy.parse(config.writeQueueFullPolicy);
+        Metrics.gauge("writequeue.capacity_left", capacity::availablePermits);
+        journal = config.writeJournalEnabled ? openJournal() : null;
+
+        writer = new Thread(this::writeLoop, "database-writer");
+        writer.start();
+    }
+
+    private Connection openConnection() throws SQLException {
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setBusyTimeout(5000);
         // Essential for allowing reads while these writes are happening
-        executeImmediate("PRAGMA journal_mode=WAL;");
-        executeImmediate("PRAGMA synchronous=NORMAL;");
+        sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        return sqliteConfig.createConnection(dbUrl);
+    }
+
+    private static WriteJournal openJournal() {
+        try {
+            return new WriteJournal(Paths.get(config.databasePath + ".pending-writes"));
+        } catch (IOException e) {
+            System.err.println("Could not open the write journal, continuing without it: " + e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -32,57 +126,441 @@ public class WriteQueue {
      *     throw new RuntimeException(e);
      *   }
      * });
+     * The connection is already in a transaction. Calling commit() on it does nothing (the batch commits later),
+     * rollback() only undoes this task's changes.
      */
     public void runAsyncWrite(Consumer<Connection> task) {
-        writerExecutor.submit(() -> {
-            Connection conn = null;
+        runAsyncWrite(Priority.NORMAL, task);
+    }
+
+    /**
+     * Same as {@link #runAsyncWrite(Consumer)}, in the given priority lane.
+     */
+    public void runAsyncWrite(Priority priority, Consumer<Connection> task) {
+        runAsyncWrite(priority, null, task);
+    }
+
+    /**
+     * Same as {@link #runAsyncWrite(Priority, Consumer)}, but runs after every write queued earlier with the same
+     * order key, whatever lane those are in.
+     * @param orderKey null if the write does not depend on others.
+     */
+    public void runAsyncWrite(Priority priority, String orderKey, Consumer<Connection> task) {
+        submit(priority, orderKey, fullPolicy, new WriteTask<Void>(conn -> {
+            task.accept(conn);
+            return null;
+        }, null), null, null);
+    }
+
+    /**
+     * Same as {@link #runAsyncWrite}, but returns the task's result once it has been committed.
+     * If the task throws, or the commit fails, the future completes exceptionally.
+     */
+    public <T> CompletableFuture<T> runAsyncWriteWithResult(Function<Connection, T> task) {
+        return runAsyncWriteWithResult(Priority.NORMAL, task);
+    }
+
+    /**
+     * Same as {@link #runAsyncWriteWithResult(Function)}, in the given priority lane.
+     */
+    public <T> CompletableFuture<T> runAsyncWriteWithResult(Priority priority, Function<Connection, T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submit(priority, null, fullPolicy, new WriteTask<>(task, future), null, null);
+        return future;
+    }
+
+    /**
+     * Same as {@link #runAsyncWriteWithResult(Priority, Function)}, but never waits or throws when the queue is full,
+     * whatever the full policy: the write is dropped and its future fails with RejectedExecutionException.
+     * For writes that can be skipped and are queued from threads that must not wait, like request handlers.
+     */
+    public <T> CompletableFuture<T> offerAsyncWrite(Priority priority, Function<Connection, T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submit(priority, null, FullPolicy.SHED, new WriteTask<>(task, future), null, null);
+        return future;
+    }
+
+    /**
+     * Same as {@link #runAsyncWriteWithResult(Priority, Function)}, but waits for the commit and returns the result.
+     * For callers that need to answer with what was written, like a login handing back its new token.
+     * Exceptions thrown by the task are rethrown here. Must not be called from inside a write task.
+     */
+    public <T> T runSyncWrite(Priority priority, Function<Connection, T> task) {
+        if (Thread.currentThread() == writer) throw new IllegalStateException("A write task cannot wait for another write task");
+        try {
+            return runAsyncWriteWithResult(priority, task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #runAsyncWriteWithResult(Priority, Function)}, but the write is logged to the write journal
+     * before it is queued and only marked done once it has committed. Use for writes that cannot be redone otherwise,
+     * like recording media that was already downloaded.
+     * @param orderKey Same as for {@link #runAsyncWrite(Priority, String, Consumer)}, null if there is none.
+     * @param type Name the write is replayed under, see {@link #replayJournal}. No spaces.
+     * @param payload Everything needed to rebuild the write, on one line (e.g. JSON). The write has to be idempotent,
+     *                since it may be replayed even if it did commit.
+     */
+    public <T> CompletableFuture<T> runJournaledWrite(Priority priority, String orderKey, String type, String payload, Function<Connection, T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        //a journaled write cannot be redone once it is dropped, so it waits for room instead of being shed
+        FullPolicy policy = fullPolicy == FullPolicy.SHED ? FullPolicy.BLOCK : fullPolicy;
+        submit(priority, orderKey, policy, new WriteTask<>(task, future), type, payload);
+        return future;
+    }
+
+    /**
+     * Runs the callback once the write task that is calling this has committed, before its future completes, so a
+     * caller waiting for the write never sees the callback's effects missing. Nothing runs if the task throws or its
+     * batch fails. Meant for invalidating caches of what the task changed. Callbacks run on the writer thread and must
+     * be quick.
+     * @throws IllegalStateException If not called from inside a write task.
+     */
+    public void afterCommit(Runnable callback) {
+        if (Thread.currentThread() != writer || running == null) throw new IllegalStateException("afterCommit() can only be called from a write task");
+        if (running.afterCommit == null) running.afterCommit = new ArrayList<>();
+        running.afterCommit.add(callback);
+    }
+
+    /**
+     * Queues again every journaled write of the given type that had not committed when the program last stopped.
+     * Call once at startup, after everything the handler needs is ready.
+     * @param handler Rebuilds the write from its payload and queues it, normally through {@link #runJournaledWrite}.
+     */
+    public void replayJournal(String type, Consumer<String> handler) {
+        if (journal == null) return;
+        int replayed = 0;
+        for (WriteJournal.Entry entry : journal.recover()) {
+            if (!entry.type().equals(type)) continue;
             try {
-                conn = DatabaseHandler.getConnection();
-                conn.setAutoCommit(false);
-                task.accept(conn);
-                conn.commit();
+                handler.accept(entry.payload()); //logs it again under a new ID before the old one is acknowledged
+                replayed++;
             } catch (Exception e) {
-                System.err.println("Database write task failed: " + e.getMessage());
-                if (conn != null) {
-                    try { conn.rollback(); } catch (SQLException ex) { /* ignored */ }
-                }
-            } finally {
-                if (conn != null) {
-                    try { conn.close(); } catch (SQLException ex) { /* ignored */ }
+                System.err.println("Could not replay journaled write " + entry.id() + ": " + e.getMessage());
+            }
+            journal.ack(entry.id());
+        }
+        if (replayed > 0) System.out.println("Replayed " + replayed + " uncommitted " + type + " writes from the write journal.");
+    }
+
+    /**
+     * @param policy What to do if the queue is full, normally {@link #fullPolicy}.
+     */
+    private void submit(Priority priority, String orderKey, FullPolicy policy, WriteTask<?> task, String journalType, String journalPayload) {
+        if (priority != Priority.INTERACTIVE && Thread.currentThread() != writer) {
+            try {
+                reserve(policy);
+            } catch (RejectedExecutionException e) {
+                if (policy != FullPolicy.SHED) throw e;
+                task.error = e;
+                task.finish();
+                return;
+            }
+            task.reserved = true;
+        }
+        if (journal != null && journalType != null) {
+            try {
+                task.journalId = journal.append(journalType, journalPayload);
+            } catch (IOException e) {
+                System.err.println("Could not journal a database write, queueing it anyway: " + e.getMessage());
+            }
+        }
+        task.enqueuedAt = System.nanoTime();
+        synchronized (lanes) {
+            if (orderKey != null) priority = keepOrder(task, orderKey, priority);
+            task.priority = priority;
+            lanes.get(priority).tasks.add(task);
+        }
+        available.release();
+    }
+
+    /**
+     * Puts the task behind the queued writes of its order key. They all stay in one lane: the task joins theirs if it
+     * is more urgent than its own, otherwise they move to its lane first, in their order, behind what is already there.
+     * Must be called while holding lanes.
+     * @return The lane the task goes in.
+     */
+    private Priority keepOrder(WriteTask<?> task, String orderKey, Priority priority) {
+        ArrayDeque<WriteTask<?>> pending = pendingByKey.computeIfAbsent(orderKey, key -> new ArrayDeque<>());
+        WriteTask<?> earliest = pending.peekFirst();
+        if (earliest != null && earliest.priority.ordinal() < priority.ordinal()) {
+            priority = earliest.priority;
+        } else if (earliest != null && earliest.priority != priority) {
+            for (WriteTask<?> earlier : pending) {
+                lanes.get(earlier.priority).tasks.remove(earlier);
+                earlier.priority = priority;
+                lanes.get(priority).tasks.add(earlier);
+            }
+            promoted.add(pending.size());
+        }
+        task.orderKey = orderKey;
+        pending.addLast(task);
+        return priority;
+    }
+
+    /**
+     * Takes a free slot in the queue, or applies the given full policy if there is none.
+     */
+    private void reserve(FullPolicy policy) {
+        if (capacity.tryAcquire()) return;
+        if (policy == FullPolicy.BLOCK) {
+            producerBlocked.increment();
+            try {
+                capacity.acquire();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        rejected.increment();
+        throw new RejectedExecutionException("Database write queue is full (" + capacityLimit + " writes waiting)");
+    }
+
+    /**
+     * Takes the next task to run. Only called from the writer thread, after acquiring a permit,
+     * so there is always at least one task in some lane.
+     */
+    private WriteTask<?> next() {
+        synchronized (lanes) {
+            return take(System.nanoTime());
+        }
+    }
+
+    private WriteTask<?> take(long now) {
+        Lane chosen = null;
+        //a lower lane whose oldest task has waited too long, and that was not served recently, goes first once
+        for (Priority priority : STARVATION_ORDER) {
+            Lane lane = lanes.get(priority);
+            WriteTask<?> head = lane.tasks.peek();
+            if (head != null && now - head.enqueuedAt > priority.maxStarveNanos && now - lane.lastServed > priority.maxStarveNanos) {
+                chosen = lane;
+                break;
+            }
+        }
+        if (chosen == null) {
+            for (Priority priority : Priority.values()) {
+                Lane lane = lanes.get(priority);
+                if (!lane.tasks.isEmpty()) {
+                    chosen = lane;
+                    break;
                 }
             }
-        });
+        }
+        WriteTask<?> task = chosen.tasks.poll();
+        if (task.orderKey != null) {
+            //always the key's first, its writes share this lane and lanes are first in, first out
+            ArrayDeque<WriteTask<?>> pending = pendingByKey.get(task.orderKey);
+            pending.pollFirst();
+            if (pending.isEmpty()) pendingByKey.remove(task.orderKey);
+        }
+        if (task.reserved) capacity.release();
+        chosen.lastServed = now;
+        chosen.waitMicros.record((now - task.enqueuedAt) / 1000);
+        return task;
     }
 
-    public <T> CompletableFuture<T> runAsyncWriteWithResult(Function<Connection, T> task) {
-        CompletableFuture<T> future = new CompletableFuture<>();
-        writerExecutor.submit(() -> {
-            Connection conn = null;
+    private void writeLoop() {
+        List<WriteTask<?>> batch = new ArrayList<>();
+        while (true) {
+            try {
+                available.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch.add(next());
+            try {
+                runBatch(batch);
+            } catch (Throwable t) {
+                //never let the writer die, everything after this would just pile up
+                failBatch(batch, t);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Runs the first task of the batch plus whatever else is waiting, within the budget, in one transaction.
+     */
+    private void runBatch(List<WriteTask<?>> batch) throws SQLException {
+        long start = System.nanoTime();
+        if (connection.isClosed()) connection = openConnection();
+        Connection conn = connection;
+        conn.setAutoCommit(false);
+        try {
             try {
-                conn = DatabaseHandler.getConnection();
-                conn.setAutoCommit(false);
-                T result = task.apply(conn);
+                runTask(conn, batch.get(0));
+                while (batch.size() < MAX_BATCH_TASKS && System.nanoTime() - start < MAX_BATCH_NANOS) {
+                    if (!available.tryAcquire()) break;
+                    WriteTask<?> next = next();
+                    batch.add(next);
+                    runTask(conn, next);
+                }
+
+                long commitStart = System.nanoTime();
                 conn.commit();
-                future.complete(result);
-            } catch (Exception e) {
-                System.err.println("Database write task failed: " + e.getMessage());
-                if (conn != null) {
-                    try { conn.rollback(); } catch (SQLException ex) { /* ignored */ }
+                commitMicros.record((System.nanoTime() - commitStart) / 1000);
+                batchSizes.record(batch.size());
+            } catch (SQLException | RuntimeException e) {
+                try { conn.rollback(); } catch (SQLException ex) { /* ignored */ }
+                throw e;
+            }
+        } finally {
+            try { conn.setAutoCommit(true); } catch (SQLException ex) { /* ignored */ }
+        }
+        for (WriteTask<?> task : batch) {
+            task.finish();
+        }
+    }
+
+    private void runTask(Connection conn, WriteTask<?> task) throws SQLException {
+        Savepoint savepoint = conn.setSavepoint();
+        running = task;
+        try {
+            task.run(scopedTo(conn, savepoint));
+        } catch (Throwable t) {
+            conn.rollback(savepoint);
+            task.error = t;
+        } finally {
+            running = null;
+        }
+        conn.releaseSavepoint(savepoint);
+    }
+
+    private void failBatch(List<WriteTask<?>> batch, Throwable error) {
+        failedBatches.increment();
+        System.err.println("Database write batch of " + batch.size() + " tasks failed: " + error.getMessage());
+        for (WriteTask<?> task : batch) {
+            task.error = error;
+            task.committed = false; //keep it in the journal, it is replayed on next startup
+            task.finish();
+        }
+    }
+
+    /**
+     * Wraps the batch connection for one task: commit() and close() do nothing and rollback() goes back to the
+     * task's savepoint, so tasks written for their own transaction keep working inside the shared one.
+     */
+    private static Connection scopedTo(Connection conn, Savepoint savepoint) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "commit", "close", "setAutoCommit" -> {
+                    return null;
                 }
-                future.completeExceptionally(e);
-            } finally {
-                if (conn != null) {
-                    try { conn.close(); } catch (SQLException ex) { /* ignored */ }
+                case "rollback" -> {
+                    if (args == null) {
+                        conn.rollback(savepoint);
+                        return null;
+                    }
                 }
+                default -> { }
+            }
+            try {
+                return method.invoke(conn, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
             }
         });
-        return future;
     }
 
-    // For startup tasks like creating tables
-    private void executeImmediate(String sql) {
-        try (Connection conn = DatabaseHandler.getConnection(); Statement s = conn.createStatement()) {
-            s.execute(sql);
-        } catch (SQLException e) { e.printStackTrace(); }
+    /**
+     * Scheduling class of a write.
+     */
+    public enum Priority {
+        /** Someone is waiting for it: ratings, edits, logins, admin commands. */
+        INTERACTIVE(0),
+        /** Default for anything not classified. */
+        NORMAL(TimeUnit.MILLISECONDS.toNanos(200)),
+        /** Scrape ingest, backfills, migrations and other background jobs. */
+        BULK(TimeUnit.SECONDS.toNanos(1));
+
+        /** How long the lane's oldest task may be passed over by higher lanes before one of its tasks goes first. */
+        final long maxStarveNanos;
+
+        Priority(long maxStarveNanos) {
+            this.maxStarveNanos = maxStarveNanos;
+        }
+    }
+
+    /**
+     * What producers of bounded writes experience when the queue is full.
+     */
+    public enum FullPolicy {
+        /** Wait until there is room. Slows scraping down to the speed of the database. */
+        BLOCK,
+        /** Drop the write. Its future fails with RejectedExecutionException. Journaled writes wait as with BLOCK. */
+        SHED,
+        /** Throw RejectedExecutionException to the caller right away. */
+        FAIL;
+
+        static FullPolicy parse(String name) {
+            if (name == null) return BLOCK;
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown WriteQueueFullPolicy '" + name + "', using Block.");
+                return BLOCK;
+            }
+        }
+    }
+
+    private static final Priority[] STARVATION_ORDER = {Priority.BULK, Priority.NORMAL};
+
+    private static class Lane {
+        final BlockingQueue<WriteTask<?>> tasks = new LinkedBlockingQueue<>();
+        final Histogram waitMicros;
+        long lastServed = System.nanoTime(); //only touched by the writer thread
+
+        Lane(Priority priority) {
+            String name = priority.name().toLowerCase();
+            waitMicros = Metrics.histogram("writequeue.wait_us." + name);
+            Metrics.gauge("writequeue.depth." + name, tasks::size);
+        }
+    }
+
+    private class WriteTask<T> {
+        final Function<Connection, T> body;
+        final CompletableFuture<T> future; //null for fire-and-forget writes
+        long enqueuedAt;
+        Priority priority; //lane it is queued in, only changed while holding lanes
+        String orderKey; //null if it does not depend on other writes
+        T result;
+        Throwable error;
+        boolean reserved; //holds a capacity permit until it is taken off the queue
+        long journalId; //0 if not journaled
+        boolean committed = true; //false if the whole batch failed, so the task did not actually run to completion
+        List<Runnable> afterCommit; //null until the task registers a callback
+
+        WriteTask(Function<Connection, T> body, CompletableFuture<T> future) {
+            this.body = body;
+            this.future = future;
+        }
+
+        void run(Connection conn) {
+            result = body.apply(conn);
+        }
+
+        void finish() {
+            if (journalId != 0 && committed) journal.ack(journalId);
+            if (error == null) {
+                if (afterCommit != null) {
+                    for (Runnable callback : afterCommit) {
+                        try {
+                            callback.run();
+                        } catch (RuntimeException e) {
+                            failedCallbacks.increment();
+                            System.err.println("After-commit callback of a database write failed: " + e.getMessage());
+                        }
+                    }
+                }
+                if (future != null) future.complete(result);
+                return;
+            }
+            failedTasks.increment();
+            System.err.println("Database write task failed: " + error.getMessage());
+            if (future != null) future.completeExceptionally(error);
+        }
     }
-}
\ No newline at end of file
+}
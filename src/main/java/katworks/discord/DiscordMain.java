@@ -120,6 +120,9 @@ public class DiscordMain {
                 .addOption(OptionType.STRING,"artistname","The name of the artist to set the description for.",true)
                 .addOption(OptionType.STRING,"description","The description to set.",true));
 
+        cd.add(Commands.slash("dedupe","Cluster all archived media by perceptual hash and mark duplicates.")
+                .addOption(OptionType.INTEGER,"threshold","[Optional] Max hash distance for a duplicate. Defaults to DuplicateThreshold.",false));
+
         cd.add(Commands.slash("ping","Check if the bot is running."));
 
         //todo: make a "link account to artist" command
@@ -1,5 +1,6 @@
 package katworks.discord;
 
+import katworks.archive.DedupeJob;
 import katworks.database.DatabaseHandler;
 import katworks.impl.TwitterAccount;
 import katworks.impl.TwitterMedia;
@@ -19,6 +20,7 @@ import java.io.File;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -206,6 +208,19 @@ public class SlashCommandHandler extends ListenerAdapter {
                 interaction.reply("Scrape continued from " + postId + " onward.").queue();
                 break;
             }
+            case "dedupe": {
+                int threshold = Math.max(0, config.duplicateThreshold);
+                if (interaction.getOption("threshold") != null) {
+                    threshold = Math.min(15, Math.max(0, interaction.getOption("threshold").getAsInt()));
+                }
+                if (DedupeJob.start(threshold)) {
+                    interaction.reply("Dedupe started with threshold " + threshold + ". Results will be posted in the status channel.").queue();
+                } else {
+                    Map<String, Object> status = DedupeJob.status();
+                    interaction.reply("Dedupe is already running. " + status.get("phase") + ": " + status.get("processed") + "/" + status.get("total")).queue();
+                }
+                break;
+            }
             case "setartistdescription": {
                 String artistName = interaction.getOption("artistname").getAsString();
                 String description = interaction.getOption("description").getAsString();
@@ -227,7 +242,7 @@ public class SlashCommandHandler extends ListenerAdapter {
 
         // Otherwise, create it
         TwitterAccount profile = TwitterScraper.getUserProfileByName(post.screenName);
-        DatabaseHandler.registerAccount(profile.twitterId, profile.screenName, profile.displayName, profile.screenName, false, null);
+        DatabaseHandler.registerAccount(profile.twitterId, profile.screenName, profile.displayName, profile.screenName, false, null).join();
 
         // Create the Discord Thread
         TextChannel accountsChannel = jda.getTextChannelById(config.accountsChannel);
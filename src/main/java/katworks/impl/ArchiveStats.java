@@ -0,0 +1,19 @@
+package katworks.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArchiveStats {
+    public long posts; ///Amount of posts.
+    public long media; ///Amount of media files.
+    public long bytes; ///Total filesize of the media on disk.
+    public List<RatingCounts> ratings = new ArrayList<>(); ///Counts per content/safety rating pair, the totals are their sums.
+
+    public static class RatingCounts {
+        public String contentRating; ///Content rating, posts by the rating of the post, media by the rating of the media.
+        public String safetyRating; ///Safety rating, counted the same way as the content rating.
+        public long posts;
+        public long media;
+        public long bytes;
+    }
+}
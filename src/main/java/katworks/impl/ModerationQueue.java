@@ -0,0 +1,22 @@
+package katworks.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ModerationQueue {
+    public long waiting; ///Posts whose content or safety rating is still Waiting, in the whole archive or the requested account.
+    public List<AccountBacklog> accounts = new ArrayList<>(); ///Accounts with posts waiting, the most waiting first.
+    public List<AccountPosts> groups = new ArrayList<>(); ///The page's posts grouped by account, in the order each account first appears.
+
+    public static class AccountBacklog {
+        public String twitterId;
+        public String screenName;
+        public long waiting; ///Posts of this account waiting for a rating.
+    }
+
+    public static class AccountPosts {
+        public String twitterId;
+        public String screenName;
+        public List<TwitterPost> posts = new ArrayList<>(); ///Waiting posts of this account on the page, in queue order.
+    }
+}
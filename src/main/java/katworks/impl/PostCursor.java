@@ -0,0 +1,44 @@
+package katworks.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a post listing: the date and ID of the last post on the previous page. The next page starts right
+ * after it, which the (post_date, post_id) indexes can seek to directly, unlike an offset that has to skip every
+ * earlier row. Handed to clients as an opaque string, see {@link #encode()}.
+ */
+public class PostCursor {
+    public long postDate; ///post_date of the last post already seen.
+    public String postId; ///post_id of the last post already seen, breaks ties between posts with the same date.
+
+    public PostCursor(long postDate, String postId) {
+        this.postDate = postDate;
+        this.postId = postId;
+    }
+
+    /**
+     * Cursor for the page after the one ending with this post.
+     */
+    public static PostCursor after(TwitterPost post) {
+        return new PostCursor(post.postDate, post.postId);
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((postDate + ":" + postId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The cursor, or null if the string is not one {@link #encode()} made.
+     */
+    public static PostCursor decode(String cursor) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int colon = decoded.indexOf(':');
+            if (colon <= 0 || colon == decoded.length() - 1) return null;
+            return new PostCursor(Long.parseLong(decoded.substring(0, colon)), decoded.substring(colon + 1));
+        } catch (IllegalArgumentException e) { //bad base64 and NumberFormatException
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package katworks.impl;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Position in a seeded random post listing. The same seed always gives the same order, and the cursor also pins
+ * how many posts each rating bucket had on the first page, so posts archived while someone is paging do not
+ * reshuffle the pages they have not seen yet. Handed to clients as an opaque string, see {@link #encode()}.
+ */
+public class RandomCursor {
+    public long seed; ///Picks the permutation.
+    public long position; ///Index in the permutation of the first post of the next page.
+    public Map<String, Long> sizes; ///Bucket sizes the order was built on, null until the first page was read.
+    public Map<String, Long> epochs; ///Bucket epochs the sizes belong to, null until the first page was read.
+
+    public RandomCursor(long seed, long position) {
+        this.seed = seed;
+        this.position = position;
+    }
+
+    /**
+     * @return Whether there are posts past {@link #position}. Always true before the first page was read.
+     */
+    public boolean hasMore() {
+        if (sizes == null) return true;
+        long total = 0;
+        for (long size : sizes.values()) total += size;
+        return position < total;
+    }
+
+    public String encode() {
+        JSONObject json = new JSONObject();
+        json.put("s", seed);
+        json.put("p", position);
+        if (sizes != null) json.put("n", new JSONObject(sizes));
+        if (epochs != null) json.put("e", new JSONObject(epochs));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The cursor, or null if the string is not one {@link #encode()} made.
+     */
+    public static RandomCursor decode(String cursor) {
+        try {
+            JSONObject json = new JSONObject(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+            RandomCursor decoded = new RandomCursor(json.getLong("s"), json.getLong("p"));
+            if (decoded.position < 0) return null;
+            decoded.sizes = readLongs(json.optJSONObject("n"));
+            decoded.epochs = readLongs(json.optJSONObject("e"));
+            return decoded;
+        } catch (IllegalArgumentException | JSONException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, Long> readLongs(JSONObject json) {
+        if (json == null) return null;
+        Map<String, Long> values = new TreeMap<>();
+        for (String key : json.keySet()) {
+            values.put(key, json.getLong(key));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,10 @@
+package katworks.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchResults {
+    public List<TwitterPost> posts = new ArrayList<>();
+    public List<Artist> artists = new ArrayList<>();
+    public List<TwitterAccount> accounts = new ArrayList<>();
+}
@@ -10,8 +10,8 @@ public class TwitterMedia {
     public String localPath; ///Path to locally downloaded file on disk.
     public String caption; ///Manually written caption for the contents of the media.
     public int mediaIndex; ///Inferred (guessed) index which position this media was in the original post.
-    public String perceptualHash; ///Perceptual hash of the media.
-    public String dataHash; ///SHA-256 hash of the media.
+    public Long perceptualHash; ///Perceptual hash of the media. Null for media that is not an image.
+    public String dataHash; ///SHA-256 hash of the media, as hex. Stored as a 32 byte BLOB in the database.
     public int duplicateOf; ///The (internal) id of the other media that shares the same perceptual or data hash.
     public int width; ///The width of the media.
     public int height; ///The height of the media.
@@ -42,6 +42,14 @@ public class TwitterMedia {
 
     }
 
+    /**
+     * The perceptual hash as a decimal string, which is how it is sent as JSON. JavaScript numbers cannot hold all 64
+     * bits, so a JSON number would be rounded.
+     */
+    public String getPerceptualHash() {
+        return perceptualHash == null ? null : perceptualHash.toString();
+    }
+
     public String getUrlPath() {
         // Strip the root archive path and replace with /images
         return localPath.replace(config.imageDownloadPath, "/images").replace("\\", "/");
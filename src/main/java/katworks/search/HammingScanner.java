@@ -0,0 +1,81 @@
+package katworks.search;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Brute-force hamming distance scan over packed hash arrays, for thresholds too wide for the multi-index to help.
+ * Large ranges are split across cores with fork-join, and every chunk keeps its own bounded {@link TopKHeap}
+ * which are merged on the way back up.
+ * <p>
+ * The inner loop is a plain {@code Long.bitCount} over a long[], which HotSpot compiles to POPCNT and unrolls.
+ */
+public class HammingScanner {
+    private static final int CHUNK_SIZE = 1 << 15; //below this, splitting costs more than it saves
+
+    /**
+     * Finds the closest hashes in {@code hashes[from, to)}.
+     * @param hashes Packed perceptual hashes.
+     * @param ids Media ID of each hash, same positions as {@code hashes}.
+     * @param query Hash to compare against.
+     * @param threshold Maximum hamming distance (inclusive).
+     * @param limit Maximum amount of matches to keep.
+     * @return Heap holding the closest matches.
+     */
+    public static TopKHeap scan(long[] hashes, int[] ids, int from, int to, long query, int threshold, int limit) {
+        if (to - from <= CHUNK_SIZE) {
+            TopKHeap heap = new TopKHeap(limit);
+            scanInto(hashes, ids, from, to, query, threshold, heap);
+            return heap;
+        }
+        return ForkJoinPool.commonPool().invoke(new ScanTask(hashes, ids, from, to, query, threshold, limit));
+    }
+
+    /**
+     * Single-threaded scan that adds every match to an existing heap.
+     */
+    public static void scanInto(long[] hashes, int[] ids, int from, int to, long query, int threshold, TopKHeap heap) {
+        for (int i = from; i < to; i++) {
+            int distance = Long.bitCount(hashes[i] ^ query);
+            if (distance <= threshold) heap.add(distance, ids[i]);
+        }
+    }
+
+    private static final class ScanTask extends RecursiveTask<TopKHeap> {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] hashes;
+        private final int[] ids;
+        private final int from;
+        private final int to;
+        private final long query;
+        private final int threshold;
+        private final int limit;
+
+        ScanTask(long[] hashes, int[] ids, int from, int to, long query, int threshold, int limit) {
+            this.hashes = hashes;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+            this.query = query;
+            this.threshold = threshold;
+            this.limit = limit;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= CHUNK_SIZE) {
+                TopKHeap heap = new TopKHeap(limit);
+                scanInto(hashes, ids, from, to, query, threshold, heap);
+                return heap;
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(hashes, ids, from, mid, query, threshold, limit);
+            ScanTask right = new ScanTask(hashes, ids, mid, to, query, threshold, limit);
+            left.fork();
+            TopKHeap result = right.compute();
+            result.merge(left.join());
+            return result;
+        }
+    }
+}
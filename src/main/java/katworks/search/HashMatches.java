@@ -0,0 +1,17 @@
+package katworks.search;
+
+/**
+ * Result of a perceptual hash lookup. Parallel arrays of media IDs and their hamming distances,
+ * sorted by distance (closest first) and then by media ID.
+ */
+public class HashMatches {
+    public final int[] mediaIds;
+    public final int[] distances;
+    public final int size;
+
+    public HashMatches(int[] mediaIds, int[] distances, int size) {
+        this.mediaIds = mediaIds;
+        this.distances = distances;
+        this.size = size;
+    }
+}
@@ -0,0 +1,217 @@
+package katworks.search;
+
+import katworks.database.DatabaseHandler;
+
+import java.util.Arrays;
+
+/**
+ * Resident multi-index hash (MIH) over every perceptual hash in the media table.
+ * The 64-bit pHash is split into 4 chunks of 16 bits, each with its own bucket table. If two hashes are within
+ * distance r, at least one chunk differs by at most r / 4 bits (pigeonhole), so a query only has to probe the buckets
+ * near each of its own chunks instead of comparing against every row.
+ * <p>
+ * Hashes live in plain long[]/int[] arrays. Readers work off an immutable snapshot, so searches never lock.
+ * New hashes are appended to an unindexed tail that is scanned linearly until it is large enough to be worth
+ * rebuilding the bucket tables. Thresholds too wide for the tables to prune anything go to {@link HammingScanner}.
+ */
+public class PerceptualHashIndex {
+    private static final int TABLES = 4;
+    private static final int CHUNK_BITS = 64 / TABLES;
+    private static final int BUCKETS = 1 << CHUNK_BITS;
+    private static final int MAX_PROBE_RADIUS = 3; //past this, probing 4 tables costs more than just scanning everything
+    private static final int MIN_TAIL_BEFORE_REBUILD = 1024;
+
+    private long[] hashes = new long[1024];
+    private int[] ids = new int[1024];
+    private int size;
+    private volatile Snapshot snapshot = new Snapshot(hashes, ids, 0, 0, null, null);
+
+    /**
+     * Loads every stored perceptual hash from the database. Replaces anything already in the index.
+     */
+    public void load() {
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            //fresh arrays, older snapshots may still be reading the current ones
+            hashes = new long[1024];
+            ids = new int[1024];
+            size = 0;
+            DatabaseHandler.loadPerceptualHashes(this);
+            rebuild();
+        }
+        System.out.println("Perceptual hash index loaded " + size + " hashes in " + (System.currentTimeMillis() - start) + "ms.");
+    }
+
+    /**
+     * Adds a newly inserted media row to the index.
+     * @param mediaId Internal media ID.
+     * @param hash The perceptual hash of the media.
+     */
+    public synchronized void add(int mediaId, long hash) {
+        append(mediaId, hash);
+        Snapshot current = snapshot;
+        int tail = size - current.indexedSize;
+        if (tail >= MIN_TAIL_BEFORE_REBUILD && tail >= current.indexedSize / 8) {
+            rebuild();
+        } else {
+            snapshot = new Snapshot(hashes, ids, size, current.indexedSize, current.bucketStarts, current.bucketSlots);
+        }
+    }
+
+    /**
+     * Appends without publishing a new snapshot. Only used while bulk loading.
+     */
+    public synchronized void append(int mediaId, long hash) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        hashes[size] = hash;
+        ids[size] = mediaId;
+        size++;
+    }
+
+    public int size() {
+        return snapshot.size;
+    }
+
+    /**
+     * Copies every hash currently in the index, for jobs that need to walk all of them.
+     * @return Hashes and their media IDs, sorted by media ID.
+     */
+    public Entries entries() {
+        Snapshot s = snapshot;
+        long[] packedIds = new long[s.size];
+        for (int i = 0; i < s.size; i++) {
+            packedIds[i] = ((long) s.ids[i] << 32) | i;
+        }
+        Arrays.sort(packedIds); //already in id order unless media was deleted and re-added
+        long[] sortedHashes = new long[s.size];
+        int[] sortedIds = new int[s.size];
+        for (int i = 0; i < s.size; i++) {
+            int slot = (int) packedIds[i];
+            sortedHashes[i] = s.hashes[slot];
+            sortedIds[i] = s.ids[slot];
+        }
+        return new Entries(sortedHashes, sortedIds);
+    }
+
+    /**
+     * Finds all media within the threshold of the given hash.
+     * @param hash Perceptual hash to look for.
+     * @param threshold Maximum hamming distance (inclusive).
+     * @param limit Maximum amount of matches to return.
+     * @return Matches sorted by distance, closest first.
+     */
+    public HashMatches search(long hash, int threshold, int limit) {
+        Snapshot s = snapshot;
+        int radius = threshold / TABLES;
+
+        if (s.bucketStarts == null || radius > MAX_PROBE_RADIUS) {
+            //too wide for the bucket tables to prune anything, a parallel scan of everything is cheaper
+            return HammingScanner.scan(s.hashes, s.ids, 0, s.size, hash, threshold, limit).finish();
+        }
+        TopKHeap heap = new TopKHeap(limit);
+        for (int t = 0; t < TABLES; t++) {
+            probe(s, t, chunk(hash, t), 0, radius, hash, threshold, radius, heap);
+        }
+        //the tail can grow to an eighth of the index before a rebuild, big enough to be worth splitting across cores
+        heap.merge(HammingScanner.scan(s.hashes, s.ids, s.indexedSize, s.size, hash, threshold, limit));
+        return heap.finish();
+    }
+
+    /**
+     * Recursively flips up to {@code remaining} bits of the chunk key (from bit {@code fromBit} up) and checks every bucket reached.
+     */
+    private static void probe(Snapshot s, int table, int key, int fromBit, int remaining, long hash, int threshold, int radius, TopKHeap heap) {
+        int[] starts = s.bucketStarts[table];
+        int[] slots = s.bucketSlots[table];
+        for (int i = starts[key]; i < starts[key + 1]; i++) {
+            int slot = slots[i];
+            long candidate = s.hashes[slot];
+            int distance = Long.bitCount(candidate ^ hash);
+            if (distance <= threshold && firstTableToFind(candidate, hash, radius) == table) {
+                heap.add(distance, s.ids[slot]);
+            }
+        }
+        if (remaining == 0) return;
+        for (int bit = fromBit; bit < CHUNK_BITS; bit++) {
+            probe(s, table, key ^ (1 << bit), bit + 1, remaining - 1, hash, threshold, radius, heap);
+        }
+    }
+
+    /**
+     * A candidate can be reached through several tables. Only report it from the first one so no match is duplicated.
+     */
+    private static int firstTableToFind(long candidate, long hash, int radius) {
+        long diff = candidate ^ hash;
+        for (int t = 0; t < TABLES; t++) {
+            if (Integer.bitCount(chunk(diff, t)) <= radius) return t;
+        }
+        return -1;
+    }
+
+    private static int chunk(long hash, int table) {
+        return (int) (hash >>> (table * CHUNK_BITS)) & (BUCKETS - 1);
+    }
+
+    /**
+     * Rebuilds every bucket table with a counting sort over the whole array. Caller must hold the lock.
+     */
+    private void rebuild() {
+        int[][] starts = new int[TABLES][];
+        int[][] slots = new int[TABLES][];
+        for (int t = 0; t < TABLES; t++) {
+            int[] start = new int[BUCKETS + 1];
+            for (int i = 0; i < size; i++) {
+                start[chunk(hashes[i], t) + 1]++;
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                start[b + 1] += start[b];
+            }
+            int[] fill = Arrays.copyOf(start, BUCKETS);
+            int[] slot = new int[size];
+            for (int i = 0; i < size; i++) {
+                slot[fill[chunk(hashes[i], t)]++] = i;
+            }
+            starts[t] = start;
+            slots[t] = slot;
+        }
+        snapshot = new Snapshot(hashes, ids, size, size, starts, slots);
+    }
+
+    /**
+     * Copy of the index contents, see {@link #entries()}.
+     */
+    public static final class Entries {
+        public final long[] hashes;
+        public final int[] ids;
+
+        Entries(long[] hashes, int[] ids) {
+            this.hashes = hashes;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * Immutable view of the index at one point in time. The backing arrays may be shared with newer snapshots,
+     * but nothing below {@code size} is ever modified once published.
+     */
+    private static final class Snapshot {
+        final long[] hashes;
+        final int[] ids;
+        final int size;
+        final int indexedSize;
+        final int[][] bucketStarts;
+        final int[][] bucketSlots;
+
+        Snapshot(long[] hashes, int[] ids, int size, int indexedSize, int[][] bucketStarts, int[][] bucketSlots) {
+            this.hashes = hashes;
+            this.ids = ids;
+            this.size = size;
+            this.indexedSize = indexedSize;
+            this.bucketStarts = bucketStarts;
+            this.bucketSlots = bucketSlots;
+        }
+    }
+}
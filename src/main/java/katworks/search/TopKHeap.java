@@ -0,0 +1,92 @@
+package katworks.search;
+
+import java.util.Arrays;
+
+/**
+ * Bounded max-heap that keeps the K closest matches. Entries are packed (distance, media ID) longs, so ordering
+ * by the raw long orders by distance first and media ID second, and nothing gets boxed.
+ * The backing array grows on demand, so an effectively unbounded limit does not allocate up front.
+ */
+public class TopKHeap {
+    private final int limit;
+    private long[] heap;
+    private int size;
+
+    public TopKHeap(int limit) {
+        this.limit = Math.max(0, limit);
+        this.heap = new long[Math.min(this.limit, 64)];
+    }
+
+    public void add(int distance, int mediaId) {
+        offer(pack(distance, mediaId));
+    }
+
+    /**
+     * Offers an already packed entry. Dropped if the heap is full and the entry is not closer than the current worst.
+     */
+    public void offer(long packed) {
+        if (size < limit) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, (int) Math.min(limit, size * 2L));
+            heap[size] = packed;
+            siftUp(size++);
+        } else if (limit > 0 && packed < heap[0]) {
+            heap[0] = packed;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Moves every entry of another heap into this one. Used to combine the results of parallel scans.
+     */
+    public void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.heap[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The kept matches sorted closest first. The heap should not be used afterwards.
+     */
+    public HashMatches finish() {
+        Arrays.sort(heap, 0, size);
+        int[] mediaIds = new int[size];
+        int[] distances = new int[size];
+        for (int i = 0; i < size; i++) {
+            mediaIds[i] = (int) heap[i];
+            distances[i] = (int) (heap[i] >>> 32);
+        }
+        return new HashMatches(mediaIds, distances, size);
+    }
+
+    static long pack(int distance, int mediaId) {
+        return ((long) distance << 32) | (mediaId & 0xFFFFFFFFL);
+    }
+
+    private void siftUp(int i) {
+        long value = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] >= value) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    private void siftDown(int i) {
+        long value = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] > heap[child]) child++;
+            if (value >= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+}
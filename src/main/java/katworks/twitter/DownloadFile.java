@@ -33,6 +33,7 @@ public class DownloadFile {
             try (BufferedSink sink = Okio.buffer(Okio.sink(targetFile))) {
                 sink.writeAll(response.body().source());
             }
+            //full resolution on purpose, a subsampled decode shifts the perceptual hash away from the stored ones
             BufferedImage image = ImageIO.read(targetFile);
             if (image == null) { //for videos or anything else that wont become a BufferedImage
                 String sha256 = calculateSHA256(targetFile);
@@ -44,7 +45,7 @@ public class DownloadFile {
             } else { //for everything else
                 ImageSimilarityService service = new ImageSimilarityService();
 
-                String pHash = String.valueOf(service.computeHash(image, HashType.PHASH));
+                long pHash = service.computeHash(image, HashType.PHASH);
 
                 String sha256 = calculateSHA256(targetFile);
 
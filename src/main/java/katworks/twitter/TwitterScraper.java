@@ -8,7 +8,9 @@ import dev.seeight.twitterscraper.impl.timeline.TweetDetail;
 import dev.seeight.twitterscraper.impl.user.User;
 import dev.seeight.twitterscraper.impl.user.UserMedia;
 import dev.seeight.twitterscraper.util.JsonUtil;
+import katworks.archive.ThumbnailService;
 import katworks.database.DatabaseHandler;
+import katworks.database.WriteQueue.Priority;
 import katworks.discord.DiscordNotificationService;
 import katworks.impl.*;
 import org.json.JSONArray;
@@ -17,11 +19,17 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import static katworks.Main.*;
@@ -31,6 +39,14 @@ public class TwitterScraper {
     // Pre-compile Regex for performance optimization
     private static final Pattern TCO_LINK_PATTERN = Pattern.compile("\\s*https?://t\\.co/[a-zA-Z0-9]+$");
     private static final String WAITING_STATUS = "Waiting";
+    private static final String JOURNAL_TYPE = "post"; //write journal entries of saved posts
+    //runs what follows a saved post, off the database writer thread: an index rebuild or a notification there
+    //would hold up every queued write. One thread, so the index gets the media in commit order
+    private static final ExecutorService AFTER_SAVE = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "post-saved");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Scrapes a user's media timeline using their account object as the lookup.
@@ -149,9 +165,10 @@ public class TwitterScraper {
                                     if (foundStartPost) {
                                         TwitterPost p = extractAndDownloadPost(item);
                                         if (p != null) { // Null means no media, so we skip DB & Discord
-                                            savePostToDbAsync(p);
+                                            CompletableFuture<Boolean> saved = savePostToDbAsync(p);
                                             if (config.discordEnabled) {
-                                                DiscordNotificationService.sendNewPostNotification(p, account);
+                                                //only once the post is in, the rating buttons would otherwise find nothing to rate
+                                                saved.thenRunAsync(() -> DiscordNotificationService.sendNewPostNotification(p, account), AFTER_SAVE);
                                             }
                                             archivedCount++;
                                             Thread.sleep(4570); // rate-limit protection
@@ -288,16 +305,29 @@ public class TwitterScraper {
         return twitterPost;
     }
 
+    /**
+     * Queues posts that were downloaded but not saved when the program last stopped. Saving is idempotent
+     * (INSERT OR IGNORE on the post), so posts that did make it in are skipped.
+     */
+    public static void replayJournal() {
+        writeQueue.replayJournal(JOURNAL_TYPE, payload -> savePostToDbAsync(postFromJournal(new JSONObject(payload))));
+    }
+
     /**
      * Handles the database insertion for posts and media asynchronously.
+     * Each media is checked for an existing duplicate before it is inserted, and duplicate_of is set in the same transaction.
+     * Once committed, the new media hashes are added to the perceptual hash index and their thumbnails are queued.
+     * Queued in the order of the account's other writes.
+     * @return Completes once committed, with whether the post was new.
      */
-    private static void savePostToDbAsync(TwitterPost twitterPost) {
-        writeQueue.runAsyncWrite(conn -> {
+    private static CompletableFuture<Boolean> savePostToDbAsync(TwitterPost twitterPost) {
+        //journaled, the files are already on disk and would not be downloaded again after a crash
+        CompletableFuture<Boolean> saved = writeQueue.runJournaledWrite(Priority.BULK, twitterPost.twitterId, JOURNAL_TYPE, postToJournal(twitterPost).toString(), conn -> {
             String postSql = "INSERT OR IGNORE INTO posts (post_id, twitter_id, post_text, post_date, archive_date, safety_rating, content_rating) VALUES (?, ?, ?, ?, ?, ?, ?)";
-            String mediaSql = "INSERT INTO media (post_id, media_type, original_url, local_path, data_hash, perceptual_hash, width, height, filesize, media_index, safety_rating, content_rating) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            String mediaSql = "INSERT INTO media (post_id, media_type, original_url, local_path, data_hash, perceptual_hash, width, height, filesize, media_index, safety_rating, content_rating, duplicate_of) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
             try (PreparedStatement postStmt = conn.prepareStatement(postSql);
-                 PreparedStatement mediaStmt = conn.prepareStatement(mediaSql)) {
+                 PreparedStatement mediaStmt = conn.prepareStatement(mediaSql, Statement.RETURN_GENERATED_KEYS)) {
 
                 postStmt.setString(1, twitterPost.postId);
                 postStmt.setString(2, twitterPost.twitterId);
@@ -311,25 +341,52 @@ public class TwitterScraper {
 
                 if (rowsUpdated > 0) { // Prevents duplicate media entries
                     for (TwitterMedia m : twitterPost.media) {
+                        //checked inside this transaction so earlier media from the same post count too
+                        m.duplicateOf = DatabaseHandler.findDuplicateOf(conn, m, twitterPost.media);
                         mediaStmt.setString(1, twitterPost.postId);
                         mediaStmt.setString(2, m.mediaType);
                         mediaStmt.setString(3, m.originalUrl);
                         mediaStmt.setString(4, m.localPath);
-                        mediaStmt.setString(5, m.dataHash);
-                        mediaStmt.setString(6, m.perceptualHash);
+                        mediaStmt.setBytes(5, DatabaseHandler.dataHashToBytes(m.dataHash));
+                        if (m.perceptualHash != null) {
+                            mediaStmt.setLong(6, m.perceptualHash);
+                        } else {
+                            mediaStmt.setNull(6, Types.INTEGER);
+                        }
                         mediaStmt.setInt(7, m.width);
                         mediaStmt.setInt(8, m.height);
                         mediaStmt.setLong(9, m.filesize);
                         mediaStmt.setInt(10, m.mediaIndex);
                         mediaStmt.setString(11, WAITING_STATUS);
                         mediaStmt.setString(12, WAITING_STATUS);
+                        if (m.duplicateOf != 0) {
+                            mediaStmt.setInt(13, m.duplicateOf);
+                        } else {
+                            mediaStmt.setNull(13, Types.INTEGER);
+                        }
                         mediaStmt.executeUpdate();
+                        try (ResultSet keys = mediaStmt.getGeneratedKeys()) {
+                            if (keys.next()) m.id = keys.getInt(1);
+                        }
                     }
+                    DatabaseHandler.postChanged(twitterPost.postId);
+                    DatabaseHandler.listingsChanged();
                 }
+                return rowsUpdated > 0;
             } catch (SQLException e) {
                 throw new RuntimeException("Failed to save post to database: " + twitterPost.postId, e);
             }
         });
+        saved.thenAcceptAsync(inserted -> {
+            if (!inserted) return;
+            for (TwitterMedia m : twitterPost.media) {
+                if (m.id != 0 && m.perceptualHash != null) {
+                    hashIndex.add(m.id, m.perceptualHash);
+                    ThumbnailService.generateAsync(m.id, m.localPath);
+                }
+            }
+        }, AFTER_SAVE);
+        return saved;
     }
 
     /**
@@ -380,4 +437,51 @@ public class TwitterScraper {
         account.screenName = jsonObject.getString("screenName");
         return account;
     }
-}
\ No newline at end of file
+
+    /**
+     * Everything {@link #savePostToDbAsync} needs, as JSON.
+     */
+    private static JSONObject postToJournal(TwitterPost post) {
+        JSONArray media = new JSONArray();
+        for (TwitterMedia m : post.media) {
+            media.put(new JSONObject()
+                    .put("mediaType", m.mediaType)
+                    .put("originalUrl", m.originalUrl)
+                    .put("localPath", m.localPath)
+                    .put("dataHash", m.dataHash == null ? JSONObject.NULL : m.dataHash)
+                    .put("perceptualHash", m.perceptualHash == null ? JSONObject.NULL : m.perceptualHash)
+                    .put("width", m.width)
+                    .put("height", m.height)
+                    .put("filesize", m.filesize)
+                    .put("mediaIndex", m.mediaIndex));
+        }
+        return new JSONObject()
+                .put("postId", post.postId)
+                .put("twitterId", post.twitterId)
+                .put("postText", post.postText == null ? JSONObject.NULL : post.postText)
+                .put("postDate", post.postDate)
+                .put("archiveDate", post.archiveDate)
+                .put("media", media);
+    }
+
+    private static TwitterPost postFromJournal(JSONObject json) {
+        TwitterPost post = new TwitterPost();
+        post.postId = json.getString("postId");
+        post.twitterId = json.getString("twitterId");
+        post.postText = json.optString("postText", null);
+        post.postDate = json.getLong("postDate");
+        post.archiveDate = json.getLong("archiveDate");
+        post.media = new ArrayList<>();
+        JSONArray media = json.getJSONArray("media");
+        for (int i = 0; i < media.length(); i++) {
+            JSONObject entry = media.getJSONObject(i);
+            TwitterMedia m = new TwitterMedia(entry.getString("mediaType"), entry.getString("originalUrl"), entry.getString("localPath"),
+                    entry.getInt("mediaIndex"), entry.getInt("width"), entry.getInt("height"));
+            m.dataHash = entry.optString("dataHash", null);
+            m.perceptualHash = entry.isNull("perceptualHash") ? null : entry.getLong("perceptualHash");
+            m.filesize = entry.getLong("filesize");
+            post.media.add(m);
+        }
+        return post;
+    }
+}
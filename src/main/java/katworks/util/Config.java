@@ -12,9 +12,14 @@ public class Config {
     public ArrayList<String> contentRatings = new ArrayList<>(); //array of possible content ratings for posts. (kf, nonkf, rejected)
     public ArrayList<String> safetyRatings = new ArrayList<>(); //array of possible safety ratings for posts and accounts. (safe, nsfw, nsfl)
     public int checkIntervalHours; //how often to run the download loop in hours.
+    public int duplicateThreshold; //max perceptual hash distance for new media to be marked as a duplicate. -1 disables pHash matching.
 
     public String databasePath; //path to the .db file of the database.
     public String imageDownloadPath; //path to the root of where images will be downloaded.
+    public String thumbnailPath; //path to the on-disk thumbnail store. Defaults to a folder next to imageDownloadPath.
+    public int writeQueueCapacity; //max number of background writes waiting for the database. Interactive writes do not count.
+    public String writeQueueFullPolicy; //what happens when the write queue is full. Block (wait), Shed (drop the write, journaled writes wait instead) or Fail (throw).
+    public boolean writeJournalEnabled; //if scraped posts are journaled to disk until they are committed, so a crash does not lose them.
 
     public boolean discordEnabled; //if the Discord bot frontend should be enabled.
     public String botToken; //the discord bot token.
@@ -27,6 +32,10 @@ public class Config {
 
     public boolean webEnabled; //if the website/API should be enabled
     public int port; //the port the web server should serve on
+    public int thumbnailCacheMB; //how much memory (outside the heap) hot thumbnails may use
+    public int sessionCacheSize; //how many logged in sessions to keep in memory, 0 looks every token up in the database
+    public int entityCacheSize; //how many posts, media, accounts and artists (each) to keep in memory, 0 disables the cache
+    public int pageCacheMB; //how much memory rendered /api/posts pages may use, 0 renders every page
     /**
      * Creates a config with defaults for the user to edit and set as they want.
      */
@@ -37,10 +46,15 @@ public class Config {
         archiveConfig.put("ContentRatings", new JSONArray().put("KF").put("NonKF").put("Rejected"));
         archiveConfig.put("SafetyRatings", new JSONArray().put("Safe").put("NSFW").put("NSFL"));
         archiveConfig.put("CheckIntervalHours",3);
+        archiveConfig.put("DuplicateThreshold",4);
 
         JSONObject databaseConfig = new JSONObject();
         databaseConfig.put("DatabasePath","archive.db");
         databaseConfig.put("ImageDownloadPath","ArchiveImages");
+        databaseConfig.put("ThumbnailPath","ArchiveThumbnails");
+        databaseConfig.put("WriteQueueCapacity",10000);
+        databaseConfig.put("WriteQueueFullPolicy","Block");
+        databaseConfig.put("WriteJournal",true);
 
         JSONObject discordConfig = new JSONObject();
         discordConfig.put("Enabled",true);
@@ -55,6 +69,10 @@ public class Config {
         JSONObject webConfig = new JSONObject();
         webConfig.put("Enabled",true);
         webConfig.put("Port",7070);
+        webConfig.put("ThumbnailCacheMB",64);
+        webConfig.put("SessionCacheSize",10000);
+        webConfig.put("EntityCacheSize",5000);
+        webConfig.put("PageCacheMB",16);
 
         configRoot.put("Archive",archiveConfig);
         configRoot.put("Database",databaseConfig);
@@ -85,9 +103,15 @@ public class Config {
         config.contentRatings.add("Waiting"); //Waiting is a special rating that is used in case no rating has been assigned yet. It is basically "null."
         config.safetyRatings.add("Waiting");
         config.checkIntervalHours = archiveConfig.getInt("CheckIntervalHours");
+        config.duplicateThreshold = archiveConfig.optInt("DuplicateThreshold", 4); //optional, older configs do not have it
         //database config
         config.databasePath = databaseConfig.getString("DatabasePath");
         config.imageDownloadPath = databaseConfig.getString("ImageDownloadPath");
+        config.thumbnailPath = databaseConfig.optString("ThumbnailPath",
+                Path.of(config.imageDownloadPath).toAbsolutePath().normalize().resolveSibling("ArchiveThumbnails").toString());
+        config.writeQueueCapacity = databaseConfig.optInt("WriteQueueCapacity", 10000);
+        config.writeQueueFullPolicy = databaseConfig.optString("WriteQueueFullPolicy", "Block");
+        config.writeJournalEnabled = databaseConfig.optBoolean("WriteJournal", true);
         //discord config
         config.discordEnabled = discordConfig.getBoolean("Enabled");
         config.botToken = discordConfig.getString("BotToken");
@@ -102,6 +126,10 @@ public class Config {
         //web config
         config.webEnabled = webConfig.getBoolean("Enabled");
         config.port = webConfig.getInt("Port");
+        config.thumbnailCacheMB = webConfig.optInt("ThumbnailCacheMB", 64);
+        config.sessionCacheSize = webConfig.optInt("SessionCacheSize", 10000);
+        config.entityCacheSize = webConfig.optInt("EntityCacheSize", 5000);
+        config.pageCacheMB = webConfig.optInt("PageCacheMB", 16);
 
         return config;
     }
@@ -123,6 +151,9 @@ public class Config {
      * Ensure the image download directories exist by creating them.
      */
     public void ensureDirectories() {
+        try {
+            Files.createDirectories(Path.of(this.thumbnailPath));
+        } catch (IOException e) {throw new RuntimeException(e);}
         for (String contentRating : this.contentRatings) {
             if (!Files.exists(Path.of(this.imageDownloadPath + "/" + contentRating))) {
                 try {
@@ -0,0 +1,66 @@
+package katworks.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes images at only the resolution that is actually needed. The header is read first to get the real size, then
+ * the reader is asked to subsample while decoding (every n-th pixel of every n-th row), so a 4K original that is only
+ * going to become a 400px thumbnail never has its full pixel buffer allocated.
+ * <p>
+ * Works with every ImageIO reader, including the TwelveMonkeys JPEG/WebP ones. Subsampling is point sampling,
+ * so callers should ask for about twice the size they will scale down to. Not used for perceptual hashes: every
+ * stored hash came from a full decode, and a subsampled one lands several bits away from it.
+ */
+public class ImageDecoder {
+    /**
+     * Decodes the first frame of an image, subsampled as far as possible while staying at least the given size.
+     * @param input File, InputStream or anything else {@link ImageIO#createImageInputStream} accepts.
+     * @param minWidth Smallest width the result may have, 0 if only the height matters.
+     * @param minHeight Smallest height the result may have, 0 if only the width matters.
+     * @return The decoded image, or null if the input is not a readable image (same as {@link ImageIO#read}).
+     */
+    public static BufferedImage decode(Object input, int minWidth, int minHeight) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            ImageReader reader = readerFor(stream);
+            if (reader == null) return null;
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int factor = subsamplingFactor(width, height, minWidth, minHeight);
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Largest step that still leaves at least minWidth x minHeight pixels.
+     */
+    static int subsamplingFactor(int width, int height, int minWidth, int minHeight) {
+        int byWidth = minWidth > 0 ? width / minWidth : Integer.MAX_VALUE;
+        int byHeight = minHeight > 0 ? height / minHeight : Integer.MAX_VALUE;
+        int factor = Math.min(byWidth, byHeight);
+        return factor == Integer.MAX_VALUE ? 1 : Math.max(1, factor);
+    }
+
+    private static ImageReader readerFor(ImageInputStream stream) {
+        if (stream == null) return null;
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        //seek forward only, and skip metadata we never look at
+        reader.setInput(stream, true, true);
+        return reader;
+    }
+}
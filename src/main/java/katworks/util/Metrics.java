@@ -0,0 +1,63 @@
+package katworks.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Minimal process-wide metrics registry. Counters are {@link LongAdder}s so hot paths never contend on them,
+ * gauges are read only when a snapshot is taken, histograms record latencies and sizes. Exposed to admins through /api/metrics.
+ */
+public class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Object>> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Gets (or creates) the counter with the given name. Keep the returned adder around instead of looking it up on every increment.
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers a value that is computed when metrics are read. Replaces any gauge with the same name.
+     */
+    public static void gauge(String name, Supplier<Object> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Gets (or creates) the histogram with the given name. Snapshots show it as {@code name.count}, {@code name.mean},
+     * {@code name.p50}, {@code name.p90}, {@code name.p99} and {@code name.max}.
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * @return Every counter, gauge and histogram by name, sorted.
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.count());
+            values.put(name + ".mean", histogram.mean());
+            values.put(name + ".p50", histogram.percentile(0.50));
+            values.put(name + ".p90", histogram.percentile(0.90));
+            values.put(name + ".p99", histogram.percentile(0.99));
+            values.put(name + ".max", histogram.max());
+        });
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get());
+            } catch (Exception e) {
+                values.put(name, null);
+            }
+        });
+        return values;
+    }
+}
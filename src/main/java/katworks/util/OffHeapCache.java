@@ -0,0 +1,172 @@
+package katworks.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent byte cache bounded by total payload size, with payloads kept in direct ByteBuffers outside the heap.
+ * <p>
+ * The cache is split into segments by key hash, each with its own byte budget and lock. Lookups never lock:
+ * they read a ConcurrentHashMap and set the entry's reference bit. Inserts lock only their segment and evict
+ * with CLOCK (second chance), which approximates LRU without reordering anything on hits.
+ * <p>
+ * Buffers handed out are read-only duplicates, so they stay valid to write out even if the entry is evicted meanwhile.
+ * Evicted memory is released once the last duplicate is garbage collected.
+ */
+public class OffHeapCache<K> {
+    private static final int SEGMENTS = 16;
+
+    private final Segment<K>[] segments;
+    private final long maxEntryBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacityBytes Maximum total size of all cached payloads.
+     */
+    @SuppressWarnings("unchecked") //generic arrays can't be created directly; the array never leaves this class
+    public OffHeapCache(long capacityBytes) {
+        segments = (Segment<K>[]) new Segment<?>[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(capacityBytes / SEGMENTS);
+        }
+        maxEntryBytes = capacityBytes / SEGMENTS / 4; //one entry should never flush most of a segment
+    }
+
+    /**
+     * @return A read-only view of the cached payload (position 0, limit = size), or null on a miss.
+     */
+    public ByteBuffer get(K key) {
+        Entry<K> entry = segmentFor(key).map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.buffer.duplicate();
+    }
+
+    /**
+     * Copies the payload off heap and caches it. Payloads larger than a quarter of a segment are not cached.
+     */
+    public void put(K key, byte[] data) {
+        if (data.length > maxEntryBytes) return;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        Segment<K> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<K> old = segment.map.remove(key);
+            if (old != null) segment.unlink(old);
+            while (segment.bytes + data.length > segment.capacity && !segment.ring.isEmpty()) {
+                segment.evictOne();
+                evictions.increment();
+            }
+            Entry<K> entry = new Entry<>(key, buffer.asReadOnlyBuffer());
+            entry.slot = segment.ring.size();
+            segment.ring.add(entry);
+            segment.bytes += data.length;
+            segment.map.put(key, entry);
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<K> old = segment.map.remove(key);
+            if (old != null) segment.unlink(old);
+        }
+    }
+
+    public long residentBytes() {
+        long total = 0;
+        for (Segment<K> segment : segments) total += segment.bytes;
+        return total;
+    }
+
+    public int size() {
+        int total = 0;
+        for (Segment<K> segment : segments) total += segment.map.size();
+        return total;
+    }
+
+    /**
+     * Publishes hits, misses, hit ratio, evictions, entries and resident bytes under the given prefix.
+     */
+    public void registerMetrics(String prefix) {
+        Metrics.gauge(prefix + ".hits", hits::sum);
+        Metrics.gauge(prefix + ".misses", misses::sum);
+        Metrics.gauge(prefix + ".evictions", evictions::sum);
+        Metrics.gauge(prefix + ".entries", this::size);
+        Metrics.gauge(prefix + ".resident_bytes", this::residentBytes);
+        Metrics.gauge(prefix + ".hit_ratio", () -> {
+            long h = hits.sum();
+            long total = h + misses.sum();
+            return total == 0 ? 0.0 : (double) h / total;
+        });
+    }
+
+    private Segment<K> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private static final class Entry<K> {
+        final K key;
+        final ByteBuffer buffer;
+        volatile boolean referenced;
+        int slot; //position in the segment's ring, only touched under the segment lock
+
+        Entry(K key, ByteBuffer buffer) {
+            this.key = key;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Segment<K> {
+        final long capacity;
+        final ConcurrentHashMap<K, Entry<K>> map = new ConcurrentHashMap<>();
+        final List<Entry<K>> ring = new ArrayList<>();
+        volatile long bytes; //only written under the segment lock, read without it for metrics
+        int hand;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Advances the clock hand, clearing reference bits, until it finds an entry that was not used since the last pass.
+         */
+        void evictOne() {
+            while (true) {
+                if (hand >= ring.size()) hand = 0;
+                Entry<K> candidate = ring.get(hand);
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    hand++;
+                } else {
+                    map.remove(candidate.key, candidate);
+                    unlink(candidate);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes an entry from the ring by moving the last entry into its slot.
+         */
+        void unlink(Entry<K> entry) {
+            int last = ring.size() - 1;
+            Entry<K> moved = ring.get(last);
+            ring.set(entry.slot, moved);
+            moved.slot = entry.slot;
+            ring.remove(last);
+            bytes -= entry.buffer.capacity();
+        }
+    }
+}
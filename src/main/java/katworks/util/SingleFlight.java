@@ -0,0 +1,71 @@
+package katworks.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent requests for the same expensive result. The first caller for a key runs the task on the
+ * given executor, and anyone asking for the same key before it finishes gets the same future instead of starting
+ * a second computation. Nothing is cached afterwards, that is left to the caller.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Executor executor;
+    private final LongAdder started;
+    private final LongAdder coalesced;
+    private final LongAdder rejected;
+
+    /**
+     * @param name Used as the metrics prefix.
+     * @param executor Where tasks run. If it rejects a task, every waiter for that key fails with RejectedExecutionException.
+     */
+    public SingleFlight(String name, Executor executor) {
+        this.executor = executor;
+        this.started = Metrics.counter("singleflight." + name + ".started");
+        this.coalesced = Metrics.counter("singleflight." + name + ".coalesced");
+        this.rejected = Metrics.counter("singleflight." + name + ".rejected");
+        Metrics.gauge("singleflight." + name + ".in_flight", inFlight::size);
+    }
+
+    public CompletableFuture<V> run(K key, Callable<V> task) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        started.increment();
+        try {
+            executor.execute(() -> {
+                try {
+                    created.complete(task.call());
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * Creates a fixed-size pool with a bounded queue for CPU-heavy work. When the queue is full, new tasks are
+     * rejected instead of piling up, so callers can answer with 503 right away.
+     */
+    public static ExecutorService boundedPool(String name, int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        Metrics.gauge(name + ".queued", () -> pool.getQueue().size());
+        Metrics.gauge(name + ".active", pool::getActiveCount);
+        return pool;
+    }
+}
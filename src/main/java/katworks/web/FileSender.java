@@ -0,0 +1,209 @@
+package katworks.web;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import jakarta.servlet.ServletOutputStream;
+import org.eclipse.jetty.ee10.servlet.HttpOutput;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends files as response bodies with Range support: single ranges as 206, several as multipart/byteranges,
+ * If-Range, and 416 for ranges past the end. Needed for seeking in videos and resuming downloads.
+ * <p>
+ * File contents never go through the heap. Under Jetty the file is read into pooled direct buffers that are handed
+ * to the connector as is, otherwise it is copied with {@link FileChannel#transferTo}.
+ */
+class FileSender {
+    //more ranges than this in one request is not a video player, just send the whole file
+    private static final int MAX_RANGES = 16;
+    private static final int CHUNK = 256 * 1024;
+    //direct buffers kept between requests, more concurrent sends allocate extra ones that are left to the GC
+    private static final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(32);
+
+    /**
+     * Writes the file, or the parts of it the Range header asks for. Validators (ETag, Last-Modified) must already
+     * be set and If-None-Match/If-Modified-Since already handled by the caller.
+     * @param etag The ETag that was sent, or null. Used for If-Range.
+     * @param lastModified Modification time in milliseconds that was sent as Last-Modified. Used for If-Range.
+     */
+    static void send(Context ctx, Path file, long size, String contentType, String etag, long lastModified, ResponseStats stats) throws IOException {
+        ctx.header("Accept-Ranges", "bytes");
+        List<long[]> ranges = rangeApplies(ctx, etag, lastModified) ? parseRanges(ctx.header("Range"), size) : null;
+        boolean head = ctx.method() == HandlerType.HEAD;
+
+        if (ranges == null) {
+            ctx.contentType(contentType);
+            ctx.res().setContentLengthLong(size);
+            stats.sent(size);
+            if (head) return;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                writeRegion(ctx.res().getOutputStream(), channel, 0, size);
+            }
+            return;
+        }
+
+        if (ranges.isEmpty()) {
+            ctx.header("Content-Range", "bytes */" + size);
+            ctx.status(416);
+            return;
+        }
+
+        ctx.status(206);
+        if (ranges.size() == 1) {
+            long start = ranges.get(0)[0];
+            long length = ranges.get(0)[1] - start + 1;
+            ctx.contentType(contentType);
+            ctx.header("Content-Range", "bytes " + start + "-" + ranges.get(0)[1] + "/" + size);
+            ctx.res().setContentLengthLong(length);
+            stats.partial(length);
+            if (head) return;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                writeRegion(ctx.res().getOutputStream(), channel, start, length);
+            }
+            return;
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        long payload = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            partHeaders[i] = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + range[1] - range[0] + 1;
+            payload += range[1] - range[0] + 1;
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += trailer.length;
+
+        ctx.contentType("multipart/byteranges; boundary=" + boundary);
+        ctx.res().setContentLengthLong(contentLength);
+        stats.partial(payload);
+        if (head) return;
+        ServletOutputStream out = ctx.res().getOutputStream();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                out.write(partHeaders[i]);
+                writeRegion(out, channel, range[0], range[1] - range[0] + 1);
+            }
+        }
+        out.write(trailer);
+    }
+
+    /**
+     * A Range header is ignored if If-Range names a different version than the current one. An ETag in If-Range
+     * needs a strong match, a date has to be exactly the Last-Modified that was sent.
+     */
+    private static boolean rangeApplies(Context ctx, String etag, long lastModified) {
+        if (ctx.header("Range") == null) return false;
+        String ifRange = ctx.header("If-Range");
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && ifRange.equals(etag);
+        }
+        try {
+            long date = ctx.req().getDateHeader("If-Range");
+            return date >= 0 && date / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a {@code bytes=} Range header into sorted, merged, inclusive {start, end} pairs clamped to the file.
+     * @return The ranges, an empty list if none of them overlap the file (416), or null if the header is
+     * malformed or asks for too many ranges, in which case it is ignored and the whole file sent.
+     */
+    static List<long[]> parseRanges(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) return null;
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<long[]> ranges = new ArrayList<>();
+        for (String raw : specs) {
+            String spec = raw.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            try {
+                if (dash == 0) {
+                    //suffix range, the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) return null;
+                    if (suffix == 0 || size == 0) continue;
+                    ranges.add(new long[]{Math.max(0, size - suffix), size - 1});
+                } else {
+                    long start = Long.parseLong(spec.substring(0, dash));
+                    String endText = spec.substring(dash + 1);
+                    long end = endText.isEmpty() ? Long.MAX_VALUE : Long.parseLong(endText);
+                    if (start < 0 || end < start) return null;
+                    if (start >= size) continue;
+                    ranges.add(new long[]{start, Math.min(end, size - 1)});
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        //overlapping or touching ranges are sent once, so repeating a range cannot multiply the response size
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private static void writeRegion(ServletOutputStream out, FileChannel channel, long start, long length) throws IOException {
+        long position = start;
+        long end = start + length;
+        if (out instanceof HttpOutput httpOutput) {
+            //read, not mapped: a mapping per chunk would pile up until the GC unmaps them, and a file truncated
+            //while mapped kills the thread with SIGBUS instead of failing the read
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) buffer = ByteBuffer.allocateDirect(CHUNK);
+            try {
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(CHUNK, end - position));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("File shrank while it was being sent");
+                    }
+                    position += buffer.flip().remaining();
+                    httpOutput.write(buffer); //blocking, the buffer is free again once it returns
+                }
+            } finally {
+                buffers.offer(buffer);
+            }
+        } else {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) throw new EOFException("File shrank while it was being sent");
+                position += sent;
+            }
+        }
+    }
+}
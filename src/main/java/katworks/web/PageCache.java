@@ -0,0 +1,138 @@
+package katworks.web;
+
+import katworks.impl.PostCursor;
+import katworks.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rendered pages of /api/posts and /api/accounts/{id}/posts, kept as the JSON bytes that were sent.
+ * <p>
+ * Every page remembers the archive version ({@link katworks.database.DatabaseHandler#getArchiveVersion()}) that was
+ * current before it was read, and is only served while that is still the current version. Writes that change the
+ * listings bump the version once they have committed, which retires every page at once without walking the cache.
+ * Pages of older versions are dropped first when the cache is full, then the ones that were used longest ago.
+ */
+final class PageCache {
+    private final Map<Key, Page> pages = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long maxBytes;
+
+    private final LongAdder hits = Metrics.counter("page_cache.hits");
+    private final LongAdder misses = Metrics.counter("page_cache.misses");
+    private final LongAdder evictions = Metrics.counter("page_cache.evictions");
+
+    /**
+     * @param maxBytes How much JSON to keep, 0 disables the cache.
+     */
+    PageCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        Metrics.gauge("page_cache.size", pages::size);
+        Metrics.gauge("page_cache.bytes", bytes::get);
+        Metrics.gauge("page_cache.hit_ratio", () -> {
+            long total = hits.sum() + misses.sum();
+            return total == 0 ? 0.0 : (double) hits.sum() / total;
+        });
+    }
+
+    /**
+     * @return The page, or null if it is not cached or was read under an older version.
+     */
+    Page get(Key key, long version) {
+        Page page = pages.get(key);
+        if (page == null || page.version != version) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        page.lastUsed = System.nanoTime();
+        return page;
+    }
+
+    /**
+     * Caches a page. Pages bigger than an eighth of the cache are not kept, so one huge listing cannot push out
+     * all the first pages, and neither are pages that a write made outdated while they were being read.
+     * @param currentVersion The archive version after the page was read.
+     */
+    void put(Key key, Page page, long currentVersion) {
+        long size = page.json.length;
+        if (page.version != currentVersion || size == 0 || size > maxBytes / 8) return;
+        if (bytes.get() + size > maxBytes) evict(currentVersion, size);
+        Page old = pages.put(key, page);
+        bytes.addAndGet(old == null ? size : size - old.json.length);
+    }
+
+    /**
+     * Makes room for a page of the given size by dropping pages of older versions and then, if that was not enough,
+     * the least recently used ones until a tenth of the cache is free.
+     */
+    private synchronized void evict(long currentVersion, long needed) {
+        if (bytes.get() + needed <= maxBytes) return; //another thread already made room
+        int before = pages.size();
+        for (Map.Entry<Key, Page> e : pages.entrySet()) {
+            if (e.getValue().version != currentVersion) remove(e.getKey(), e.getValue());
+        }
+        long target = maxBytes - Math.max(needed, maxBytes / 10);
+        if (bytes.get() > target) {
+            List<Map.Entry<Key, Page>> oldest = new ArrayList<>(pages.entrySet());
+            oldest.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (Map.Entry<Key, Page> e : oldest) {
+                if (bytes.get() <= target) break;
+                remove(e.getKey(), e.getValue());
+            }
+        }
+        evictions.add(before - pages.size());
+    }
+
+    private void remove(Key key, Page page) {
+        if (pages.remove(key, page)) bytes.addAndGet(-page.json.length);
+    }
+
+    /**
+     * A rendered page.
+     * @param json The response body.
+     * @param nextCursor X-Next-Cursor to send with it, null if it was the last page.
+     * @param totalCount X-Total-Count to send with it, -1 for none.
+     * @param version Archive version that was current before the page was read.
+     */
+    static final class Page {
+        final byte[] json;
+        final String nextCursor;
+        final long totalCount;
+        final long version;
+        volatile long lastUsed = System.nanoTime();
+
+        Page(byte[] json, String nextCursor, long totalCount, long version) {
+            this.json = json;
+            this.nextCursor = nextCursor;
+            this.totalCount = totalCount;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Everything a listing page depends on, normalized so requests for the same page share an entry: the order the
+     * rating filters were given in does not matter, any sort that is not "oldest" is newest first, and the offset
+     * is ignored when there is a cursor.
+     */
+    record Key(String twitterId, boolean oldest, int limit, int offset, Long cursorDate, String cursorId,
+               List<String> contentFilters, List<String> safetyFilters) {
+
+        static Key of(String twitterId, String sort, int limit, int offset, PostCursor cursor, List<String> contentFilters, List<String> safetyFilters) {
+            return new Key(twitterId, "oldest".equalsIgnoreCase(sort), limit, cursor != null ? 0 : offset,
+                    cursor != null ? cursor.postDate : null, cursor != null ? cursor.postId : null,
+                    normalize(contentFilters), normalize(safetyFilters));
+        }
+
+        private static List<String> normalize(List<String> filters) {
+            return filters == null ? List.of() : List.copyOf(new TreeSet<>(filters));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package katworks.web;
+
+import katworks.util.Metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request, 304, 206 and byte counters for one kind of cacheable response, published through {@link Metrics}.
+ * {@code bytes_saved} is the size of the bodies that were not sent because the client's copy was still valid.
+ */
+class ResponseStats {
+    private final LongAdder requests;
+    private final LongAdder notModified;
+    private final LongAdder partial;
+    private final LongAdder bytesSent;
+    private final LongAdder bytesSaved;
+
+    ResponseStats(String prefix) {
+        requests = Metrics.counter(prefix + ".requests");
+        notModified = Metrics.counter(prefix + ".not_modified");
+        partial = Metrics.counter(prefix + ".partial");
+        bytesSent = Metrics.counter(prefix + ".bytes_sent");
+        bytesSaved = Metrics.counter(prefix + ".bytes_saved");
+        Metrics.gauge(prefix + ".not_modified_ratio", () -> {
+            long total = requests.sum();
+            return total == 0 ? 0.0 : (double) notModified.sum() / total;
+        });
+    }
+
+    void sent(long bytes) {
+        requests.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * A 206 response, counting only the bytes of the requested ranges.
+     */
+    void partial(long bytes) {
+        requests.increment();
+        partial.increment();
+        bytesSent.add(bytes);
+    }
+
+    void notModified(long bytes) {
+        requests.increment();
+        notModified.increment();
+        bytesSaved.add(bytes);
+    }
+}
@@ -6,19 +6,27 @@ import io.javalin.Javalin;
 import io.javalin.config.SizeUnit;
 import io.javalin.http.*;
 import io.javalin.http.staticfiles.Location;
+import jakarta.servlet.ServletOutputStream;
+import katworks.archive.DedupeJob;
+import katworks.archive.ThumbnailService;
 import katworks.database.DatabaseHandler;
 import katworks.impl.*;
+import katworks.search.HashMatches;
 import katworks.twitter.TwitterScraper;
 import katworks.util.ExtractPostId;
+import katworks.util.Metrics;
+import katworks.util.SingleFlight;
+import org.eclipse.jetty.ee10.servlet.HttpOutput;
 import org.mindrot.jbcrypt.BCrypt;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -27,30 +35,41 @@ import java.security.SecureRandom;
 import java.time.Instant;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Stream;
 
 import static katworks.Main.config;
+import static katworks.Main.hashIndex;
 
 public class WebServer {
 
     private static final SecureRandom secureRandom = new SecureRandom();
 
+    // Decoding and page rendering run here instead of on Jetty's request threads. The queue is bounded,
+    // so a burst of cache misses gets 503s instead of tying up every request thread.
+    private static final int RENDER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService renderPool = SingleFlight.boundedPool("render-worker", RENDER_THREADS, RENDER_THREADS * 32);
+    // Concurrent requests for the same thumbnail or embed share one computation.
+    private static final SingleFlight<Integer, ByteBuffer> thumbnailFlight = new SingleFlight<>("thumbnail", renderPool);
+    private static final SingleFlight<String, String> embedFlight = new SingleFlight<>("embed", renderPool);
+    private static final SingleFlight<String, Map<String, Object>> oembedFlight = new SingleFlight<>("oembed", renderPool);
+
+    private static final ResponseStats imageStats = new ResponseStats("http.images");
+    private static final ResponseStats thumbnailStats = new ResponseStats("http.thumbnails");
+    private static final ResponseStats listingStats = new ResponseStats("http.listings");
+    private static final PageCache pageCache = new PageCache(config.pageCacheMB * 1024L * 1024);
+
     private static String generateSessionToken() {
         byte[] randomBytes = new byte[32];
         secureRandom.nextBytes(randomBytes);
         return Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes);
     }
 
-    private static final Map<String, byte[]> thumbnailCache = Collections.synchronizedMap(
-            new LinkedHashMap<String, byte[]>(500, 0.75f, true) {
-                @Override
-                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
-                    return size() > 500;
-                }
-            }
-    );
-
     // Helper for generating proper external URLs for OpenGraph tags
     private static String getMediaUrl(String host, TwitterMedia m) {
         try {
@@ -73,13 +92,306 @@ public class WebServer {
                 .replace("'", "&#39;");
     }
 
+    /**
+     * Writes a buffer as the whole response body. Jetty takes direct (off-heap) buffers as they are,
+     * so cached payloads are not copied back onto the heap first.
+     */
+    private static void writeBuffer(Context ctx, ByteBuffer buffer, String contentType) throws IOException {
+        ctx.contentType(contentType);
+        ctx.res().setContentLengthLong(buffer.remaining());
+        if (ctx.method() == HandlerType.HEAD) return;
+        ServletOutputStream out = ctx.res().getOutputStream();
+        if (out instanceof HttpOutput httpOutput) {
+            httpOutput.write(buffer);
+        } else {
+            Channels.newChannel(out).write(buffer);
+        }
+    }
+
+    /**
+     * Answers a request whose coalesced work failed. 503 if the render pool was full, 500 otherwise.
+     */
+    private static void respondToFailure(Context ctx, Throwable error, String message) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException) {
+            ctx.header("Retry-After", "1");
+            ctx.status(503).result("Server busy, try again shortly");
+        } else {
+            cause.printStackTrace();
+            ctx.status(500).result(message);
+        }
+    }
+
+    /**
+     * Handles /api/posts and /api/accounts/{id}/posts. Pages are picked by offset or by the cursor from the previous
+     * page's X-Next-Cursor. Random order is seeded, the seed is sent back in X-Random-Seed. X-Total-Count is the
+     * amount of posts matching the filters, from the archive_stats counters.
+     * <p>
+     * Newest and oldest first pages are served from {@link PageCache} and carry the archive version as their ETag,
+     * so a client that still has the current page gets a 304 without anything being read or rendered.
+     * @param twitterId Account to list, or null for the whole archive.
+     */
+    private static void servePostListing(Context ctx, String twitterId) {
+        int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(20);
+        int offset = ctx.queryParamAsClass("offset", Integer.class).getOrDefault(0);
+        List<String> contentFilters = ctx.queryParams("content"); // Changed from 'c'
+        List<String> safetyFilters = ctx.queryParams("safety");   // Changed from 's'
+        String sort = ctx.queryParam("sort");
+        String cursorParam = ctx.queryParam("cursor");
+        boolean hasCursor = cursorParam != null && !cursorParam.isEmpty();
+
+        if ("random".equalsIgnoreCase(sort)) {
+            RandomCursor cursor;
+            if (hasCursor) {
+                cursor = RandomCursor.decode(cursorParam);
+            } else {
+                long seed = ctx.queryParamAsClass("seed", Long.class).getOrDefault(ThreadLocalRandom.current().nextLong());
+                cursor = new RandomCursor(seed, Math.max(0, offset));
+            }
+            if (cursor == null) {
+                ctx.status(400).json(Map.of("error", "Invalid cursor"));
+                return;
+            }
+            List<TwitterPost> posts = DatabaseHandler.getRandomPostsPaged(twitterId, limit, cursor, contentFilters, safetyFilters);
+            ctx.header("X-Random-Seed", Long.toString(cursor.seed));
+            setTotalCount(ctx, DatabaseHandler.countPosts(twitterId, contentFilters, safetyFilters));
+            if (cursor.hasMore()) ctx.header("X-Next-Cursor", cursor.encode());
+            ctx.json(posts);
+            return;
+        }
+
+        PostCursor cursor = hasCursor ? PostCursor.decode(cursorParam) : null;
+        if (hasCursor && cursor == null) {
+            ctx.status(400).json(Map.of("error", "Invalid cursor"));
+            return;
+        }
+
+        //read before the page, so a write that commits while it is being read makes it outdated rather than hiding
+        long version = DatabaseHandler.getArchiveVersion();
+        String etag = "\"" + Long.toHexString(version) + "\"";
+        ctx.header("ETag", etag);
+        ctx.header("Cache-Control", "public, no-cache");
+        PageCache.Key key = PageCache.Key.of(twitterId, sort, limit, offset, cursor, contentFilters, safetyFilters);
+        PageCache.Page page = pageCache.get(key, version);
+        if (isNotModified(ctx, etag, 0)) {
+            listingStats.notModified(page != null ? page.json.length : 0);
+            ctx.status(304);
+            return;
+        }
+
+        if (page == null) {
+            List<TwitterPost> posts = twitterId == null
+                    ? DatabaseHandler.getGlobalPostsPaged(limit, offset, cursor, contentFilters, safetyFilters, sort)
+                    : DatabaseHandler.getPostsByUserIdPaged(twitterId, limit, offset, cursor, contentFilters, safetyFilters, sort);
+            //a full page may have more after it
+            String nextCursor = posts.size() == limit && !posts.isEmpty() ? PostCursor.after(posts.get(posts.size() - 1)).encode() : null;
+            byte[] json = ctx.jsonMapper().toJsonString(posts, posts.getClass()).getBytes(StandardCharsets.UTF_8);
+            long total = DatabaseHandler.countPosts(twitterId, contentFilters, safetyFilters);
+            page = new PageCache.Page(json, nextCursor, total, version);
+            pageCache.put(key, page, DatabaseHandler.getArchiveVersion());
+        }
+        if (page.nextCursor != null) ctx.header("X-Next-Cursor", page.nextCursor);
+        setTotalCount(ctx, page.totalCount);
+        listingStats.sent(page.json.length);
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        ctx.result(page.json);
+    }
+
+    /**
+     * Handles /api/moderation/queue: a page of posts still waiting for a rating, grouped by account, with the
+     * backlog per account. Pages are picked by the cursor from the previous page's X-Next-Cursor.
+     */
+    private static void serveModerationQueue(Context ctx) {
+        int limit = Math.max(1, Math.min(100, ctx.queryParamAsClass("limit", Integer.class).getOrDefault(50)));
+        String twitterId = ctx.queryParam("account");
+        if (twitterId != null && twitterId.isEmpty()) twitterId = null;
+        boolean newestFirst = "newest".equalsIgnoreCase(ctx.queryParam("sort"));
+        String cursorParam = ctx.queryParam("cursor");
+        boolean hasCursor = cursorParam != null && !cursorParam.isEmpty();
+        PostCursor cursor = hasCursor ? PostCursor.decode(cursorParam) : null;
+        if (hasCursor && cursor == null) {
+            ctx.status(400).json(Map.of("error", "Invalid cursor"));
+            return;
+        }
+
+        List<TwitterPost> posts = DatabaseHandler.getModerationQueue(twitterId, limit, cursor, newestFirst);
+        ModerationQueue queue = DatabaseHandler.getModerationBacklog(twitterId);
+        Map<String, ModerationQueue.AccountPosts> groups = new LinkedHashMap<>();
+        for (TwitterPost post : posts) {
+            ModerationQueue.AccountPosts group = groups.computeIfAbsent(post.twitterId, id -> {
+                ModerationQueue.AccountPosts created = new ModerationQueue.AccountPosts();
+                created.twitterId = id;
+                created.screenName = post.screenName;
+                return created;
+            });
+            group.posts.add(post);
+        }
+        queue.groups = new ArrayList<>(groups.values());
+
+        //a full page may have more after it
+        if (posts.size() == limit) {
+            ctx.header("X-Next-Cursor", PostCursor.after(posts.get(posts.size() - 1)).encode());
+        }
+        ctx.json(queue);
+    }
+
+    /**
+     * @param total Amount of posts matching the listing's filters, or -1 if the counters are not filled yet.
+     */
+    private static void setTotalCount(Context ctx, long total) {
+        if (total >= 0) ctx.header("X-Total-Count", Long.toString(total));
+    }
+
+    /**
+     * Handles /api/stats and /api/accounts/{id}/stats. 503 until the migration that fills the counters has finished.
+     * @param twitterId Account to count, or null for the whole archive.
+     */
+    private static void serveStats(Context ctx, String twitterId) {
+        ArchiveStats stats = DatabaseHandler.getArchiveStats(twitterId);
+        if (stats == null) {
+            ctx.header("Retry-After", "5");
+            ctx.status(503).json(Map.of("error", "Statistics are still being counted"));
+            return;
+        }
+        ctx.json(stats);
+    }
+
+    /**
+     * Checks the request's validators against the current ones. If-None-Match takes precedence, and
+     * If-Modified-Since is only looked at when it is absent.
+     * @param etag Current strong ETag, or null if there is none.
+     * @param lastModified Current modification time in milliseconds, or 0 if unknown.
+     * @return True if the client's copy is still valid and a 304 should be sent.
+     */
+    private static boolean isNotModified(Context ctx, String etag, long lastModified) {
+        String ifNoneMatch = ctx.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) return false;
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2); // If-None-Match uses weak comparison
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        if (lastModified <= 0) return false;
+        try {
+            long since = ctx.req().getDateHeader("If-Modified-Since");
+            return since >= 0 && lastModified / 1000 <= since / 1000; // HTTP dates only have second precision
+        } catch (IllegalArgumentException e) {
+            return false; // unparseable date, ignore it like the spec says
+        }
+    }
+
+    /**
+     * Thumbnail URLs that carry the current content version ({@code ?v=}) never change and can be cached for good.
+     * Anything else has to be revalidated, which is a cheap 304 thanks to the ETag.
+     */
+    private static void setThumbnailCacheHeaders(Context ctx, String dataHash) {
+        String etag = ThumbnailService.etagFor(dataHash);
+        if (etag == null) return;
+        ctx.header("ETag", etag);
+        String version = ThumbnailService.versionOf(dataHash);
+        if (version.equals(ctx.queryParam("v"))) {
+            ctx.header("Cache-Control", "public, max-age=31536000, immutable");
+        } else {
+            ctx.header("Cache-Control", "public, no-cache");
+        }
+    }
+
+    /**
+     * Serves an original from the image folder, with its SHA-256 as a strong ETag when the file belongs to a media row.
+     * Supports Range requests, so videos can be seeked and downloads resumed. Directories get the directory listing.
+     */
+    private static void serveImage(Context ctx) throws IOException {
+        Path root = Paths.get(config.imageDownloadPath).normalize();
+        Path file = insideImageRoot(root.resolve(ctx.pathParam("path")));
+        if (file == null) {
+            ctx.status(403).result("Forbidden");
+            return;
+        }
+        if (Files.isDirectory(file)) {
+            serveDirectoryListing(ctx);
+            return;
+        }
+        if (!Files.isRegularFile(file)) {
+            ctx.status(404); // the 404 handler takes it from here
+            return;
+        }
+
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        // local_path is saved both as a plain concatenation (new downloads) and as a resolved Path (after a rating change)
+        String relative = root.relativize(file).toString().replace('\\', '/');
+        String dataHash = DatabaseHandler.getDataHashByLocalPath(config.imageDownloadPath + "/" + relative, root.resolve(relative).toString());
+        String etag = dataHash != null ? "\"" + dataHash + "\"" : null;
+
+        if (etag != null) ctx.header("ETag", etag);
+        ctx.res().setDateHeader("Last-Modified", lastModified);
+        // Files move when their rating changes, so a URL can go away, but what is behind it never changes.
+        ctx.header("Cache-Control", "public, max-age=86400");
+        if (isNotModified(ctx, etag, lastModified)) {
+            imageStats.notModified(size);
+            ctx.status(304);
+            return;
+        }
+
+        FileSender.send(ctx, file, size, contentTypeFor(file), etag, lastModified, imageStats);
+    }
+
+    /**
+     * Only lets through paths inside the image folder, so stored or requested paths cannot escape it with "..".
+     * @return The normalized path, or null if it is outside the image folder.
+     */
+    private static Path insideImageRoot(Path path) {
+        Path normalized = path.normalize();
+        return normalized.startsWith(Paths.get(config.imageDownloadPath).normalize()) ? normalized : null;
+    }
+
+    private static String contentTypeFor(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+        if (name.endsWith(".png")) return "image/png";
+        if (name.endsWith(".gif")) return "image/gif";
+        if (name.endsWith(".webp")) return "image/webp";
+        if (name.endsWith(".mp4")) return "video/mp4";
+        if (name.endsWith(".webm")) return "video/webm";
+        String probed = Files.probeContentType(file);
+        return probed != null ? probed : "application/octet-stream";
+    }
+
+    /**
+     * Loads the media rows of similarity search hits, keeping the distance order.
+     * Only the hits are loaded from the database.
+     * @param from Amount of hits to skip, for pagination.
+     * @param limit Maximum amount of results, the search may return more hits to make up for the excluded one.
+     * @param excludeId Media ID to leave out, e.g. the media that was searched with. 0 to keep everything.
+     */
+    private static List<Map<String, Object>> loadMatches(HashMatches matches, int from, int limit, int excludeId) {
+        Map<Integer, TwitterMedia> hitMedia = DatabaseHandler.getMediaByIds(matches.mediaIds, matches.size);
+        List<Map<String, Object>> results = new ArrayList<>();
+        int skipped = 0;
+        for (int i = 0; i < matches.size && results.size() < limit; i++) {
+            if (matches.mediaIds[i] == excludeId) continue;
+            TwitterMedia m = hitMedia.get(matches.mediaIds[i]);
+            if (m == null) continue; // deleted since the index was loaded
+            if (skipped++ < from) continue;
+
+            Map<String, Object> match = new HashMap<>();
+            match.put("media", m);
+            match.put("distance", matches.distances[i]);
+            results.add(match);
+        }
+        return results;
+    }
+
     public static void start() {
         Javalin.create(figgy -> {
             figgy.staticFiles.add("public/", Location.EXTERNAL);
             figgy.staticFiles.add(staticFiles -> {
-                staticFiles.directory = config.imageDownloadPath;
+                staticFiles.directory = config.thumbnailPath;
                 staticFiles.location = Location.EXTERNAL;
-                staticFiles.hostedPath = "/images";
+                staticFiles.hostedPath = "/thumbs";
             });
             figgy.jetty.multipartConfig.maxFileSize(10, SizeUnit.MB);
 
@@ -91,7 +403,7 @@ public class WebServer {
                 String path = ctx.path();
 
                 // 1. Identify explicitly public routes
-                boolean isAuthRoute = path.startsWith("/api/auth") || path.equals("/api/login") || path.equals("/api/logout") || path.equals("/api/search/image");
+                boolean isAuthRoute = path.startsWith("/api/auth") || path.equals("/api/login") || path.equals("/api/logout") || path.equals("/api/search/image") || path.equals("/api/search/similar");
                 boolean isPublicDataGet = method.equals("GET") && (
                         path.startsWith("/api/posts") ||
                                 path.startsWith("/api/accounts") ||
@@ -99,6 +411,8 @@ public class WebServer {
                                 path.startsWith("/api/media") ||
                                 path.startsWith("/api/v1/statuses/") ||
                                 path.startsWith("/users/") ||
+                                path.equals("/api/search") ||
+                                path.equals("/api/stats") ||
                                 path.equals("/api/config")
                 );
 
@@ -141,13 +455,13 @@ public class WebServer {
 
                 // Admin endpoints
                 if (path.startsWith("/api/accounts") || path.startsWith("/api/tasks") || path.startsWith("/api/artists") ||
-                        path.startsWith("/api/keys") || path.startsWith("/api/users")) {
+                        path.startsWith("/api/keys") || path.startsWith("/api/users") || path.startsWith("/api/metrics")) {
                     if (userLevel < 3) {
                         throw new ForbiddenResponse("Forbidden: Execute access required.");
                     }
                 }
                 // Editor endpoints
-                else if (path.startsWith("/api/media") || path.startsWith("/api/posts")) {
+                else if (path.startsWith("/api/media") || path.startsWith("/api/posts") || path.startsWith("/api/moderation")) {
                     if (userLevel < 2) {
                         throw new ForbiddenResponse("Forbidden: Editor access required.");
                     }
@@ -165,14 +479,9 @@ public class WebServer {
                 ctx.json(Map.of("safety", safetyRatings, "content", contentRatings));
             });
 
-            figgy.routes.get("/api/posts", ctx -> {
-                int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(20);
-                int offset = ctx.queryParamAsClass("offset", Integer.class).getOrDefault(0);
-                List<String> contentFilters = ctx.queryParams("content"); // Changed from 'c'
-                List<String> safetyFilters = ctx.queryParams("safety");   // Changed from 's'
-                String sort = ctx.queryParam("sort");
-                ctx.json(DatabaseHandler.getGlobalPostsPaged(limit, offset, contentFilters, safetyFilters, sort));
-            });
+            figgy.routes.get("/api/posts", ctx -> servePostListing(ctx, null));
+
+            figgy.routes.get("/api/stats", ctx -> serveStats(ctx, null));
 
             figgy.routes.get("/api/posts/{id}", ctx -> ctx.json(DatabaseHandler.getPostDetails(ctx.pathParam("id"))));
 
@@ -187,15 +496,9 @@ public class WebServer {
 
             figgy.routes.get("/api/accounts/{id}", ctx -> ctx.json(DatabaseHandler.getAccountById(ctx.pathParam("id"))));
 
-            figgy.routes.get("/api/accounts/{id}/posts", ctx -> {
-                String twitterId = ctx.pathParam("id");
-                int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(20);
-                int offset = ctx.queryParamAsClass("offset", Integer.class).getOrDefault(0);
-                List<String> contentFilters = ctx.queryParams("content");
-                List<String> safetyFilters = ctx.queryParams("safety");
-                String sort = ctx.queryParam("sort");
-                ctx.json(DatabaseHandler.getPostsByUserIdPaged(twitterId, limit, offset, contentFilters, safetyFilters, sort));
-            });
+            figgy.routes.get("/api/accounts/{id}/posts", ctx -> servePostListing(ctx, ctx.pathParam("id")));
+
+            figgy.routes.get("/api/accounts/{id}/stats", ctx -> serveStats(ctx, ctx.pathParam("id")));
 
             figgy.routes.get("/api/artists", ctx -> {
                 String q = ctx.queryParam("q");
@@ -211,12 +514,26 @@ public class WebServer {
                 else ctx.json(details);
             });
 
+            figgy.routes.get("/api/search", ctx -> {
+                String q = ctx.queryParam("q");
+                if (q == null || q.isBlank()) {
+                    ctx.status(400).json(Map.of("error", "Missing search query"));
+                    return;
+                }
+                int limit = Math.min(100, Math.max(1, ctx.queryParamAsClass("limit", Integer.class).getOrDefault(20)));
+                int offset = Math.max(0, ctx.queryParamAsClass("offset", Integer.class).getOrDefault(0));
+                ctx.json(DatabaseHandler.search(q.trim(), ctx.queryParams("content"), ctx.queryParams("safety"), limit, offset));
+            });
+
             figgy.routes.post("/api/search/image", ctx -> {
                 UploadedFile file = ctx.uploadedFile("image");
                 int threshold = ctx.queryParamAsClass("threshold", Integer.class).getOrDefault(10);
+                int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(1000);
 
                 if (threshold > 15) threshold = 15;
                 if (threshold < 0) threshold = 0;
+                if (limit > 1000) limit = 1000;
+                if (limit < 1) limit = 1;
 
                 if (file == null) {
                     ctx.status(400).json(Map.of("error", "No image uploaded"));
@@ -224,7 +541,7 @@ public class WebServer {
                 }
 
                 try {
-                    BufferedImage uploadedImage = ImageIO.read(file.content());
+                    BufferedImage uploadedImage = ImageIO.read(file.content()); //decoded like ingest, so the hashes compare
                     if (uploadedImage == null) {
                         ctx.status(400).json(Map.of("error", "Invalid image file"));
                         return;
@@ -233,106 +550,142 @@ public class WebServer {
                     ImageSimilarityService service = new ImageSimilarityService();
                     long uploadPHash = service.computeHash(uploadedImage, HashType.PHASH);
 
-                    List<TwitterMedia> allMedia = DatabaseHandler.getAllMediaWithHashes();
-                    List<Map<String, Object>> results = new ArrayList<>();
+                    HashMatches matches = hashIndex.search(uploadPHash, threshold, limit);
+                    ctx.json(loadMatches(matches, 0, limit, 0));
 
-                    for (TwitterMedia m : allMedia) {
-                        if (m.perceptualHash == null || m.perceptualHash.isEmpty()) continue;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    ctx.status(500).json(Map.of("error", "Internal processing error"));
+                }
+            });
 
-                        try {
-                            long dbPHash = Long.parseLong(m.perceptualHash);
-                            int distance = DatabaseHandler.getHammingDistance(uploadPHash, dbPHash);
+            figgy.routes.get("/api/media/{id}/similar", ctx -> {
+                int mediaId = Integer.parseInt(ctx.pathParam("id"));
+                int threshold = Math.min(15, Math.max(0, ctx.queryParamAsClass("threshold", Integer.class).getOrDefault(10)));
+                int limit = Math.min(1000, Math.max(1, ctx.queryParamAsClass("limit", Integer.class).getOrDefault(50)));
+                int offset = Math.max(0, ctx.queryParamAsClass("offset", Integer.class).getOrDefault(0));
+
+                // The stored hash is reused, no need to download and decode the image again.
+                Long pHash = DatabaseHandler.getPerceptualHash(mediaId);
+                if (pHash == null) {
+                    ctx.status(404).json(Map.of("error", "Media not found or has no perceptual hash"));
+                    return;
+                }
+                // +1 because the media itself is always a match
+                HashMatches matches = hashIndex.search(pHash, threshold, offset + limit + 1);
+                ctx.json(loadMatches(matches, offset, limit, mediaId));
+            });
 
-                            if (distance <= threshold) {
-                                Map<String, Object> match = new HashMap<>();
-                                match.put("media", m);
-                                match.put("distance", distance);
-                                results.add(match);
-                            }
-                        } catch (NumberFormatException e) {
-                            // Skip malformed hashes
-                        }
-                    }
+            figgy.routes.post("/api/search/similar", ctx -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> req = ctx.bodyAsClass(Map.class);
+                if (!(req.get("mediaIds") instanceof List<?> requested) || requested.isEmpty() || requested.size() > 100) {
+                    ctx.status(400).json(Map.of("error", "mediaIds must be a list of 1 to 100 media IDs"));
+                    return;
+                }
+                int threshold = req.get("threshold") instanceof Number n ? Math.min(15, Math.max(0, n.intValue())) : 10;
+                int limit = req.get("limit") instanceof Number n ? Math.min(1000, Math.max(1, n.intValue())) : 50;
 
-                    results.sort(Comparator.comparingInt(a -> (int) a.get("distance")));
-                    ctx.json(results);
+                int[] ids = new int[requested.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    if (!(requested.get(i) instanceof Number n)) {
+                        ctx.status(400).json(Map.of("error", "mediaIds must be a list of 1 to 100 media IDs"));
+                        return;
+                    }
+                    ids[i] = n.intValue();
+                }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    ctx.status(500).json(Map.of("error", "Internal processing error"));
+                // Neighbour sets only hold IDs and distances. Clients fetch the media they actually want to show.
+                Map<Integer, Long> hashes = DatabaseHandler.getPerceptualHashes(ids);
+                Map<String, Object> results = new LinkedHashMap<>();
+                for (int id : ids) {
+                    Long pHash = hashes.get(id);
+                    if (pHash == null) continue;
+                    HashMatches matches = hashIndex.search(pHash, threshold, limit + 1);
+                    List<Map<String, Object>> neighbours = new ArrayList<>();
+                    for (int i = 0; i < matches.size && neighbours.size() < limit; i++) {
+                        if (matches.mediaIds[i] == id) continue;
+                        neighbours.add(Map.of("mediaId", matches.mediaIds[i], "distance", matches.distances[i]));
+                    }
+                    results.put(String.valueOf(id), neighbours);
                 }
+                ctx.json(results);
             });
 
             figgy.routes.get("/api/media/{id}", ctx -> ctx.json(DatabaseHandler.getMediaById(Integer.parseInt(ctx.pathParam("id")))));
 
+            // Originals, served by hand instead of as static files so they get ETags from their stored hash.
+            figgy.routes.get("/images/<path>", WebServer::serveImage);
+
             figgy.routes.get("/api/media/{id}/thumbnail", ctx -> {
                 int mediaId = Integer.parseInt(ctx.pathParam("id"));
-                TwitterMedia media = DatabaseHandler.getMediaById(mediaId);
 
+                // The thumbnail only changes when the original does, so its ETag comes from the original's hash.
+                // Read through the entity cache, so a revalidation or a stored thumbnail usually needs no query.
+                TwitterMedia media = DatabaseHandler.getMediaById(mediaId);
                 if (media == null) {
                     ctx.status(404).result("Media not found");
                     return;
                 }
+                String dataHash = media.dataHash;
+                String etag = ThumbnailService.etagFor(dataHash);
+                if (etag != null && isNotModified(ctx, etag, 0)) {
+                    setThumbnailCacheHeaders(ctx, dataHash);
+                    ctx.status(304);
+                    Path storedPath = ThumbnailService.pathFor(mediaId);
+                    thumbnailStats.notModified(Files.exists(storedPath) ? Files.size(storedPath) : 0);
+                    return;
+                }
 
-                String filename = media.localPath;
-                String cacheKey = mediaId + "-thumb";
-
-                if (thumbnailCache.containsKey(cacheKey)) {
-                    ctx.contentType("image/jpeg").result(thumbnailCache.get(cacheKey));
+                // Thumbnails are normally generated at ingest, so most requests never touch the original.
+                ByteBuffer stored = ThumbnailService.readStored(mediaId);
+                if (stored != null) {
+                    setThumbnailCacheHeaders(ctx, dataHash);
+                    thumbnailStats.sent(stored.remaining());
+                    writeBuffer(ctx, stored, "image/jpeg");
                     return;
                 }
 
-                Path targetPath = Paths.get(filename).normalize();
+                String filename = media.localPath;
+                Path targetPath = insideImageRoot(Paths.get(filename));
 
-                if (!targetPath.startsWith(Paths.get(config.imageDownloadPath).normalize()) || !Files.exists(targetPath)) {
+                if (targetPath == null || !Files.exists(targetPath)) {
                     ctx.status(404).result("File not found");
                     return;
                 }
 
                 if (filename.toLowerCase().endsWith(".mp4") || filename.toLowerCase().endsWith(".webm")) {
-                    ctx.redirect("/images/" + filename);
+                    // the /images handler serves videos with Range support
+                    Path relative = Paths.get(config.imageDownloadPath).normalize().relativize(targetPath);
+                    StringBuilder location = new StringBuilder("/images");
+                    for (Path part : relative) {
+                        location.append('/').append(URLEncoder.encode(part.toString(), StandardCharsets.UTF_8).replace("+", "%20"));
+                    }
+                    ctx.redirect(location.toString());
                     return;
                 }
 
-                try {
-                    long fileSize = Files.size(targetPath);
-                    if (fileSize > 100 * 1024 * 1024) { // 100 MB limit
-                        ctx.status(413).result("Image too large to generate thumbnail");
-                        return;
-                    }
-                    BufferedImage original = ImageIO.read(targetPath.toFile());
-                    if (original == null) {
-                        ctx.status(415).result("Unsupported media type");
-                        return;
-                    }
-
-                    int shrink = 2;
-                    int origW = original.getWidth();
-                    int origH = original.getHeight();
-                    byte[] responseData;
-
-                    if (origW > 400) {
-                        //int targetHeight = (origH * targetWidth) / origW;
-                        BufferedImage thumb = new BufferedImage(origW / shrink, origH / shrink, BufferedImage.TYPE_INT_RGB);
-                        Graphics2D g2d = thumb.createGraphics();
-                        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                        g2d.drawImage(original, 0, 0, origW / shrink, origH / shrink, null);
-                        g2d.dispose();
-
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ImageIO.write(thumb, "jpg", baos);
-                        responseData = baos.toByteArray();
-                    } else {
-                        responseData = Files.readAllBytes(targetPath);
-                    }
-
-                    thumbnailCache.put(cacheKey, responseData);
-                    ctx.contentType("image/jpeg").result(responseData);
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    ctx.status(500).result("Error generating thumbnail");
+                if (Files.size(targetPath) > 100 * 1024 * 1024) { // 100 MB limit
+                    ctx.status(413).result("Image too large to generate thumbnail");
+                    return;
                 }
+                // Only media that were not backfilled yet get decoded here, once, no matter how many requests ask for it at the same time.
+                ctx.future(() -> thumbnailFlight.run(mediaId, () -> ThumbnailService.read(mediaId, filename)).handle((responseData, error) -> {
+                    try {
+                        if (error != null) {
+                            respondToFailure(ctx, error, "Error generating thumbnail");
+                        } else if (responseData == null) {
+                            ctx.status(415).result("Unsupported media type");
+                        } else {
+                            setThumbnailCacheHeaders(ctx, dataHash);
+                            thumbnailStats.sent(responseData.remaining());
+                            writeBuffer(ctx, responseData.duplicate(), "image/jpeg"); // every waiter gets the same buffer
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                }));
             });
 
             // ==========================================
@@ -439,6 +792,8 @@ public class WebServer {
                 ctx.json(Map.of("success", true, "message", "Post updated"));
             });
 
+            figgy.routes.get("/api/moderation/queue", WebServer::serveModerationQueue);
+
             figgy.routes.get("/api/me", ctx -> {
                 ArchiveUser session = ctx.attribute("userSession");
                 if (session == null) {
@@ -557,7 +912,7 @@ public class WebServer {
                         TwitterAccount dbAccount = DatabaseHandler.getAccountById(post.twitterId);
                         if (dbAccount == null || dbAccount.twitterId == null) {
                             TwitterAccount profile = TwitterScraper.getUserProfileByName(post.screenName);
-                            DatabaseHandler.registerAccount(profile.twitterId, profile.screenName, profile.displayName, profile.screenName, false, "Safe");
+                            DatabaseHandler.registerAccount(profile.twitterId, profile.screenName, profile.displayName, profile.screenName, false, "Safe").join();
                             dbAccount = DatabaseHandler.getAccountById(post.twitterId);
                         }
                         TwitterScraper.scrapeFromPostId(dbAccount, postId,null);
@@ -585,7 +940,7 @@ public class WebServer {
                         TwitterAccount dbAccount = DatabaseHandler.getAccountById(post.twitterId);
                         if (dbAccount == null || dbAccount.twitterId == null) {
                             TwitterAccount profile = TwitterScraper.getUserProfileByName(post.screenName);
-                            DatabaseHandler.registerAccount(profile.twitterId, profile.screenName, profile.displayName, profile.screenName, false, "Safe");
+                            DatabaseHandler.registerAccount(profile.twitterId, profile.screenName, profile.displayName, profile.screenName, false, "Safe").join();
                         }
                         DatabaseHandler.setPostRatings(post.postId, contentRating, safetyRating);
                     } catch (Exception e) { e.printStackTrace(); }
@@ -593,6 +948,31 @@ public class WebServer {
                 ctx.json(Map.of("success", true, "message", "Download post queued."));
             });
 
+            figgy.routes.post("/api/tasks/dedupe", ctx -> {
+                int threshold = ctx.queryParamAsClass("threshold", Integer.class).getOrDefault(Math.max(0, config.duplicateThreshold));
+                if (threshold > 15) threshold = 15;
+                if (threshold < 0) threshold = 0;
+                if (!DedupeJob.start(threshold)) {
+                    ctx.status(409).json(Map.of("success", false, "error", "Dedupe is already running."));
+                    return;
+                }
+                ctx.json(Map.of("success", true, "message", "Dedupe started with threshold " + threshold + "."));
+            });
+
+            figgy.routes.get("/api/tasks/dedupe", ctx -> ctx.json(DedupeJob.status()));
+
+            figgy.routes.post("/api/tasks/thumbnails", ctx -> {
+                if (!ThumbnailService.startBackfill()) {
+                    ctx.status(409).json(Map.of("success", false, "error", "Thumbnail backfill is already running."));
+                    return;
+                }
+                ctx.json(Map.of("success", true, "message", "Thumbnail backfill started."));
+            });
+
+            figgy.routes.get("/api/tasks/thumbnails", ctx -> ctx.json(ThumbnailService.backfillStatus()));
+
+            figgy.routes.get("/api/metrics", ctx -> ctx.json(Metrics.snapshot()));
+
             figgy.routes.get("/api/keys", ctx -> {
                 int page = ctx.queryParamAsClass("page", Integer.class).getOrDefault(1);
                 int limit = 10;
@@ -706,8 +1086,9 @@ public class WebServer {
             // Discord OpenGraph intercept handlers for precise embeds:
             figgy.routes.get("/post/{id}", ctx -> {
                 String postId = ctx.pathParam("id");
-                TwitterPost post = DatabaseHandler.getPostDetails(postId);
-                serveEmbedPage(ctx, post, null);
+                String hostUrl = ctx.scheme() + "://" + ctx.host();
+                String pagePath = ctx.path();
+                serveEmbedPage(ctx, () -> renderEmbedPage(hostUrl, pagePath, DatabaseHandler.getPostDetails(postId), null));
             });
 
             figgy.routes.get("/media/{id}", ctx -> {
@@ -718,8 +1099,9 @@ public class WebServer {
                     ctx.status(400).result("Invalid media ID");
                     return;
                 }
-                TwitterMedia m = DatabaseHandler.getMediaById(mediaId);
-                serveEmbedPage(ctx, null, m);
+                String hostUrl = ctx.scheme() + "://" + ctx.host();
+                String pagePath = ctx.path();
+                serveEmbedPage(ctx, () -> renderEmbedPage(hostUrl, pagePath, null, DatabaseHandler.getMediaById(mediaId)));
             });
 
             // oEmbed endpoint - Discord will call this automatically when it sees the <link rel="alternate"> tag
@@ -731,70 +1113,15 @@ public class WebServer {
                 }
 
                 String baseUrl = ctx.scheme() + "://" + ctx.host();
-                String authorName = "Unknown Artist";
-                String screenName = "unknown";
-                String description = "No description available.";
-                String authorUrl = urlParam; // fallback
-
-                TwitterPost post = null;
-                TwitterMedia media = null;
-                TwitterAccount account = null;
-
-                try {
-                    URI uri = new URI(urlParam);
-                    String path = uri.getPath();
-
-                    if (path.startsWith("/post/")) {
-                        String postId = path.substring("/post/".length());
-                        post = DatabaseHandler.getPostDetails(postId);
-                    } else if (path.startsWith("/media/")) {
-                        String mediaIdStr = path.substring("/media/".length());
-                        int mediaId = Integer.parseInt(mediaIdStr);
-                        media = DatabaseHandler.getMediaById(mediaId);
-                        if (media != null) {
-                            post = DatabaseHandler.getPostDetails(media.postId);
-                        }
-                    }
-                    if (post != null) {
-                        account = DatabaseHandler.getAccountById(post.twitterId);
-                        authorUrl = baseUrl + "/post/" + post.postId; // always link to post URL
-
+                ctx.future(() -> oembedFlight.run(baseUrl + " " + urlParam, () -> buildOembed(baseUrl, urlParam)).handle((oembed, error) -> {
+                    if (error != null) {
+                        respondToFailure(ctx, error, "Error building oEmbed");
+                    } else {
+                        ctx.contentType("application/json");
+                        ctx.json(oembed);
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-                if (account != null) {
-                    authorName = account.displayName != null ? account.displayName : authorName;
-                    screenName = account.screenName != null ? account.screenName : screenName;
-                }
-
-                if (media != null) {
-                    description = (media.caption != null && !media.caption.isEmpty() ? media.caption : "");
-                    if (!description.isEmpty()) description += "\n\n";
-                    description += "Rating: " + media.contentRating + " / " + media.safetyRating;
-                } else if (post != null) {
-                    description = (post.postText != null ? post.postText : "");
-                    if (!description.isEmpty()) description += "\n\n";
-                    description += "Rating: " + post.contentRating + " / " + post.safetyRating;
-                }
-
-                String fullAuthorName = authorName + " (@" + screenName + ")";
-
-                Map<String, Object> oembed = new LinkedHashMap<>();
-                oembed.put("type", "rich");
-                oembed.put("version", "1.0");
-                oembed.put("title","Embed");
-                oembed.put("author_name", fullAuthorName);
-                oembed.put("author_url", authorUrl);
-                oembed.put("provider_name", "Sandstar Archive");
-                oembed.put("provider_url", baseUrl);
-                //oembed.put("description", description);
-                //oembed.put("width", 550);
-                //oembed.put("height", 400);
-
-                ctx.contentType("application/json");
-                ctx.json(oembed);
+                    return null;
+                }));
             });
 
             figgy.routes.error(404, ctx -> {
@@ -970,19 +1297,107 @@ public class WebServer {
         ctx.json(activity);
     }
 
-    // Shared method to handle OpenGraph and oEmbed injection for Discord
-    private static void serveEmbedPage(Context ctx, TwitterPost post, TwitterMedia singleMedia) throws IOException {
+    /**
+     * Builds the oEmbed response for a post or media page URL.
+     */
+    private static Map<String, Object> buildOembed(String baseUrl, String urlParam) {
+        String authorName = "Unknown Artist";
+        String screenName = "unknown";
+        String description = "No description available.";
+        String authorUrl = urlParam; // fallback
+
+        TwitterPost post = null;
+        TwitterMedia media = null;
+        TwitterAccount account = null;
+
+        try {
+            URI uri = new URI(urlParam);
+            String path = uri.getPath();
+
+            if (path.startsWith("/post/")) {
+                String postId = path.substring("/post/".length());
+                post = DatabaseHandler.getPostDetails(postId);
+            } else if (path.startsWith("/media/")) {
+                String mediaIdStr = path.substring("/media/".length());
+                int mediaId = Integer.parseInt(mediaIdStr);
+                media = DatabaseHandler.getMediaById(mediaId);
+                if (media != null) {
+                    post = DatabaseHandler.getPostDetails(media.postId);
+                }
+            }
+            if (post != null) {
+                account = DatabaseHandler.getAccountById(post.twitterId);
+                authorUrl = baseUrl + "/post/" + post.postId; // always link to post URL
+
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (account != null) {
+            authorName = account.displayName != null ? account.displayName : authorName;
+            screenName = account.screenName != null ? account.screenName : screenName;
+        }
+
+        if (media != null) {
+            description = (media.caption != null && !media.caption.isEmpty() ? media.caption : "");
+            if (!description.isEmpty()) description += "\n\n";
+            description += "Rating: " + media.contentRating + " / " + media.safetyRating;
+        } else if (post != null) {
+            description = (post.postText != null ? post.postText : "");
+            if (!description.isEmpty()) description += "\n\n";
+            description += "Rating: " + post.contentRating + " / " + post.safetyRating;
+        }
+
+        String fullAuthorName = authorName + " (@" + screenName + ")";
+
+        Map<String, Object> oembed = new LinkedHashMap<>();
+        oembed.put("type", "rich");
+        oembed.put("version", "1.0");
+        oembed.put("title","Embed");
+        oembed.put("author_name", fullAuthorName);
+        oembed.put("author_url", authorUrl);
+        oembed.put("provider_name", "Sandstar Archive");
+        oembed.put("provider_url", baseUrl);
+        //oembed.put("description", description);
+        //oembed.put("width", 550);
+        //oembed.put("height", 400);
+
+        return oembed;
+    }
+
+    /**
+     * Renders an embed page on the render pool. Embeds tend to be fetched by several clients at once when a link is
+     * posted, so concurrent requests for the same URL share one render.
+     */
+    private static void serveEmbedPage(Context ctx, Callable<String> render) {
+        String key = ctx.scheme() + "://" + ctx.host() + ctx.path();
+        ctx.future(() -> embedFlight.run(key, render).handle((html, error) -> {
+            if (error != null) {
+                respondToFailure(ctx, error, "Error rendering page");
+            } else if (html == null) {
+                ctx.status(404).result("index.html not found");
+            } else {
+                ctx.html(html);
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Shared method to handle OpenGraph and oEmbed injection for Discord.
+     * @return index.html with the embed tags injected, or null if there is no index.html.
+     */
+    private static String renderEmbedPage(String hostUrl, String pagePath, TwitterPost post, TwitterMedia singleMedia) throws IOException {
         Path path = Paths.get("public/index.html");
         if (!Files.exists(path)) {
-            ctx.status(404).result("index.html not found");
-            return;
+            return null;
         }
 
         String html = Files.readString(path);
         //fallback
         if (post == null && singleMedia == null) {
-            ctx.html(html);
-            return;
+            return html;
         }
         //if this is a media only embed, retrieve the whole post for the rest of the details
         String targetId = ""; //targetId is the mediaId or postId depending on what was requested
@@ -994,7 +1409,6 @@ public class WebServer {
         }
 
         TwitterAccount account = post != null ? DatabaseHandler.getAccountById(post.twitterId) : null;
-        String hostUrl = ctx.scheme() + "://" + ctx.host();
         String title = account.displayName + "(@" + account.screenName + ")";
         StringBuilder og = new StringBuilder();
 
@@ -1073,7 +1487,7 @@ public class WebServer {
         }
 */
         // oEmbed discovery link
-        String pageUrl = hostUrl + ctx.path();
+        String pageUrl = hostUrl + pagePath;
         String encodedPageUrl = URLEncoder.encode(pageUrl, StandardCharsets.UTF_8);
         String oembedLink = "<link rel=\"alternate\" type=\"application/json+oembed\" href=\"/oembed?url=" + encodedPageUrl + "\" title=\"Sandstar Archive\" />\n";
         og.append(oembedLink);
@@ -1084,7 +1498,7 @@ public class WebServer {
         og.append(activityPubLink);
 
         html = html.replace("</head>", og.toString() + "</head>");
-        ctx.html(html);
+        return html;
     }
 
     private static void serveDirectoryListing(Context ctx) throws IOException {
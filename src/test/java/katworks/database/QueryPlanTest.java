@@ -0,0 +1,319 @@
+package katworks.database;
+
+import katworks.Main;
+import katworks.impl.PostCursor;
+import katworks.util.Config;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@code EXPLAIN QUERY PLAN} for the hot read queries against a synthetic archive and fails if any of them
+ * reads a whole table, either with a full table scan or by sorting all matching rows just to return one page.
+ * <p>
+ * Queries that can only ever scan (LIKE '%term%' searches on databases without the search tables, the dedupe pass
+ * over every hash, getActiveAccounts() which returns most accounts, the moderation backlog of every account, which
+ * reads each account's counters) are not listed here.
+ * <p>
+ * The archive is never analyzed, but someone may run ANALYZE by hand, so the synthetic archive is checked both
+ * without and with statistics. A plan that only holds up in one of them fails.
+ */
+class QueryPlanTest {
+    private static final List<String> SAMPLE_CONTENT = List.of("KF", "NonKF", "Rejected", "Waiting");
+    private static final List<String> SAMPLE_SAFETY = List.of("Safe", "NSFW", "NSFL", "Waiting");
+    private static final List<String> SAMPLE_WORDS = List.of("some", "words", "serval", "drawing", "fanart", "sketch", "new", "friends", "kemono", "comic", "color", "art");
+    private static final int POST_COUNT = 20_000;
+
+    @TempDir
+    static File tempDir;
+    private static File databaseFile;
+    private static Config previousConfig;
+
+    /**
+     * Built on first use rather than in a static field, the listings come from DatabaseHandler, which needs the config.
+     */
+    private static List<HotQuery> queries() {
+        return List.of(
+                listing("newest posts", null, null, List.of(), List.of(), "newest"),
+                listing("newest posts, one content rating", null, null, List.of("KF"), List.of(), "newest"),
+                listing("newest posts, one safety rating", null, null, List.of(), List.of("Safe"), "newest"),
+                listing("newest posts, several ratings", null, null, List.of("KF", "NonKF"), List.of("Safe", "NSFW"), "newest"),
+                listing("oldest posts after cursor, one content rating", null, new PostCursor(1_600_000_000_000L, "1"), List.of("KF"), List.of(), "oldest"),
+                listing("account posts after cursor", "1", new PostCursor(1_600_000_000_000L, "1"), List.of(), List.of(), "newest"),
+                listing("account posts, several ratings", "1", null, List.of("KF", "NonKF"), List.of("Safe"), "newest"),
+                new HotQuery("account by screen name", DatabaseHandler.ACCOUNT_BY_SCREEN_NAME, List.of("someone"), false),
+                new HotQuery("accounts of an artist", DatabaseHandler.ACCOUNTS_OF_ARTIST, List.of(1), false),
+                new HotQuery("artist by id", DatabaseHandler.ARTIST_BY_ID, List.of(1), false),
+                new HotQuery("artist by name", DatabaseHandler.ARTIST_ID_BY_NAME, List.of("someone"), false),
+                new HotQuery("aliases of an artist", DatabaseHandler.ALIASES_OF_ARTIST, List.of(1), false),
+                new HotQuery("media of a post", DatabaseHandler.MEDIA_OF_POST, List.of("1"), false),
+                new HotQuery("media by data hash", DatabaseHandler.MEDIA_BY_DATA_HASH, List.of("00"), false),
+                new HotQuery("all posts of an account", DatabaseHandler.POSTS_OF_ACCOUNT, List.of("1"), false),
+                new HotQuery("session by token", DatabaseHandler.SESSION_BY_TOKEN, List.of("token"), false),
+                new HotQuery("bot token of a user", DatabaseHandler.BOT_TOKEN_OF_USER, List.of(1), false),
+                queue("moderation queue, oldest first", null, null, false),
+                queue("moderation queue after cursor, newest first", null, new PostCursor(1_600_000_000_000L, "1"), true),
+                queue("moderation queue of an account after cursor", "1", new PostCursor(1_600_000_000_000L, "1"), false),
+                counts("posts matching filters", PostSampler.ARCHIVE_SCOPE, List.of("KF", "NonKF"), List.of("Safe")),
+                counts("account posts matching filters", "1", List.of(), List.of("Safe")),
+                new HotQuery("totals of an account", ArchiveCounters.STATS_OF_SCOPE, List.of("1"), false),
+                search("post text search", List.of(), List.of()),
+                search("post text search, several ratings", List.of("KF", "NonKF"), List.of("Safe")),
+                new HotQuery("artist name search",
+                        TextSearch.nameSql("artists_fts", "name", "aliases", "someone", true), List.of("\"someone\"", 20), false),
+                new HotQuery("account name search",
+                        TextSearch.nameSql("accounts_fts", "screen_name", "display_name", "someone", true), List.of("\"someone\"", 20), false)
+        );
+    }
+
+    @BeforeAll
+    static void pointDatabaseAtTempDir() {
+        databaseFile = new File(tempDir, "query-plan-check.db");
+        previousConfig = Main.config;
+        Main.config = new Config();
+        Main.config.databasePath = databaseFile.getAbsolutePath(); //read by DatabaseHandler when it is first used
+    }
+
+    @AfterAll
+    static void restoreConfig() {
+        Main.config = previousConfig;
+    }
+
+    @Test
+    void hotQueriesUseAnIndex() throws SQLException {
+        List<String> regressions;
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath())) {
+            fillSyntheticArchive(conn, POST_COUNT);
+            regressions = check(conn);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("ANALYZE");
+            }
+            for (String regression : check(conn)) {
+                regressions.add("(with ANALYZE) " + regression);
+            }
+        }
+        assertTrue(regressions.isEmpty(), regressions.size() + " plan steps read a whole table:\n" + String.join("\n", regressions));
+    }
+
+    /**
+     * @return One line per plan step that reads a whole table, empty if every query uses an index.
+     */
+    private static List<String> check(Connection conn) {
+        List<String> regressions = new ArrayList<>();
+        //EXPLAIN never opens a read transaction, so a pooled connection would keep planning with the schema it
+        //loaded first and miss indexes a migration just added. A real read makes it reload the schema.
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT count(*) FROM sqlite_schema")) {
+            rs.next();
+        } catch (SQLException e) {
+            regressions.add("could not read the schema: " + e.getMessage());
+            return regressions;
+        }
+        for (HotQuery query : queries()) {
+            try (PreparedStatement ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + query.sql)) {
+                DatabaseHandler.bindParams(ps, query.params);
+                try (ResultSet rs = ps.executeQuery()) {
+                    for (String step : fullReads(rs, query.ordered)) {
+                        regressions.add(query.name + ": " + step);
+                    }
+                }
+            } catch (SQLException e) { //INDEXED BY fails to prepare when the index is missing or cannot be used
+                regressions.add(query.name + ": " + e.getMessage());
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Picks the plan steps that read a whole table: a SCAN of a table without an index, an automatic index, and a
+     * temporary B-tree for ORDER BY in a subquery (the page of a listing), or anywhere when the query must come out
+     * in index order.
+     * Sorting the final page of a listing together with its media is fine and not reported.
+     */
+    private static List<String> fullReads(ResultSet plan, boolean ordered) throws SQLException {
+        List<String> steps = new ArrayList<>();
+        Set<String> subqueries = new HashSet<>();
+        Map<Integer, String> details = new HashMap<>();
+        while (plan.next()) {
+            int id = plan.getInt("id");
+            int parent = plan.getInt("parent");
+            String detail = plan.getString("detail");
+            details.put(id, detail);
+            String parentDetail = details.getOrDefault(parent, "");
+
+            if (detail.startsWith("CO-ROUTINE ") || detail.startsWith("MATERIALIZE ")) {
+                subqueries.add(detail.substring(detail.indexOf(' ') + 1).trim());
+            } else if (detail.startsWith("SCAN ") && !detail.contains(" INDEX ") && !detail.equals("SCAN CONSTANT ROW")
+                    && !subqueries.contains(detail.substring(5).trim())) {
+                steps.add(detail);
+            } else if (detail.contains(" AUTOMATIC ")) { //SQLite builds it from the whole table, for every run
+                steps.add(detail);
+            } else if (detail.equals("USE TEMP B-TREE FOR ORDER BY")) {
+                boolean inSubquery = parentDetail.startsWith("CO-ROUTINE ") || parentDetail.startsWith("MATERIALIZE ");
+                if (inSubquery || (ordered && parent == 0)) steps.add(detail + (inSubquery ? " in " + parentDetail : ""));
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Fills an empty database with the current schema and an archive of the given number of posts, with ratings
+     * skewed the way a real archive is (most posts rated, a small Waiting backlog).
+     */
+    private static void fillSyntheticArchive(Connection conn, int postCount) throws SQLException {
+        Random random = new Random(1);
+        try (Statement statement = conn.createStatement()) {
+            DatabaseHandler.createSchema(statement);
+        }
+        conn.setAutoCommit(false);
+        int artistCount = Math.max(1, postCount / 200);
+        int accountCount = artistCount * 2;
+        try (PreparedStatement artist = conn.prepareStatement("INSERT INTO artists (id, name) VALUES (?, ?)");
+             PreparedStatement alias = conn.prepareStatement("INSERT INTO aliases (artist_id, alias_name) VALUES (?, ?)")) {
+            for (int i = 1; i <= artistCount; i++) {
+                artist.setInt(1, i);
+                artist.setString(2, "artist" + i);
+                artist.executeUpdate();
+                alias.setInt(1, i);
+                alias.setString(2, "alias" + i);
+                alias.executeUpdate();
+            }
+        }
+        try (PreparedStatement account = conn.prepareStatement("INSERT INTO twitter_accounts (twitter_id, artist_id, screen_name, account_status, is_protected, download_status) VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = 1; i <= accountCount; i++) {
+                account.setString(1, String.valueOf(i));
+                account.setInt(2, 1 + (i - 1) % artistCount);
+                account.setString(3, "account" + i);
+                account.setString(4, random.nextInt(10) == 0 ? "Suspended" : "Active");
+                account.setInt(5, random.nextInt(20) == 0 ? 1 : 0);
+                account.setInt(6, random.nextInt(10) == 0 ? 0 : 1);
+                account.executeUpdate();
+            }
+        }
+        try (PreparedStatement post = conn.prepareStatement("INSERT INTO posts (post_id, twitter_id, post_date, archive_date, content_rating, safety_rating, post_text) VALUES (?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement media = conn.prepareStatement("INSERT INTO media (post_id, local_path, content_rating, safety_rating, media_index, data_hash, perceptual_hash, caption) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+            long date = 1_500_000_000_000L;
+            for (int i = 1; i <= postCount; i++) {
+                date += random.nextInt(3_600_000);
+                String postId = String.valueOf(1_000_000_000L + i);
+                String content = skewedRating(random, SAMPLE_CONTENT);
+                String safety = skewedRating(random, SAMPLE_SAFETY);
+                post.setString(1, postId);
+                post.setString(2, String.valueOf(1 + random.nextInt(accountCount)));
+                post.setLong(3, date);
+                post.setLong(4, date);
+                post.setString(5, content);
+                post.setString(6, safety);
+                post.setString(7, sampleText(random, 12));
+                post.executeUpdate();
+                int mediaCount = 1 + random.nextInt(3);
+                for (int m = 0; m < mediaCount; m++) {
+                    byte[] hash = new byte[16];
+                    random.nextBytes(hash);
+                    media.setString(1, postId);
+                    media.setString(2, content + "/" + safety + "/" + postId + "_" + m + ".jpg");
+                    media.setString(3, content);
+                    media.setString(4, safety);
+                    media.setInt(5, m);
+                    media.setBytes(6, hash);
+                    media.setLong(7, random.nextLong());
+                    media.setString(8, random.nextInt(4) == 0 ? sampleText(random, 6) : null);
+                    media.executeUpdate();
+                }
+            }
+        }
+        try (PreparedStatement user = conn.prepareStatement("INSERT INTO users (id, username, password_hash, creation_date) VALUES (?, ?, '', 0)");
+             PreparedStatement session = conn.prepareStatement("INSERT INTO sessions (session_token, user_id, token_type, created_at) VALUES (?, ?, ?, 0)")) {
+            for (int i = 1; i <= 100; i++) {
+                user.setInt(1, i);
+                user.setString(2, "user" + i);
+                user.executeUpdate();
+                for (int s = 0; s < 5; s++) {
+                    session.setString(1, "token" + i + "_" + s);
+                    session.setInt(2, i);
+                    session.setString(3, s == 0 ? "Bot" : "User");
+                    session.executeUpdate();
+                }
+            }
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+
+    /**
+     * First rating most of the time, the last one (Waiting) about one post in twenty.
+     */
+    private static String skewedRating(Random random, List<String> ratings) {
+        int roll = random.nextInt(100);
+        if (roll < 55) return ratings.get(0);
+        if (roll < 80) return ratings.get(1);
+        if (roll < 95) return ratings.get(2);
+        return ratings.get(3);
+    }
+
+    private static String sampleText(Random random, int maxWords) {
+        StringBuilder text = new StringBuilder();
+        int words = 1 + random.nextInt(maxWords);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) text.append(' ');
+            text.append(SAMPLE_WORDS.get(random.nextInt(SAMPLE_WORDS.size())));
+        }
+        return text.toString();
+    }
+
+    private static HotQuery listing(String name, String twitterId, PostCursor cursor, List<String> contentFilters, List<String> safetyFilters, String sort) {
+        List<Object> params = new ArrayList<>();
+        String sql = DatabaseHandler.filteredPostsQuery(twitterId, 50, 0, cursor, contentFilters, safetyFilters, sort, params);
+        return new HotQuery(name, sql, params, false);
+    }
+
+    private static HotQuery search(String name, List<String> contentFilters, List<String> safetyFilters) {
+        List<Object> params = new ArrayList<>();
+        String sql = TextSearch.searchPostsQuery(TextSearch.wordQuery("some words"), contentFilters, safetyFilters, 20, 0, params);
+        return new HotQuery(name, sql, params, false);
+    }
+
+    private static HotQuery queue(String name, String twitterId, PostCursor cursor, boolean newestFirst) {
+        List<Object> params = new ArrayList<>();
+        String sql = DatabaseHandler.moderationQueueQuery(twitterId, 50, cursor, newestFirst, true, params);
+        return new HotQuery(name, sql, params, true);
+    }
+
+    private static HotQuery counts(String name, String scope, List<String> contentFilters, List<String> safetyFilters) {
+        List<Object> params = new ArrayList<>();
+        String sql = ArchiveCounters.countPostsQuery(scope, contentFilters, safetyFilters, params);
+        return new HotQuery(name, sql, params, false);
+    }
+
+    private static final class HotQuery {
+        final String name;
+        final String sql;
+        final List<Object> params;
+        final boolean ordered; //whether the rows must come out of an index already in ORDER BY order
+
+        HotQuery(String name, String sql, List<Object> params, boolean ordered) {
+            this.name = name;
+            this.sql = sql;
+            this.params = params;
+            this.ordered = ordered;
+        }
+    }
+}